@@ -0,0 +1,149 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author SkibbleBip
+ * Throughput of the public entry points and of the phases of the layout pass on a synthetic file.
+ * Run with the gc profiler (the jmh Gradle task adds it) to get the allocation rate next to it
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QtFastStartBenchmark {
+    
+        @Param({"1048576", "67108864"})
+        public int mdatSize;
+        
+        @Param({"2"})
+        public int tracks;
+        
+        @Param({"1000", "100000"})
+        public int entries;
+        
+        @Param({"false", "true"})
+        public boolean co64;
+        
+        private byte[] input;
+        private ArtificialFileStream stream;
+        private AtomInput atomInput;
+        private FastStartLayout layout;
+        private byte[] moovTemplate;
+        private final FastStartOptions options = new FastStartOptions();
+        
+        @Setup(Level.Trial)
+        public void generate() throws Exception{
+            this.input = SyntheticMp4.generate(this.mdatSize, this.tracks, this.entries, this.co64, 42);
+            this.stream = new ArtificialFileStream(this.input);
+            this.atomInput = AtomInput.of(this.stream);
+            
+            FileLayout atoms = QtFastStart.inspect(this.atomInput);
+            this.moovTemplate = new byte[(int)atoms.moovSize()];
+            System.arraycopy(this.input, (int)atoms.moovOffset(), this.moovTemplate, 0, this.moovTemplate.length);
+            FileLayout.AtomInfo ftyp = atoms.find("ftyp");
+            this.layout = new FastStartLayout(null, ByteBuffer.wrap(this.moovTemplate), ftyp.offset() + ftyp.size(), atoms.moovOffset());
+        }
+        
+        /**
+         * Moov atom patched by {@link #offsetPatch}, in a state of its own so only that benchmark pays for the
+         * per-invocation reset
+         */
+        @State(Scope.Thread)
+        public static class MoovWork {
+            
+                private byte[] template;
+                private ByteBuffer moov;
+                
+                @Setup(Level.Trial)
+                public void allocate(QtFastStartBenchmark benchmark){
+                    this.template = benchmark.moovTemplate;
+                    this.moov = ByteBuffer.allocate(this.template.length).order(ByteOrder.BIG_ENDIAN);
+                }
+                
+                @Setup(Level.Invocation)
+                public void reset(){
+                    // patching is done in place, start every invocation from the unpatched moov
+                    System.arraycopy(this.template, 0, this.moov.array(), 0, this.template.length);
+                    this.moov.clear();
+                }
+        }
+        
+        @Benchmark
+        public byte[] fastStartByteArray() throws IOException{
+            return QtFastStart.fastStart(this.input);
+        }
+        
+        @Benchmark
+        public byte[] fastStartInputStream() throws IOException{
+            return QtFastStart.fastStart(new ByteArrayInputStream(this.input));
+        }
+        
+        @Benchmark
+        public FileLayout atomScan() throws Exception{
+            return QtFastStart.inspect(this.atomInput);
+        }
+        
+        @Benchmark
+        public ByteBuffer moovLoad() throws IOException{
+            ByteBuffer moov = ByteBuffer.allocate(this.moovTemplate.length).order(ByteOrder.BIG_ENDIAN);
+            this.atomInput.read(moov, this.layout.lastOffset);
+            return moov;
+        }
+        
+        @Benchmark
+        public ByteBuffer offsetPatch(MoovWork work) throws Exception{
+            QtFastStart.patchMoov(work.moov, this.options);
+            return work.moov;
+        }
+        
+        @Benchmark
+        public ArtificialFileStream copy() throws Exception{
+            ArtificialFileStream out = new ArtificialFileStream(this.layout.restSize());
+            this.stream.transferTo(this.layout.startOffset, this.layout.restSize(), out);
+            return out;
+        }
+    
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ *
+ * @author SkibbleBip
+ * Deterministic generator of small but structurally valid MP4 files that are not fast start:
+ * ftyp, free, mdat of a given size, then a moov with a number of tracks, each with a stco or co64
+ * table of a given number of entries pointing into the mdat
+ */
+public class SyntheticMp4 {
+    
+        private SyntheticMp4(){}
+        
+        /**
+         * 
+         * @param mdatSize number of media bytes
+         * @param tracks number of trak atoms
+         * @param entriesPerTrack number of chunk offsets in each track
+         * @param co64 true for co64 tables, false for stco tables
+         * @param seed seed of the media bytes and chunk offsets
+         * @return the file
+         */
+        public static byte[] generate(int mdatSize, int tracks, int entriesPerTrack, boolean co64, long seed){
+            SplittableRandom random = new SplittableRandom(seed);
+            int entrySize = co64 ? 8 : 4;
+            int stcoSize = 16 + entriesPerTrack * entrySize;
+            int stblSize = 8 + stcoSize;
+            int minfSize = 8 + stblSize;
+            int mdiaSize = 8 + minfSize;
+            int trakSize = 8 + 92 + mdiaSize; // header, tkhd, mdia
+            int moovSize = 8 + 108 + tracks * trakSize; // header, mvhd, traks
+            int ftypSize = 24;
+            int freeSize = 16;
+            int mdatOffset = ftypSize + freeSize;
+            
+            ByteBuffer out = ByteBuffer.allocate(mdatOffset + 8 + mdatSize + moovSize).order(ByteOrder.BIG_ENDIAN);
+            
+            header(out, ftypSize, "ftyp");
+            out.put(ascii("isom")).putInt(0x200).put(ascii("isomiso2"));
+            header(out, freeSize, "free");
+            out.put(new byte[freeSize - 8]);
+            
+            header(out, 8 + mdatSize, "mdat");
+            byte[] media = new byte[mdatSize];
+            for(int i = 0; i < mdatSize; i++)
+                media[i] = (byte)random.nextInt(256);
+            out.put(media);
+            
+            header(out, moovSize, "moov");
+            header(out, 108, "mvhd");
+            out.put(new byte[100]);
+            for(int t = 0; t < tracks; t++){
+                header(out, trakSize, "trak");
+                header(out, 92, "tkhd");
+                out.put(new byte[84]);
+                header(out, mdiaSize, "mdia");
+                header(out, minfSize, "minf");
+                header(out, stblSize, "stbl");
+                header(out, stcoSize, co64 ? "co64" : "stco");
+                out.putInt(0).putInt(entriesPerTrack);
+                
+                long[] offsets = new long[entriesPerTrack];
+                for(int i = 0; i < entriesPerTrack; i++)
+                    offsets[i] = mdatOffset + 8 + random.nextInt(Math.max(1, mdatSize));
+                Arrays.sort(offsets);
+                for(long offset : offsets){
+                    if(co64)
+                        out.putLong(offset);
+                    else
+                        out.putInt((int)offset);
+                }
+            }
+            return out.array();
+        }
+        
+        private static void header(ByteBuffer out, int size, String type){
+            out.putInt(size).put(ascii(type));
+        }
+        
+        private static byte[] ascii(String s){
+            byte[] ret = new byte[s.length()];
+            for(int i = 0; i < ret.length; i++)
+                ret[i] = (byte)s.charAt(i);
+            return ret;
+        }
+    
+}
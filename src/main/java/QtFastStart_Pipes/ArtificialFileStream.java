@@ -26,75 +26,203 @@ package QtFastStart_Pipes;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  *
  * @author SkibbleBip
- * Represents a "fake" FileChannel to read and write to, where all data is contained in a byte array
- * instead of an actual file device
+ * Represents a "fake" FileChannel to read and write to, where all data is contained in byte arrays
+ * instead of an actual file device. Positions and sizes are 64-bit; data past the size of one Java
+ * array is held in several fixed-span segments
  */
 public class ArtificialFileStream {
     
-        private int position;
-        private byte[] array;
+        private long position;
+        private long size;
+        /* byte at position p lives in segments[p >>> shift][p & mask]; every segment but the last spans
+         * exactly 1 << shift bytes, the last one may be shorter and grows until it does */
+        private byte[][] segments;
+        private int shift;
+        private long mask;
+        // pool the segments were taken from, if any; such segments all span 1 << shift bytes
+        private SegmentPool pool = null;
         /**
          * 
          * @return Position currently processing from
          */
-        public int position(){return this.position;}
+        public long position(){return this.position;}
         /**
          * 
-         * @return the total size of the internal byte array contained in this ArtificialFileStream
+         * @return the total number of bytes contained in this ArtificialFileStream
          */
-        public int size(){return this.array.length;}
+        public long size(){return this.size;}
         /**
          * 
+         * @return the number of bytes the internal byte arrays can hold before they have to grow
+         */
+        public long capacity(){
+            int last = this.segments.length - 1;
+            return ((long)last << this.shift) + this.segments[last].length;
+        }
+        /**
+         * Returns the internal byte array without copying when the stream is held in one array that it
+         * fills exactly, which is always the case for streams presized to their final length of up to 1 GiB.
          * @return internal byte array contained in the ArtificialFileStream
+         * @throws BadFileSizeException if the stream is too big for one byte array
          */
-        public byte[] getByteArray(){return this.array;}
+        public byte[] getByteArray() throws BadFileSizeException{
+            if(this.pool == null && this.segments.length == 1 && this.segments[0].length == this.size)
+                return this.segments[0];
+            if(this.size > MAX_ARRAY_SIZE)
+                throw new BadFileSizeException("Stream of " + this.size + " bytes is bigger than the supported array size " + MAX_ARRAY_SIZE);
+            
+            byte[] array = new byte[(int)this.size];
+            get(0, ByteBuffer.wrap(array));
+            // the content now lives in the array, so the pooled segments go back without emptying the stream
+            giveBack();
+            this.segments = new byte[][]{array};
+            this.shift = ARRAY_SHIFT;
+            this.mask = (1L << ARRAY_SHIFT) - 1;
+            return array;
+        }
         
         /**
          * 
          * @param newPosition sets the current processing position
          * @return this ArtificialFileStream
          */
-        public ArtificialFileStream position(int newPosition){
+        public ArtificialFileStream position(long newPosition){
             this.position = newPosition;
             return this;
         }
         
 
         /**
-         * 
+         * Reads the whole input stream into segments, so inputs bigger than one byte array are supported
          * @param is inputstream to create the ArtificialFileStream from
          * @throws IOException
          * @throws QtFastStart_Pipes.ArtificialFileStream.BadFileSizeException 
          */
         public ArtificialFileStream(InputStream is) throws IOException, BadFileSizeException{
-            this.array = is.readAllBytes();
-            this.position = 0;
-            
-            if(this.array.length < 0 )
-                throw new BadFileSizeException("File size is negative");
-            if(this.array.length > Integer.MAX_VALUE)
-                throw new BadFileSizeException("File is bigger than the supported size " + Integer.MAX_VALUE);
+            this(is, -1, Long.MAX_VALUE);
+        }
+        /**
+         * Reads the whole input stream, stopping as soon as it turns out to be longer than allowed.
+         * A known length is read into 1 GiB segments, the last one sized to what is left, so nothing is copied
+         * to grow them and a length of up to 1 GiB ends up in exactly one array
+         * @param is inputstream to create the ArtificialFileStream from
+         * @param expectedLength length the stream is expected to have, such as a Content-Length or a file size,
+         * or -1 if unknown; a stream that turns out to be longer is still read, up to the limit, its last segment
+         * growing to 1 GiB before more segments are added
+         * @param limit maximum number of bytes to accept
+         * @throws IOException
+         * @throws QtFastStart_Pipes.ArtificialFileStream.BadFileSizeException if the expected length or the
+         * stream exceeds the limit
+         */
+        public ArtificialFileStream(InputStream is, long expectedLength, long limit) throws IOException, BadFileSizeException{
+            this(is, expectedLength, limit, null);
+        }
         
+        /**
+         * @param pool pool to take fixed-size segments from instead of sizing the arrays to the stream, or null
+         * @see #ArtificialFileStream(InputStream, long, long)
+         */
+        /* package */
+        ArtificialFileStream(InputStream is, long expectedLength, long limit, SegmentPool pool) throws IOException, BadFileSizeException{
+            this();
+            if(limit < 0)
+                throw new IllegalArgumentException("limit " + limit + " is negative");
+            if(expectedLength > limit)
+                throw new BadFileSizeException("Declared length " + expectedLength + " exceeds the limit of " + limit + " bytes");
+            if(pool != null){
+                this.pool = pool;
+                this.segments = new byte[][]{pool.take()};
+                this.shift = pool.shift();
+                this.mask = (1L << this.shift) - 1;
+            }
+            else if(expectedLength > 0){
+                // segments rather than one array, so a stream longer than declared keeps growing by segments
+                this.segments = segments(expectedLength);
+            }
+            
+            while(true){
+                if(this.size == limit){
+                    if(is.read() < 0)
+                        break;
+                    throw new BadFileSizeException("Stream exceeds the limit of " + limit + " bytes");
+                }
+                if(this.size == capacity()){
+                    // a stream of the expected length fills its array exactly, so check for more before growing it
+                    int b = is.read();
+                    if(b < 0)
+                        break;
+                    ensureCapacity(this.size + 1);
+                    this.segments[(int)(this.size >>> this.shift)][(int)(this.size & this.mask)] = (byte)b;
+                    this.size++;
+                    continue;
+                }
+                byte[] segment = this.segments[(int)(this.size >>> this.shift)];
+                int offset = (int)(this.size & this.mask);
+                int n = is.read(segment, offset, (int)Math.min(segment.length - offset, limit - this.size));
+                if(n < 0)
+                    break;
+                this.size += n;
+            }
         }
         /**
          * 
          * @param b byte array
          */
         public ArtificialFileStream(byte[] b){
-            this.array = b;
+            this.segments = new byte[][]{b};
+            this.shift = ARRAY_SHIFT;
+            this.mask = (1L << ARRAY_SHIFT) - 1;
+            this.size = b.length;
             this.position = 0;
         }
         /**
          * 
          */
         public ArtificialFileStream(){
-            this.array = new byte[0];
+            this.segments = new byte[][]{new byte[0]};
+            this.shift = SEGMENT_SHIFT;
+            this.mask = (1L << SEGMENT_SHIFT) - 1;
+            this.size = 0;
+            this.position = 0;
+        }
+        /**
+         * Creates an empty ArtificialFileStream that can be written up to capacity bytes
+         * without reallocating its internal byte arrays
+         * @param capacity number of bytes to reserve up front
+         */
+        public ArtificialFileStream(long capacity){
+            if(capacity < 0)
+                throw new IllegalArgumentException("capacity " + capacity + " is negative");
+            
+            if(capacity <= MAX_ARRAY_SIZE){
+                this.segments = new byte[][]{new byte[(int)capacity]};
+                this.shift = ARRAY_SHIFT;
+            }
+            else{
+                this.segments = segments(capacity);
+                this.shift = SEGMENT_SHIFT;
+            }
+            this.mask = (1L << this.shift) - 1;
+            this.size = 0;
             this.position = 0;
+        }
         
+        /**
+         * 
+         * @param capacity number of bytes to hold, at least 1
+         * @return 1 GiB segments holding exactly capacity bytes, the last one possibly shorter
+         */
+        private static byte[][] segments(long capacity){
+            int count = (int)((capacity + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+            byte[][] segments = new byte[count][];
+            for(int i = 0; i < count; i++)
+                segments[i] = new byte[(int)Math.min(SEGMENT_SIZE, capacity - ((long)i << SEGMENT_SHIFT))];
+            return segments;
         }
         
         /*Methods*/
@@ -109,21 +237,10 @@ public class ArtificialFileStream {
             
             //buffer = buffer.clear();
             
-            int q;
-            
-            if(this.array.length - this.position < buffer.capacity())
-                q = this.array.length - this.position;
-            else
-                q = buffer.remaining();
-            
-            byte[] tmp = new byte[q];
-            
+            int q = get(this.position, buffer);
             
-            //                   src           srcPos   dest   destPos    length
-            System.arraycopy(this.array, this.position, tmp,     0,         q);
-            
-            buffer = buffer.put(tmp);
-            this.position += tmp.length;
+            if(q > 0)
+                this.position += q;
             return buffer;
         
         }
@@ -135,51 +252,86 @@ public class ArtificialFileStream {
          * @return resulting byte buffer that was read
          * @throws QtFastStart_Pipes.ArtificialFileStream.BadFilePositionException 
          */
-        public ByteBuffer read(ByteBuffer buffer, int position) throws BadFilePositionException{
+        public ByteBuffer read(ByteBuffer buffer, long position) throws BadFilePositionException{
             
             //buffer = buffer.clear();
-            int q;
             
-            if(this.array.length < position)
-                throw new BadFilePositionException("Position "+ position + " is bigger than the size "+ this.array.length);
+            if(this.size < position)
+                throw new BadFilePositionException("Position "+ position + " is bigger than the size "+ this.size);
             
             if(position < 0)
                 throw new BadFilePositionException("Position "+ position + " is negative");
             
-            if(this.array.length - position < buffer.capacity())
-                q = this.array.length - position;
-            else
-                q = buffer.remaining();
-            
-            byte[] tmp = new byte[/*buffer.remaining()*/q];
-            
+            int q = get(position, buffer);
             
-            System.arraycopy(this.array, position, tmp,     0,         q);
-            
-            buffer = buffer.put(tmp);
-            
-            this.position+=q;
+            if(q > 0)
+                this.position += q;
             
             return buffer;
         
         }
         
         /**
-         * 
+         * Copies bytes at the given position into the buffer without moving the processing position
+         * @param position position to read from
+         * @param buffer byte buffer to fill, up to its remaining bytes
+         * @return number of bytes copied, or -1 if position is at or past the end of the stream
+         */
+        /* package */
+        int get(long position, ByteBuffer buffer){
+            if(position >= this.size)
+                return -1;
+            
+            int q = (int)Math.min(buffer.remaining(), this.size - position);
+            int done = 0;
+            while(done < q){
+                byte[] segment = this.segments[(int)(position >>> this.shift)];
+                int offset = (int)(position & this.mask);
+                int n = Math.min(q - done, segment.length - offset);
+                buffer.put(segment, offset, n);
+                position += n;
+                done += n;
+            }
+            return q;
+        }
+        
+        /**
+         * Hands out the given range as buffers that share memory with this stream, one per segment it spans
+         * @param position position of the first byte
+         * @param count number of bytes
+         * @return buffers covering the range in order
+         */
+        /* package */
+        ByteBuffer[] slices(long position, long count){
+            if(position < 0 || count < 0 || position + count > this.size)
+                throw new IndexOutOfBoundsException("range " + position + "+" + count + " is outside of the size " + this.size);
+            
+            if(count == 0)
+                return new ByteBuffer[0];
+            
+            int first = (int)(position >>> this.shift);
+            int last = (int)((position + count - 1) >>> this.shift);
+            ByteBuffer[] ret = new ByteBuffer[last - first + 1];
+            for(int i = 0; i < ret.length; i++){
+                byte[] segment = this.segments[first + i];
+                int offset = (int)(position & this.mask);
+                int n = (int)Math.min(count, segment.length - offset);
+                ret[i] = ByteBuffer.wrap(segment, offset, n).slice();
+                position += n;
+                count -= n;
+            }
+            return ret;
+        }
+        
+        /**
+         * Appends the remaining bytes of the buffer to the end of the stream
          * @param buffer input byte buffer
          * @return number of bytes read
          */
         public int write(ByteBuffer buffer){
-            byte[] tmp = new byte[this.array.length + buffer.capacity()];
-            byte[] buff = buffer.array();
-            
-            
-            System.arraycopy(this.array, 0, tmp, 0, this.array.length);
-            System.arraycopy(buff, 0, tmp, this.array.length, buff.length);
-            
-            this.array = tmp;
-            
-            return buff.length;
+            int q = put(this.size, buffer);
+            this.size += q;
+            return q;
         
         }
         
@@ -191,37 +343,18 @@ public class ArtificialFileStream {
          * @return number of bytes read
          * @throws QtFastStart_Pipes.ArtificialFileStream.BadFilePositionException 
          */
-        public int write(ByteBuffer buffer, int position) throws BadFilePositionException{
+        public int write(ByteBuffer buffer, long position) throws BadFilePositionException{
             
             
             if(position < 0)
                 throw new BadFilePositionException("Position " + position + " is negative");
             
-            if(position > this.array.length){
-                byte[] tmp = new byte[position];
-                System.arraycopy(this.array, 0, tmp, 0, this.array.length);
-                System.arraycopy(buffer.array(), 0, tmp, position - buffer.capacity(), buffer.capacity());
-                
-                this.array = tmp;
-                return buffer.capacity();
-                
-            }
-            
-            if(position + buffer.capacity() > this.array.length){
-                byte[] tmp = new byte[position+buffer.capacity()];
-                
-                System.arraycopy(this.array, 0, tmp, 0, this.array.length);
-                System.arraycopy(buffer.array(), 0, tmp, position, buffer.capacity());
-                
-                this.array = tmp;
-                
-                return buffer.capacity();
-                
-            }
+            int q = put(position, buffer);
             
-            System.arraycopy(buffer.array(), 0, this.array, position, buffer.capacity());
+            if(position + q > this.size)
+                this.size = position + q;
             
-            return buffer.capacity();
+            return q;
             
         
         }
@@ -234,22 +367,116 @@ public class ArtificialFileStream {
          * @return number of bytes transferred
          * @throws QtFastStart_Pipes.ArtificialFileStream.BadFilePositionException 
          */
-        public int transferTo(int position, int count, ArtificialFileStream target) throws BadFilePositionException{
+        public long transferTo(long position, long count, ArtificialFileStream target) throws BadFilePositionException{
             if(count < 0)
                 throw new BadFilePositionException("count "+count+" is negative");
+            if(position < 0 || position > this.size)
+                throw new BadFilePositionException("Position "+ position + " is outside of the size "+ this.size);
+            
+            long q = Math.min(count, this.size - position);
+            long done = 0;
+            long targetPosition = target.size;
+            
+            target.ensureCapacity(targetPosition + q);
+            // copy segment to segment, without a temporary buffer or wrapper, so each byte is copied only once
+            while(done < q){
+                byte[] segment = this.segments[(int)(position >>> this.shift)];
+                int offset = (int)(position & this.mask);
+                byte[] targetSegment = target.segments[(int)(targetPosition >>> target.shift)];
+                int targetOffset = (int)(targetPosition & target.mask);
+                int n = (int)Math.min(q - done, Math.min(segment.length - offset, targetSegment.length - targetOffset));
+                System.arraycopy(segment, offset, targetSegment, targetOffset, n);
+                position += n;
+                targetPosition += n;
+                done += n;
+            }
+            target.size = targetPosition;
+            return q;
+        
+        }
+        
+        /**
+         * Copies the remaining bytes of the buffer to the given position, growing the stream as needed
+         * @return number of bytes copied
+         */
+        private int put(long position, ByteBuffer buffer){
+            int q = buffer.remaining();
+            
+            ensureCapacity(position + q);
+            int done = 0;
+            while(done < q){
+                byte[] segment = this.segments[(int)(position >>> this.shift)];
+                int offset = (int)(position & this.mask);
+                int n = Math.min(q - done, segment.length - offset);
+                buffer.get(segment, offset, n);
+                position += n;
+                done += n;
+            }
+            return q;
+        }
+        
+        /**
+         * Grows the internal byte arrays so they can hold at least minCapacity bytes. The last segment
+         * grows geometrically until it spans a whole segment, after which new segments are added without
+         * copying anything. Streams presized with {@link #ArtificialFileStream(long)} never grow at all.
+         * @param minCapacity number of bytes the stream must be able to hold
+         */
+        private void ensureCapacity(long minCapacity){
+            long span = 1L << this.shift;
             
-            ByteBuffer tmp = ByteBuffer.allocate(count);
-            
-            ByteBuffer ret = this.read(tmp, position);
-            
-            
-            target.write(ret);
-            
-            return ret.capacity();
+            while(capacity() < minCapacity){
+                int last = this.segments.length - 1;
+                long lastLength = this.segments[last].length;
+                long maxLength = Math.min(span, MAX_ARRAY_SIZE);
+                
+                if(lastLength < maxLength){
+                    long needed = minCapacity - ((long)last << this.shift);
+                    long newLength = Math.min(maxLength, Math.max(needed, Math.max(lastLength << 1, MIN_GROWTH)));
+                    this.segments[last] = Arrays.copyOf(this.segments[last], (int)newLength);
+                }
+                else if(lastLength == span){
+                    this.segments = Arrays.copyOf(this.segments, last + 2);
+                    this.segments[last + 1] = this.pool != null ? this.pool.take() : new byte[0];
+                }
+                else
+                    throw new OutOfMemoryError("ArtificialFileStream cannot grow beyond " + MAX_ARRAY_SIZE + " bytes");
+            }
+        }
         
+        /**
+         * Gives the segments of a stream read into pooled segments back to their pool and empties the stream.
+         * Nothing handed out by the stream, such as its slices, may be used afterwards
+         */
+        /* package */
+        void release(){
+            if(this.pool == null)
+                return;
+            giveBack();
+            this.segments = new byte[][]{new byte[0]};
+            this.size = 0;
+            this.position = 0;
         }
         
+        /**
+         * Gives the segments back to the pool they were taken from, leaving size and position alone; the caller
+         * replaces the segments right after
+         */
+        private void giveBack(){
+            if(this.pool == null)
+                return;
+            for(byte[] segment : this.segments)
+                this.pool.give(segment);
+            this.pool = null;
+        }
         
+        // some VMs reserve header words in an array
+        private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+        // a single array addresses the whole int range
+        private static final int ARRAY_SHIFT = 31;
+        // segments of 1 GiB for streams that may outgrow a single array
+        private static final int SEGMENT_SHIFT = 30;
+        private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+        private static final int MIN_GROWTH = 8192;
         
         
         /*Artificial file exceptions*/
@@ -0,0 +1,474 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import static QtFastStart_Pipes.QtFastStart.printf;
+import static QtFastStart_Pipes.QtFastStart.sDEBUG;
+import QtFastStart_Pipes.QtFastStart.MalformedFileException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author SkibbleBip
+ * One asynchronous fast start of a file on disk. Every read and write is issued on an AsynchronousFileChannel
+ * and the next step runs in its completion handler, so no thread waits on I/O: the top level atoms are walked
+ * one header read at a time, the moov atom is read and then patched on the parallel patch pool of the options or
+ * the common pool, off the I/O threads of the channels, the ftyp and moov atoms are written and the
+ * media data is copied with {@value #CHUNKS_IN_FLIGHT} chunks of {@value #CHUNK_SIZE} bytes in flight,
+ * each written as soon as it has been read. Checksums are computed by the job itself and returned with the seek
+ * index in its result; chunks written out of order wait, holding their buffer, until the ones in front of them
+ * were added
+ */
+final class AsyncFastStart {
+    
+        static final int CHUNK_SIZE = 1024 * 1024;
+        static final int CHUNKS_IN_FLIGHT = 4;
+    
+        /**
+         * A step of the job that runs once an I/O operation completed
+         */
+        private interface Step<T> {
+                void run(T value) throws Exception;
+        }
+        
+        /**
+         * A step of the job that runs on a pool thread
+         */
+        private interface Task {
+                void run() throws Exception;
+        }
+        
+        private final Path inPath;
+        private final Path outPath;
+        private final FastStartOptions options;
+        private final Instrumentation metrics;
+        private final CompletableFuture<FastStartResult> result = new CompletableFuture<>();
+        private AsynchronousFileChannel in;
+        private AsynchronousFileChannel out;
+        private long inputSize;
+        private MoovCache.Key cacheKey;
+        private final Checksums checksums;
+        private SeekIndex seekIndex;
+        
+        /* checksum state of the copy, guarded by pendingChunks */
+        private final Map<Long, WrittenChunk> pendingChunks = new HashMap<>();
+        private long checksummed = 0;
+        
+        /* layout pass state, only touched by one handler at a time */
+        private final ByteBuffer atomBytes = ByteBuffer.allocate(AtomWalk.HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        private AtomWalk walk;
+        private long scanStart;
+        
+        private AsyncFastStart(Path in, Path out, FastStartOptions options){
+            this.inPath = in;
+            this.outPath = out;
+            this.options = options;
+            this.metrics = new Instrumentation(options);
+            this.checksums = Checksums.of(options.checksums());
+        }
+        
+        /**
+         * Starts a job
+         * @param in path of the input file
+         * @param out path of the output file, created or truncated; not written if input file is already fast start
+         * @param options settings to process the input with
+         * @return future completed with the result of the job, or with the IOException or QtFastStartException
+         * it failed with
+         */
+        static CompletableFuture<FastStartResult> start(Path in, Path out, FastStartOptions options){
+            AsyncFastStart job = new AsyncFastStart(in, out, options);
+            try{
+                job.in = AsynchronousFileChannel.open(in, StandardOpenOption.READ);
+                job.inputSize = job.in.size();
+                
+                MoovCache cache = options.moovCache();
+                if(cache != null){
+                    job.cacheKey = MoovCache.key(in, job.inputSize, options);
+                    FastStartLayout layout = cache.get(job.cacheKey);
+                    if(layout != null){
+                        if(sDEBUG)
+                            printf("using cached moov atom");
+                        job.seekIndex = QtFastStart.indexMoov(layout, options);
+                        job.write(layout);
+                        return job.result;
+                    }
+                }
+                
+                job.walk = new AtomWalk(job.inputSize);
+                job.scanStart = job.metrics.now();
+                job.nextAtom(0);
+            }
+            catch(Throwable ex){
+                job.fail(ex);
+            }
+            return job.result;
+        }
+        
+        /* layout pass, the AtomWalk QtFastStart.layout drives too */
+        
+        private void nextAtom(long position){
+            read(this.atomBytes.clear(), position, this::atomHeaderRead);
+        }
+        
+        private void atomHeaderRead(ByteBuffer header) throws Exception{
+            long position = this.walk.next(header);
+            if(position != AtomWalk.DONE){
+                nextAtom(position);
+                return;
+            }
+            
+            this.metrics.atomScanFinished(this.walk.atomCount(), this.scanStart);
+            if(!this.walk.moovFound()){
+                if(!this.walk.fastStart())
+                    this.metrics.unwalkable();
+                alreadyFastStart();
+                return;
+            }
+            if(this.walk.ftypOffset() < 0){
+                loadMoov(null);
+                return;
+            }
+            int ftypAtomSize = this.walk.ftypSize();
+            read(ByteBuffer.allocate(ftypAtomSize).order(ByteOrder.BIG_ENDIAN), this.walk.ftypOffset(), ftyp -> {
+                if(ftyp.limit() < ftypAtomSize){
+                    this.metrics.unwalkable();
+                    alreadyFastStart();
+                }
+                else
+                    loadMoov(ftyp);
+            });
+        }
+        
+        private void alreadyFastStart(){
+            if(this.checksums != null){
+                // the input is the output, read once to checksum it
+                checksumInput(ByteBuffer.allocateDirect(CHUNK_SIZE), 0);
+                return;
+            }
+            unchanged();
+        }
+        
+        private void checksumInput(ByteBuffer buffer, long position){
+            read(buffer.clear(), position, block -> {
+                this.checksums.update(block);
+                if(block.limit() == block.capacity())
+                    checksumInput(buffer, position + block.limit());
+                else
+                    unchanged();
+            });
+        }
+        
+        private void unchanged(){
+            this.metrics.finished(false);
+            succeed(new FastStartResult(false, this.inputSize, 0, this.checksums, null));
+        }
+        
+        private void loadMoov(ByteBuffer ftypAtom){
+            int moovAtomSize = this.walk.moovSize();
+            long lastOffset = this.walk.moovOffset();
+            long trailingOffset = lastOffset + moovAtomSize;
+            long endOffset = Math.max(trailingOffset, this.inputSize);
+            long loadStart = this.metrics.now();
+            ByteBuffer moovAtom = ByteBuffer.allocate(moovAtomSize).order(ByteOrder.BIG_ENDIAN);
+            read(moovAtom, lastOffset, moov -> {
+                if(moov.limit() != moovAtomSize)
+                    throw new MalformedFileException("failed to read moov atom");
+                this.metrics.moovLoaded(moovAtomSize, loadStart);
+                
+                compute(() -> {
+                    OffsetPatcher patcher = new OffsetPatcher(this.options);
+                    ByteBuffer patched = QtFastStart.patchMoov(moov, endOffset > trailingOffset ? trailingOffset : -1, patcher, this.options, this.metrics);
+                    this.seekIndex = QtFastStart.indexMoov(patcher.seekIndex(), this.options);
+                    patched.rewind();
+                    
+                    FastStartLayout layout = new FastStartLayout(ftypAtom, patched, this.walk.startOffset(), lastOffset, trailingOffset, endOffset, this.seekIndex);
+                    if(this.cacheKey != null)
+                        this.options.moovCache().put(this.cacheKey, layout);
+                    write(layout);
+                });
+            });
+        }
+        
+        /* output pass */
+        
+        private void write(FastStartLayout layout) throws IOException{
+            // the copy is timed from the first byte written, as it reports the whole output
+            long copyStart = this.metrics.now();
+            this.out = AsynchronousFileChannel.open(this.outPath, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            
+            ByteBuffer ftyp = layout.ftypAtom();
+            if(this.checksums != null){
+                if(ftyp != null)
+                    this.checksums.update(ftyp);
+                this.checksums.update(layout.moovAtom());
+            }
+            if(ftyp == null){
+                writeMoov(layout, 0, copyStart);
+                return;
+            }
+            if(sDEBUG)
+                printf("writing ftyp atom...");
+            write(ftyp, 0, done -> writeMoov(layout, ftyp.limit(), copyStart));
+        }
+        
+        private void writeMoov(FastStartLayout layout, long position, long copyStart){
+            if(sDEBUG)
+                printf("writing moov atom...");
+            write(layout.moovAtom(), position, done -> copy(layout, copyStart));
+        }
+        
+        private void copy(FastStartLayout layout, long copyStart){
+            if(sDEBUG)
+                printf("copying rest of file...");
+            long rest = layout.restSize();
+            int chunks = (int)Math.min(CHUNKS_IN_FLIGHT, (rest + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            if(chunks == 0){
+                copied(layout, copyStart);
+                return;
+            }
+            
+            AtomicLong next = new AtomicLong();
+            AtomicInteger running = new AtomicInteger(chunks);
+            for(int i = 0; i < chunks; i++)
+                copyChunk(layout, ByteBuffer.allocateDirect(CHUNK_SIZE), next, running, copyStart);
+        }
+        
+        /**
+         * Copies the next chunk nobody claimed yet with the given buffer, then the one after that,
+         * until the media data runs out
+         */
+        private void copyChunk(FastStartLayout layout, ByteBuffer buffer, AtomicLong next, AtomicInteger running, long copyStart){
+            if(this.result.isDone())
+                return;
+            
+            long rest = layout.restSize();
+            long offset = next.getAndAdd(CHUNK_SIZE);
+            if(offset >= rest){
+                if(running.decrementAndGet() == 0)
+                    copied(layout, copyStart);
+                return;
+            }
+            
+            int n = (int)Math.min(CHUNK_SIZE, rest - offset);
+            buffer.clear().limit(n);
+            fill(layout, buffer, offset, 0, chunk -> 
+                write(chunk, layout.headerSize() + offset, done ->
+                    checksummed(offset, chunk, () -> copyChunk(layout, buffer, next, running, copyStart))));
+        }
+        
+        /**
+         * Adds a written chunk to the checksums once all chunks in front of it were added, then runs the step
+         * that reuses its buffer, and those of the chunks after it that were waiting for it
+         * @param offset offset of the chunk in the output after the header
+         */
+        private void checksummed(long offset, ByteBuffer chunk, Runnable then){
+            if(this.checksums == null){
+                then.run();
+                return;
+            }
+            
+            List<Runnable> ready = new ArrayList<>();
+            synchronized(this.pendingChunks){
+                this.pendingChunks.put(offset, new WrittenChunk(chunk, then));
+                WrittenChunk written;
+                while((written = this.pendingChunks.remove(this.checksummed)) != null){
+                    this.checksums.update(written.chunk.rewind());
+                    this.checksummed += written.chunk.limit();
+                    ready.add(written.then);
+                }
+            }
+            for(Runnable step : ready)
+                step.run();
+        }
+        
+        private static final class WrittenChunk {
+                final ByteBuffer chunk;
+                final Runnable then;
+                
+                WrittenChunk(ByteBuffer chunk, Runnable then){
+                    this.chunk = chunk;
+                    this.then = then;
+                }
+        }
+        
+        /**
+         * Reads a chunk of the output after the header from the input, in two reads when it spans the end of the
+         * media data and the start of the atoms after the moov atom
+         * @param done number of bytes of the chunk already read
+         */
+        private void fill(FastStartLayout layout, ByteBuffer buffer, long offset, int done, Step<ByteBuffer> then){
+            int count = buffer.limit();
+            int n = (int)Math.min(count - done, layout.contiguous(offset + done));
+            ByteBuffer part = buffer.duplicate();
+            part.limit(done + n).position(done);
+            read(part.slice(), layout.inputOffset(offset + done), piece -> {
+                if(piece.limit() != n)
+                    throw new IOException("input ended " + (layout.restSize() - offset - done - piece.limit()) + " bytes before the expected end");
+                if(done + n < count)
+                    fill(layout, buffer, offset, done + n, then);
+                else
+                    then.run(buffer);
+            });
+        }
+        
+        private void copied(FastStartLayout layout, long copyStart){
+            this.metrics.dataCopied(layout.outputSize(), copyStart);
+            this.metrics.finished(true);
+            succeed(new FastStartResult(true, this.inputSize, layout.outputSize(), this.checksums, this.seekIndex));
+        }
+        
+        /**
+         * Runs a CPU bound step, such as patching a large moov atom, on the parallel patch pool of the options or
+         * the common pool, so it does not hold up the I/O threads that run the completion handlers
+         */
+        private void compute(Task task){
+            Executor executor = this.options.parallelPatchPool() != null ? this.options.parallelPatchPool() : ForkJoinPool.commonPool();
+            try{
+                executor.execute(() -> {
+                    try{
+                        task.run();
+                    }
+                    catch(Throwable ex){
+                        fail(ex);
+                    }
+                });
+            }
+            catch(RejectedExecutionException ex){
+                fail(ex);
+            }
+        }
+        
+        /* I/O */
+        
+        /**
+         * Reads until the buffer is full or the input ends, then runs the step with the flipped buffer
+         */
+        private void read(ByteBuffer buffer, long from, Step<ByteBuffer> then){
+            this.in.read(buffer, from, null, new CompletionHandler<Integer, Void>(){
+                private long at = from;
+                
+                @Override
+                public void completed(Integer n, Void attachment){
+                    try{
+                        if(n >= 0 && buffer.hasRemaining()){
+                            this.at += n;
+                            in.read(buffer, this.at, null, this);
+                            return;
+                        }
+                        buffer.flip();
+                        then.run(buffer);
+                    }
+                    catch(Throwable ex){
+                        fail(ex);
+                    }
+                }
+                
+                @Override
+                public void failed(Throwable ex, Void attachment){
+                    fail(ex);
+                }
+            });
+        }
+        
+        /**
+         * Writes the whole buffer, then runs the step
+         */
+        private void write(ByteBuffer buffer, long from, Step<Void> then){
+            this.out.write(buffer, from, null, new CompletionHandler<Integer, Void>(){
+                private long at = from;
+                
+                @Override
+                public void completed(Integer n, Void attachment){
+                    try{
+                        if(buffer.hasRemaining()){
+                            this.at += n;
+                            out.write(buffer, this.at, null, this);
+                            return;
+                        }
+                        then.run(null);
+                    }
+                    catch(Throwable ex){
+                        fail(ex);
+                    }
+                }
+                
+                @Override
+                public void failed(Throwable ex, Void attachment){
+                    fail(ex);
+                }
+            });
+        }
+        
+        /* completion */
+        
+        private synchronized void succeed(FastStartResult value){
+            Throwable closeFailure = close();
+            if(closeFailure != null){
+                fail(closeFailure);
+                return;
+            }
+            this.result.complete(value);
+        }
+        
+        private synchronized void fail(Throwable ex){
+            if(this.result.isDone())
+                return;
+            close();
+            this.metrics.failed(ex);
+            this.result.completeExceptionally(ex);
+        }
+        
+        private synchronized Throwable close(){
+            Throwable failure = null;
+            for(AsynchronousFileChannel channel : new AsynchronousFileChannel[]{this.in, this.out}){
+                if(channel == null || !channel.isOpen())
+                    continue;
+                try{
+                    channel.close();
+                }
+                catch(IOException ex){
+                    failure = ex;
+                }
+            }
+            return failure;
+        }
+    
+}
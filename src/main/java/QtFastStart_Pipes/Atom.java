@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import QtFastStart_Pipes.QtFastStart.MalformedFileException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * @author SkibbleBip
+ * An atom inside a moov atom held in memory. Parsing only descends into the container atoms that lead
+ * to the sample tables, so payloads such as udta or stsd are skipped as a whole and can never be
+ * mistaken for a stco or co64 atom
+ */
+class Atom {
+    
+        static final int MOOV = fourCc("moov");
+        static final int TRAK = fourCc("trak");
+        static final int MDIA = fourCc("mdia");
+        static final int MINF = fourCc("minf");
+        static final int STBL = fourCc("stbl");
+        static final int STCO = fourCc("stco");
+        static final int CO64 = fourCc("co64");
+    
+        final int type;
+        final int offset; // offset of the atom header in the moov buffer
+        final int size;
+        final int headerSize;
+        final Atom parent;
+        final List<Atom> children;
+        
+        private Atom(int type, int offset, int size, int headerSize, Atom parent, boolean container){
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            this.headerSize = headerSize;
+            this.parent = parent;
+            this.children = container ? new ArrayList<>() : Collections.emptyList();
+        }
+        
+        /**
+         * 
+         * @return offset of the first byte after the atom header
+         */
+        int payloadOffset(){return this.offset + this.headerSize;}
+        /**
+         * 
+         * @return offset of the first byte after the atom
+         */
+        int end(){return this.offset + this.size;}
+        
+        /**
+         * Parses the atom tree of a whole moov atom
+         * @param moov buffer holding the moov atom from index 0 to its limit
+         * @return the moov atom, with its container children parsed
+         * @throws MalformedFileException if an atom does not fit in its parent
+         */
+        static Atom parseMoov(ByteBuffer moov) throws MalformedFileException{
+            moov = moov.duplicate().order(ByteOrder.BIG_ENDIAN);
+            Atom root = readAtom(moov, 0, moov.limit(), null);
+            if(root == null || root.type != MOOV)
+                throw new MalformedFileException("buffer does not start with a moov atom");
+            return root;
+        }
+        
+        /**
+         * Collects every atom of the given type below this atom, in file order
+         * @param type fourcc of the atoms to find
+         * @param out list to add the atoms to
+         * @return out
+         */
+        List<Atom> findAll(int type, List<Atom> out){
+            for(Atom child : this.children){
+                if(child.type == type)
+                    out.add(child);
+                child.findAll(type, out);
+            }
+            return out;
+        }
+        
+        /**
+         * 
+         * @param type fourcc of the atom to find
+         * @return first direct child of the given type, or null
+         */
+        Atom child(int type){
+            for(Atom child : this.children)
+                if(child.type == type)
+                    return child;
+            return null;
+        }
+        
+        private static Atom readAtom(ByteBuffer moov, int offset, int end, Atom parent) throws MalformedFileException{
+            if(end - offset < 8)
+                return null;
+            
+            long size = QtFastStart.uint32ToLong(moov.getInt(offset));
+            int type = moov.getInt(offset + 4);
+            int headerSize = 8;
+            if(size == 1){
+                /* 64-bit special case */
+                if(end - offset < 16)
+                    throw new MalformedFileException("malformed atom");
+                size = moov.getLong(offset + 8);
+                headerSize = 16;
+            } else if(size == 0){
+                // extends to the end of its parent
+                size = end - offset;
+            }
+            if(size < headerSize || size > end - offset)
+                throw new MalformedFileException("bad atom size");
+            
+            boolean container = isContainer(type);
+            Atom atom = new Atom(type, offset, (int)size, headerSize, parent, container);
+            for(int child = atom.payloadOffset(); container && child < atom.end(); ){
+                Atom c = readAtom(moov, child, atom.end(), atom);
+                if(c == null)
+                    break; // trailing padding shorter than an atom header
+                atom.children.add(c);
+                child = c.end();
+            }
+            return atom;
+        }
+        
+        private static boolean isContainer(int type){
+            return type == MOOV || type == TRAK || type == MDIA || type == MINF || type == STBL;
+        }
+        
+        private static int fourCc(String s){
+            return (s.charAt(0) << 24) | (s.charAt(1) << 16) | (s.charAt(2) << 8) | s.charAt(3);
+        }
+    
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ *
+ * @author SkibbleBip
+ * Random access source of atoms the layout pass of QtFastStart reads from, so the same code can walk
+ * an ArtificialFileStream, a file on disk or any other seekable channel
+ */
+interface AtomInput {
+    
+        /**
+         * 
+         * @return total size of the input in bytes
+         * @throws IOException 
+         */
+        long size() throws IOException;
+        
+        /**
+         * Reads bytes at the given position into the buffer, without changing any shared position
+         * @param buffer buffer to read into, up to its remaining bytes
+         * @param position position in the input to read from
+         * @return number of bytes read, possibly less than remaining, or -1 at the end of the input
+         * @throws IOException 
+         */
+        int read(ByteBuffer buffer, long position) throws IOException;
+        
+        /**
+         * 
+         * @param stream in-memory input
+         * @return AtomInput reading from the stream
+         */
+        static AtomInput of(ArtificialFileStream stream){
+            return new AtomInput(){
+                @Override
+                public long size(){return stream.size();}
+                @Override
+                public int read(ByteBuffer buffer, long position){return stream.get(position, buffer);}
+            };
+        }
+        
+        /**
+         * 
+         * @param buffer heap, direct or mapped buffer holding the input from index 0 to its limit
+         * @return AtomInput copying out of the buffer, without moving its position
+         */
+        static AtomInput of(ByteBuffer buffer){
+            return new AtomInput(){
+                @Override
+                public long size(){return buffer.limit();}
+                @Override
+                public int read(ByteBuffer dst, long position){
+                    if(position >= buffer.limit())
+                        return -1;
+                    int n = (int)Math.min(dst.remaining(), buffer.limit() - position);
+                    ByteBuffer src = buffer.duplicate();
+                    src.limit((int)position + n).position((int)position);
+                    dst.put(src);
+                    return n;
+                }
+            };
+        }
+        
+        /**
+         * 
+         * @param channel channel to read from; positional reads are used for a FileChannel, others are repositioned
+         * @return AtomInput reading from the channel
+         */
+        static AtomInput of(SeekableByteChannel channel){
+            if(channel instanceof FileChannel){
+                FileChannel file = (FileChannel)channel;
+                return new AtomInput(){
+                    @Override
+                    public long size() throws IOException{return file.size();}
+                    @Override
+                    public int read(ByteBuffer buffer, long position) throws IOException{return file.read(buffer, position);}
+                };
+            }
+            
+            return new AtomInput(){
+                @Override
+                public long size() throws IOException{return channel.size();}
+                @Override
+                public int read(ByteBuffer buffer, long position) throws IOException{
+                    channel.position(position);
+                    return channel.read(buffer);
+                }
+            };
+        }
+    
+}
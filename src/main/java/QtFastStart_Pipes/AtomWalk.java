@@ -0,0 +1,226 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import static QtFastStart_Pipes.QtFastStart.ATOM_PREAMBLE_SIZE;
+import static QtFastStart_Pipes.QtFastStart.FTYP_ATOM;
+import static QtFastStart_Pipes.QtFastStart.MDAT_ATOM;
+import static QtFastStart_Pipes.QtFastStart.MOOV_ATOM;
+import static QtFastStart_Pipes.QtFastStart.isFragmentAtom;
+import static QtFastStart_Pipes.QtFastStart.isQtTopLevelAtom;
+import static QtFastStart_Pipes.QtFastStart.printf;
+import static QtFastStart_Pipes.QtFastStart.sDEBUG;
+import static QtFastStart_Pipes.QtFastStart.uint32ToInt;
+import static QtFastStart_Pipes.QtFastStart.uint32ToLong;
+import static QtFastStart_Pipes.QtFastStart.uint64ToLong;
+import QtFastStart_Pipes.QtFastStart.UnsupportedFileException;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author SkibbleBip
+ * The walk over the top level atoms that finds the moov atom after the media data and checks that the atoms
+ * after it can be walked too. In front of the moov atom only QuickTime top level atoms are walked; after it
+ * any atom with a valid size is, as it is only copied after the media data. It does no I/O of its own: the reader reads up to {@value #HEADER_SIZE} bytes at
+ * {@link #position()}, hands them to {@link #next(ByteBuffer)} and repeats until it returns {@link #DONE},
+ * so the blocking and the asynchronous fast start share it
+ */
+final class AtomWalk {
+    
+        /** bytes to read at every position, enough for the 64-bit size of a large atom */
+        static final int HEADER_SIZE = ATOM_PREAMBLE_SIZE * 2;
+        /** returned by {@link #next(ByteBuffer)} once the walk is over */
+        static final long DONE = -1;
+        
+        private final long size;
+        private long position = 0;
+        private int atomCount = 0;
+        private long ftypOffset = -1;
+        private int ftypSize = 0;
+        private long startOffset = 0;
+        private long moovOffset = -1;
+        // uint64_t, but assuming it is in int32 range. It is reasonable as int max is around 2GB. Such large moov is unlikely, yet unallocatable :).
+        private int moovSize = 0;
+        private boolean mdatSeen = false;
+        private boolean complete = false;
+        private boolean fastStart = false;
+        
+        /**
+         * 
+         * @param size size of the input
+         */
+        AtomWalk(long size){
+            this.size = size;
+        }
+        
+        /**
+         * 
+         * @param header bytes read at {@link #position()}, flipped, fewer than {@value #HEADER_SIZE} at the end of the input
+         * @return position of the next atom to read the header of, or {@link #DONE}
+         * @throws UnsupportedFileException if the ftyp or moov atom is too large
+         */
+        long next(ByteBuffer header) throws UnsupportedFileException{
+            if(header.remaining() < ATOM_PREAMBLE_SIZE)
+                return stop(true);
+            
+            this.atomCount++;
+            long atomSize = uint32ToLong(header.getInt(0)); // uint32
+            int atomType = header.getInt(4); // representing uint32_t in signed int
+            
+            if(isFragmentAtom(atomType)){
+                if(sDEBUG)
+                    printf("encountered a movie fragment atom, the file is fragmented and already streamable");
+                return alreadyFastStart();
+            }
+            
+            int headerSize = ATOM_PREAMBLE_SIZE;
+            boolean ftyp = atomType == FTYP_ATOM && this.moovOffset < 0;
+            if(ftyp){
+                // keep ftyp atom
+                this.ftypOffset = this.position;
+                this.ftypSize = uint32ToInt(atomSize); // XXX: assume in range of int32_t
+            }
+            else if(atomSize == 1){
+                /* 64-bit special case */
+                if(header.remaining() < HEADER_SIZE)
+                    return stop(false);
+                atomSize = uint64ToLong(header.getLong(ATOM_PREAMBLE_SIZE)); // XXX: assume in range of int64_t
+                headerSize = HEADER_SIZE;
+            }
+            this.position += atomSize;
+            if(ftyp)
+                this.startOffset = this.position; // after ftyp atom
+            
+            if(sDEBUG) printf("%c%c%c%c %10d %d",
+                    (atomType >> 24) & 255,
+                    (atomType >> 16) & 255,
+                    (atomType >> 8) & 255,
+                    (atomType >> 0) & 255,
+                    this.position - atomSize,
+                    atomSize);
+            if(!isQtTopLevelAtom(atomType) && this.moovOffset < 0){
+                if(sDEBUG)
+                    printf("encountered non-QT top-level atom (is this a QuickTime file?)");
+                return stop(false);
+            }
+            // after the moov atom every atom is copied after the media data, whatever its type, so its size
+            // must be sound and end inside the input
+            if(this.moovOffset >= 0 && (atomSize < headerSize || this.position > this.size)){
+                if(sDEBUG)
+                    printf("encountered malformed atom after the moov atom");
+                return stop(false);
+            }
+            
+            /* The atom header is 8 (or 16 bytes), if the atom size (which
+             * includes these 8 or 16 bytes) is less than that, we won't be
+             * able to continue scanning sensibly after this atom, so break. */
+            if(atomSize < 8)
+                return stop(false);
+            
+            if(atomType == MDAT_ATOM)
+                this.mdatSeen = true;
+            if(atomType == MOOV_ATOM){
+                if(!this.mdatSeen || this.moovOffset >= 0){
+                    // a moov atom in front of the media data is already fast start; a second one is not handled
+                    if(sDEBUG)
+                        printf(this.moovOffset >= 0 ? "more than one moov atom" : "moov atom is in front of the media data");
+                    return alreadyFastStart();
+                }
+                // atomSize is uint64, but for moov uint32 should be stored.
+                // XXX: assuming moov atomSize <= max vaue of int32
+                this.moovSize = uint32ToInt(atomSize);
+                this.moovOffset = this.position - atomSize;
+            }
+            return this.position;
+        }
+        
+        private long stop(boolean complete){
+            this.complete = complete;
+            if(sDEBUG && (this.moovOffset < 0 || !complete))
+                printf(this.moovOffset < 0 ? "no moov atom after the media data" : "atoms after the moov atom could not be walked");
+            return DONE;
+        }
+        
+        private long alreadyFastStart(){
+            this.fastStart = true;
+            return DONE;
+        }
+        
+        /**
+         * 
+         * @return position of the next header to read
+         */
+        long position(){return this.position;}
+        
+        /**
+         * 
+         * @return number of atom headers walked
+         */
+        int atomCount(){return this.atomCount;}
+        
+        /**
+         * 
+         * @return true if the walk reached the end of the input and found a moov atom after the media data,
+         * false if the input is already fast start or cannot be rewritten
+         */
+        boolean moovFound(){return this.complete && !this.fastStart && this.moovOffset >= 0;}
+        
+        /**
+         * 
+         * @return true if the walk stopped at a moov atom in front of the media data or at a movie fragment, false
+         * if it ended for any other reason
+         */
+        boolean fastStart(){return this.fastStart;}
+        
+        /**
+         * 
+         * @return offset of the last ftyp atom in front of the moov atom, or -1 if there is none
+         */
+        long ftypOffset(){return this.ftypOffset;}
+        
+        /**
+         * 
+         * @return size of the ftyp atom
+         */
+        int ftypSize(){return this.ftypSize;}
+        
+        /**
+         * 
+         * @return offset right after the ftyp atom, where the media data to copy starts
+         */
+        long startOffset(){return this.startOffset;}
+        
+        /**
+         * 
+         * @return offset of the moov atom, or -1 if none was found
+         */
+        long moovOffset(){return this.moovOffset;}
+        
+        /**
+         * 
+         * @return size of the moov atom
+         */
+        int moovSize(){return this.moovSize;}
+    
+}
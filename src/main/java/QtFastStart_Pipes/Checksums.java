@@ -0,0 +1,238 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+/**
+ *
+ * @author SkibbleBip
+ * Checksums of a fast start output, computed while the output is written instead of in a second pass over it.
+ * Name the algorithms in the {@link FastStartOptions} of a call: the stream, file and asynchronous calls of
+ * QtFastStart compute a Checksums of their own and return it in their {@link FastStartResult}, so options can be
+ * shared by calls running at the same time. When the input is already fast start they cover the input, which
+ * then is the output. {@link CompositeOutput#writeTo(java.nio.channels.WritableByteChannel, Checksums)} and
+ * {@link CompositeOutput#toByteArray(Checksums)} fill in a Checksums the caller passes
+ */
+public class Checksums {
+    
+        /**
+         * Supported algorithms
+         */
+        public enum Algorithm {
+                /** CRC-32C (Castagnoli), as used by cloud object stores for integrity checks */
+                CRC32C,
+                MD5,
+                SHA_256
+        }
+        
+        private final Set<Algorithm> algorithms;
+        private final CRC32C crc32c;
+        private final MessageDigest md5;
+        private final MessageDigest sha256;
+        private byte[] md5Result;
+        private byte[] sha256Result;
+        private long bytes;
+        
+        /**
+         * 
+         * @param algorithms algorithms to compute, at least one
+         */
+        public Checksums(Algorithm... algorithms){
+            if(algorithms.length == 0)
+                throw new IllegalArgumentException("no checksum algorithm");
+            this.algorithms = EnumSet.of(algorithms[0], algorithms);
+            this.crc32c = this.algorithms.contains(Algorithm.CRC32C) ? new CRC32C() : null;
+            this.md5 = this.algorithms.contains(Algorithm.MD5) ? digest("MD5") : null;
+            this.sha256 = this.algorithms.contains(Algorithm.SHA_256) ? digest("SHA-256") : null;
+        }
+        
+        /**
+         * 
+         * @param algorithms algorithms of the options of a call
+         * @return new checksums of these algorithms for the call to return, or null if there are none
+         */
+        /* package */
+        static Checksums of(Set<Algorithm> algorithms){
+            return algorithms.isEmpty() ? null : new Checksums(algorithms.toArray(new Algorithm[0]));
+        }
+        
+        private static MessageDigest digest(String name){
+            try{
+                return MessageDigest.getInstance(name);
+            }
+            catch(NoSuchAlgorithmException ex){
+                // every Java platform is required to provide MD5 and SHA-256
+                throw new IllegalStateException(name + " is not available", ex);
+            }
+        }
+        
+        /**
+         * 
+         * @param algorithm algorithm
+         * @return true if the algorithm is computed
+         */
+        public boolean computes(Algorithm algorithm){return this.algorithms.contains(algorithm);}
+        
+        /**
+         * 
+         * @return number of bytes the checksums cover
+         */
+        public long bytes(){return this.bytes;}
+        
+        /**
+         * 
+         * @return CRC-32C of the output
+         */
+        public long crc32c(){
+            require(Algorithm.CRC32C);
+            return this.crc32c.getValue();
+        }
+        
+        /**
+         * 
+         * @return MD5 digest of the output
+         */
+        public byte[] md5(){
+            require(Algorithm.MD5);
+            if(this.md5Result == null)
+                this.md5Result = this.md5.digest();
+            return this.md5Result.clone();
+        }
+        
+        /**
+         * 
+         * @return SHA-256 digest of the output
+         */
+        public byte[] sha256(){
+            require(Algorithm.SHA_256);
+            if(this.sha256Result == null)
+                this.sha256Result = this.sha256.digest();
+            return this.sha256Result.clone();
+        }
+        
+        /**
+         * 
+         * @param algorithm algorithm
+         * @return result of the algorithm as lowercase hex, the CRC-32C as 8 digits in big endian order
+         */
+        public String hex(Algorithm algorithm){
+            byte[] value;
+            switch(algorithm){
+                case CRC32C:
+                    value = ByteBuffer.allocate(4).putInt((int)crc32c()).array();
+                    break;
+                case MD5:
+                    value = md5();
+                    break;
+                default:
+                    value = sha256();
+                    break;
+            }
+            StringBuilder sb = new StringBuilder(value.length * 2);
+            for(byte b : value)
+                sb.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+            return sb.toString();
+        }
+        
+        private void require(Algorithm algorithm){
+            if(!this.algorithms.contains(algorithm))
+                throw new IllegalStateException(algorithm + " is not computed by these Checksums");
+        }
+        
+        /**
+         * Starts the checksums over for a new output
+         */
+        /* package */
+        void reset(){
+            if(this.crc32c != null)
+                this.crc32c.reset();
+            if(this.md5 != null)
+                this.md5.reset();
+            if(this.sha256 != null)
+                this.sha256.reset();
+            this.md5Result = null;
+            this.sha256Result = null;
+            this.bytes = 0;
+        }
+        
+        /**
+         * Adds bytes of the output
+         */
+        /* package */
+        void update(byte[] b, int offset, int length){
+            if(this.crc32c != null)
+                this.crc32c.update(b, offset, length);
+            if(this.md5 != null)
+                this.md5.update(b, offset, length);
+            if(this.sha256 != null)
+                this.sha256.update(b, offset, length);
+            this.bytes += length;
+        }
+        
+        /**
+         * Adds the remaining bytes of a heap or direct buffer, without moving its position
+         */
+        /* package */
+        void update(ByteBuffer buffer){
+            if(this.crc32c != null)
+                this.crc32c.update(buffer.duplicate());
+            if(this.md5 != null)
+                this.md5.update(buffer.duplicate());
+            if(this.sha256 != null)
+                this.sha256.update(buffer.duplicate());
+            this.bytes += buffer.remaining();
+        }
+        
+        /**
+         * 
+         * @param out stream the output is written to
+         * @return stream adding everything written through it to these checksums
+         */
+        /* package */
+        OutputStream wrap(OutputStream out){
+            return new FilterOutputStream(out){
+                @Override
+                public void write(int b) throws IOException{
+                    this.out.write(b);
+                    update(new byte[]{(byte)b}, 0, 1);
+                }
+                
+                @Override
+                public void write(byte[] b, int offset, int length) throws IOException{
+                    this.out.write(b, offset, length);
+                    update(b, offset, length);
+                }
+            };
+        }
+    
+}
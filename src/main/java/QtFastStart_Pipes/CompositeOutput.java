@@ -0,0 +1,180 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ *
+ * @author SkibbleBip
+ * An output made of an ordered list of byte buffers instead of one contiguous byte array. The buffers
+ * share memory with the input wherever the output is an unchanged copy of it, so only the patched moov
+ * atom needs to be allocated
+ */
+public class CompositeOutput {
+    
+        // bytes of a part checksummed and then written at a time
+        private static final int CHECKSUM_BLOCK_SIZE = 1024 * 1024;
+    
+        private final ByteBuffer[] buffers;
+        private final long size;
+        
+        /**
+         * 
+         * @param buffers the parts of the output in order, null parts are skipped
+         */
+        /* package */
+        CompositeOutput(ByteBuffer... buffers){
+            int n = 0;
+            for(ByteBuffer b : buffers)
+                if(b != null)
+                    n++;
+            
+            this.buffers = new ByteBuffer[n];
+            long total = 0;
+            n = 0;
+            for(ByteBuffer b : buffers){
+                if(b == null)
+                    continue;
+                this.buffers[n++] = b.asReadOnlyBuffer();
+                total += b.remaining();
+            }
+            this.size = total;
+        }
+        
+        /**
+         * 
+         * @return total number of bytes of the output
+         */
+        public long size(){return this.size;}
+        
+        /**
+         * 
+         * @return fresh read-only views of the parts of the output in order, positioned at their start
+         */
+        public ByteBuffer[] buffers(){
+            ByteBuffer[] ret = new ByteBuffer[this.buffers.length];
+            for(int i = 0; i < ret.length; i++)
+                ret[i] = this.buffers[i].duplicate();
+            return ret;
+        }
+        
+        /**
+         * Writes the whole output to the channel, with gathering writes when the channel supports them
+         * @param channel channel to write to, such as a FileChannel or a SocketChannel
+         * @return number of bytes written
+         * @throws IOException 
+         */
+        public long writeTo(WritableByteChannel channel) throws IOException{
+            ByteBuffer[] srcs = buffers();
+            long written = 0;
+            
+            if(channel instanceof GatheringByteChannel){
+                GatheringByteChannel gather = (GatheringByteChannel)channel;
+                int first = 0;
+                while(written < this.size){
+                    written += gather.write(srcs, first, srcs.length - first);
+                    while(first < srcs.length && !srcs[first].hasRemaining())
+                        first++;
+                }
+                return written;
+            }
+            
+            for(ByteBuffer b : srcs)
+                while(b.hasRemaining())
+                    written += channel.write(b);
+            
+            return written;
+        }
+        
+        /**
+         * Writes the whole output to the channel, adding each part to the checksums just before it is written
+         * @param channel channel to write to
+         * @param checksums checksums to start over and compute over the output
+         * @return number of bytes written
+         * @throws IOException 
+         */
+        public long writeTo(WritableByteChannel channel, Checksums checksums) throws IOException{
+            checksums.reset();
+            long written = 0;
+            for(ByteBuffer b : buffers()){
+                // parts such as the media data can be large, so each is checksummed in slices as it is written
+                while(b.hasRemaining()){
+                    ByteBuffer slice = b.duplicate();
+                    slice.limit(slice.position() + Math.min(slice.remaining(), CHECKSUM_BLOCK_SIZE));
+                    checksums.update(slice);
+                    while(slice.hasRemaining())
+                        written += channel.write(slice);
+                    b.position(slice.position());
+                }
+            }
+            return written;
+        }
+        
+        /**
+         * Copies the output into one byte array
+         * @return the output as a byte array
+         */
+        public byte[] toByteArray(){
+            if(this.size > Integer.MAX_VALUE - 8)
+                throw new OutOfMemoryError("output of " + this.size + " bytes does not fit in a byte array");
+            
+            byte[] ret = new byte[(int)this.size];
+            int off = 0;
+            for(ByteBuffer b : buffers()){
+                int n = b.remaining();
+                b.get(ret, off, n);
+                off += n;
+            }
+            return ret;
+        }
+        
+        /**
+         * Copies the output into one byte array, adding each slice to the checksums right after it is copied,
+         * while it is still in cache
+         * @param checksums checksums to start over and compute over the output
+         * @return the output as a byte array
+         */
+        public byte[] toByteArray(Checksums checksums){
+            if(this.size > Integer.MAX_VALUE - 8)
+                throw new OutOfMemoryError("output of " + this.size + " bytes does not fit in a byte array");
+            
+            checksums.reset();
+            byte[] ret = new byte[(int)this.size];
+            int off = 0;
+            for(ByteBuffer b : buffers()){
+                while(b.hasRemaining()){
+                    int n = Math.min(b.remaining(), CHECKSUM_BLOCK_SIZE);
+                    b.get(ret, off, n);
+                    checksums.update(ret, off, n);
+                    off += n;
+                }
+            }
+            return ret;
+        }
+    
+}
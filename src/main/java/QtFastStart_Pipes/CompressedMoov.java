@@ -0,0 +1,343 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import QtFastStart_Pipes.QtFastStart.MalformedFileException;
+import QtFastStart_Pipes.QtFastStart.UnsupportedFileException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *
+ * @author SkibbleBip
+ * A moov atom whose content is compressed into a cmov atom, as written by QuickTime:
+ * moov { cmov { dcom (compressor, only 'zlib'), cmvd (uncompressed size, zlib data) } }.
+ * The content is inflated to patch its chunk offsets, then either written out uncompressed or compressed
+ * again. The Inflater, the Deflater and the scratch arrays are kept in a small pool and reused across calls,
+ * whichever thread makes them; codecs the pool has no room for are ended instead of left to the garbage collector
+ */
+final class CompressedMoov {
+    
+        static final int CMOV = fourCc("cmov");
+        static final int DCOM = fourCc("dcom");
+        static final int CMVD = fourCc("cmvd");
+        static final int ZLIB = fourCc("zlib");
+        static final int FREE = fourCc("free");
+        
+        /** moov, cmov, dcom and cmvd headers in front of the compressed data */
+        private static final int OVERHEAD = 8 + 8 + 12 + 12;
+        /** room left for a free atom when the recompressed moov has to grow */
+        private static final int PADDING = 8 + 64;
+        /** attempts at finding a moov size the recompressed offsets fit in */
+        private static final int MAX_ROUNDS = 16;
+        /** most a deflate stream expands to, per compressed byte */
+        private static final int MAX_INFLATE_RATIO = 1032;
+        
+        /** number of idle codecs kept for reuse */
+        private static final int MAX_POOLED_CODECS = Math.max(2, Runtime.getRuntime().availableProcessors());
+        /** scratch arrays bigger than this are dropped when their codec goes back to the pool */
+        private static final int MAX_POOLED_SCRATCH = 16 * 1024 * 1024;
+        
+        private static final ArrayDeque<Codec> CODECS = new ArrayDeque<>();
+        
+        private CompressedMoov(){}
+        
+        /**
+         * 
+         * @param moovAtom moov atom
+         * @return true if the moov atom starts with a cmov atom
+         */
+        static boolean isCompressed(ByteBuffer moovAtom){
+            return moovAtom.remaining() >= 16 && moovAtom.getInt(12) == CMOV;
+        }
+        
+        /**
+         * Inflates a compressed moov atom, patches the chunk offsets of its content for the output and builds
+         * the moov atom that is written out
+         * @param moovAtom compressed moov atom
+         * @param trailingOffset offset in the input of the first byte after the moov atom when atoms follow it,
+         * or -1 if the moov atom is the last atom
+         * @param options settings of the call, which choose between an uncompressed and a recompressed output
+         * @param patcher patcher counting the patched entries
+         * @return the uncompressed moov atom, or a compressed moov atom padded with a free atom. The offsets
+         * also account for the padding of the options, which is not part of the returned atom
+         * @throws MalformedFileException
+         * @throws UnsupportedFileException 
+         */
+        static ByteBuffer patch(ByteBuffer moovAtom, long trailingOffset, FastStartOptions options, OffsetPatcher patcher) throws MalformedFileException, UnsupportedFileException{
+            int cmvd = cmvd(moovAtom);
+            int cmvdSize = atomSize(moovAtom, cmvd, moovAtom.limit());
+            int plainSize = plainSize(moovAtom, cmvd, cmvdSize);
+            
+            Codec codec = takeCodec();
+            try{
+                return patch(moovAtom, trailingOffset, options, patcher, codec, cmvd, cmvdSize, plainSize);
+            }
+            finally{
+                giveCodec(codec);
+            }
+        }
+        
+        private static ByteBuffer patch(ByteBuffer moovAtom, long trailingOffset, FastStartOptions options, OffsetPatcher patcher,
+                Codec codec, int cmvd, int cmvdSize, int plainSize) throws MalformedFileException, UnsupportedFileException{
+            int dataOffset = moovAtom.arrayOffset() + cmvd + 12;
+            int dataSize = cmvdSize - 12;
+            
+            if(!options.recompressMoov()){
+                // the inflated moov atom is the output, so it gets an array of its own
+                byte[] plain = new byte[plainSize];
+                codec.inflate(moovAtom.array(), dataOffset, dataSize, plain, plainSize);
+                ByteBuffer plainMoov = ByteBuffer.wrap(plain).order(ByteOrder.BIG_ENDIAN);
+                checkPlain(plainMoov);
+                if(trailingOffset >= 0)
+                    QtFastStart.closeMoovGap(plainMoov, trailingOffset, moovAtom.remaining());
+                plainMoov = MoovRewriter.promoteOverflowingStco(plainMoov, options.moovPadding());
+                QtFastStart.patchOffsets(plainMoov, plainMoov.remaining() + options.moovPadding(), patcher);
+                return plainMoov;
+            }
+            
+            ByteBuffer plainMoov = ByteBuffer.wrap(codec.plain(plainSize), 0, plainSize).order(ByteOrder.BIG_ENDIAN);
+            codec.inflate(moovAtom.array(), dataOffset, dataSize, plainMoov.array(), plainSize);
+            checkPlain(plainMoov);
+            if(trailingOffset >= 0)
+                QtFastStart.closeMoovGap(plainMoov, trailingOffset, moovAtom.remaining());
+            
+            // the offsets depend on the size of the compressed moov atom, which depends on the offsets, so
+            // grow the output moov atom until the compressed content fits in it, padding the rest with a free atom
+            int padding = options.moovPadding();
+            long delta = moovAtom.remaining();
+            long applied = 0; // what the offsets of plainMoov are already moved by
+            for(int round = 0; round < MAX_ROUNDS; round++){
+                // stco atoms that overflow at this size become co64 atoms, which only grows the content; the size
+                // only grows from round to round, so a table promoted once stays needed. The growth of the content
+                // is counted against the compressed size too, which can promote a table early but never too late
+                plainMoov = MoovRewriter.promoteOverflowingStco(plainMoov, delta + padding - applied - plainMoov.remaining());
+                QtFastStart.patchOffsets(plainMoov, delta + padding - applied, patcher);
+                applied = delta + padding;
+                
+                int packedSize = codec.deflate(plainMoov.array(), plainMoov.remaining());
+                long needed = OVERHEAD + (long)packedSize;
+                if(needed == delta || needed + 8 <= delta)
+                    return build(codec.packed, packedSize, plainMoov.remaining(), (int)delta);
+                delta = needed + PADDING;
+            }
+            throw new UnsupportedFileException("size of the recompressed moov atom does not settle");
+        }
+        
+        /**
+         * Inflates a compressed moov atom without patching it
+         * @param moovAtom compressed moov atom, as read or as written out
+         * @return the uncompressed moov atom, in an array of its own
+         * @throws MalformedFileException
+         * @throws UnsupportedFileException 
+         */
+        static ByteBuffer inflate(ByteBuffer moovAtom) throws MalformedFileException, UnsupportedFileException{
+            int cmvd = cmvd(moovAtom);
+            int cmvdSize = atomSize(moovAtom, cmvd, moovAtom.limit());
+            int plainSize = plainSize(moovAtom, cmvd, cmvdSize);
+            byte[] plain = new byte[plainSize];
+            Codec codec = takeCodec();
+            try{
+                codec.inflate(moovAtom.array(), moovAtom.arrayOffset() + cmvd + 12, cmvdSize - 12, plain, plainSize);
+            }
+            finally{
+                giveCodec(codec);
+            }
+            ByteBuffer plainMoov = ByteBuffer.wrap(plain).order(ByteOrder.BIG_ENDIAN);
+            checkPlain(plainMoov);
+            return plainMoov;
+        }
+        
+        /**
+         * 
+         * @return offset of the cmvd atom of a compressed moov atom, once the cmov, dcom and cmvd atoms are checked
+         */
+        private static int cmvd(ByteBuffer moovAtom) throws MalformedFileException, UnsupportedFileException{
+            int cmov = 8;
+            int cmovEnd = cmov + atomSize(moovAtom, cmov, moovAtom.limit());
+            int dcom = cmov + 8;
+            if(moovAtom.getInt(dcom + 4) != DCOM)
+                throw new MalformedFileException("cmov atom does not start with a dcom atom");
+            int dcomSize = atomSize(moovAtom, dcom, cmovEnd);
+            if(dcomSize < 12)
+                throw new MalformedFileException("dcom atom of " + dcomSize + " bytes is too small");
+            if(moovAtom.getInt(dcom + 8) != ZLIB)
+                throw new UnsupportedFileException("compressed moov atoms are only supported with zlib compression");
+            
+            int cmvd = dcom + dcomSize;
+            if(cmvd + 12 > cmovEnd || moovAtom.getInt(cmvd + 4) != CMVD)
+                throw new MalformedFileException("cmov atom does not hold a cmvd atom");
+            int cmvdSize = atomSize(moovAtom, cmvd, cmovEnd);
+            if(cmvdSize < 12)
+                throw new MalformedFileException("cmvd atom of " + cmvdSize + " bytes is too small");
+            return cmvd;
+        }
+        
+        private static Codec takeCodec(){
+            synchronized(CODECS){
+                Codec codec = CODECS.poll();
+                if(codec != null)
+                    return codec;
+            }
+            return new Codec();
+        }
+        
+        /**
+         * Gives a codec back for reuse, or ends it if the pool is full; it must no longer be used by the caller
+         */
+        private static void giveCodec(Codec codec){
+            codec.trim();
+            synchronized(CODECS){
+                if(CODECS.size() < MAX_POOLED_CODECS){
+                    CODECS.push(codec);
+                    return;
+                }
+            }
+            codec.end();
+        }
+        
+        private static int atomSize(ByteBuffer buffer, int offset, int end) throws MalformedFileException{
+            long size = QtFastStart.uint32ToLong(buffer.getInt(offset));
+            if(size < 8 || offset + size > end)
+                throw new MalformedFileException("atom at " + offset + " of the moov atom has a bad size " + size);
+            return (int)size;
+        }
+        
+        /**
+         * 
+         * @return uncompressed size declared by the cmvd atom, checked before anything is allocated for it against
+         * what its compressed data can inflate to and what an array can hold
+         */
+        private static int plainSize(ByteBuffer moovAtom, int cmvd, int cmvdSize) throws MalformedFileException{
+            long plainSize = QtFastStart.uint32ToLong(moovAtom.getInt(cmvd + 8));
+            long packedSize = cmvdSize - 12;
+            if(plainSize < 8 || plainSize > packedSize * MAX_INFLATE_RATIO + 64 || plainSize > Integer.MAX_VALUE - 8)
+                throw new MalformedFileException("cmvd atom declares " + plainSize + " uncompressed bytes for "
+                        + Math.max(0, packedSize) + " compressed bytes");
+            return (int)plainSize;
+        }
+        
+        private static void checkPlain(ByteBuffer plainMoov) throws MalformedFileException{
+            if(plainMoov.remaining() < 8 || plainMoov.getInt(4) != Atom.MOOV
+                    || QtFastStart.uint32ToLong(plainMoov.getInt(0)) != plainMoov.remaining())
+                throw new MalformedFileException("inflated content of the cmov atom is not a moov atom");
+        }
+        
+        /**
+         * 
+         * @return moov { cmov { dcom, cmvd }, free } of exactly the given size
+         */
+        private static ByteBuffer build(byte[] packed, int packedSize, int plainSize, int moovSize){
+            ByteBuffer moov = ByteBuffer.allocate(moovSize).order(ByteOrder.BIG_ENDIAN);
+            moov.putInt(moovSize).putInt(Atom.MOOV);
+            moov.putInt(OVERHEAD - 8 + packedSize).putInt(CMOV);
+            moov.putInt(12).putInt(DCOM).putInt(ZLIB);
+            moov.putInt(12 + packedSize).putInt(CMVD).putInt(plainSize);
+            moov.put(packed, 0, packedSize);
+            if(moov.hasRemaining())
+                moov.putInt(moov.remaining()).putInt(FREE);
+            moov.clear();
+            return moov;
+        }
+        
+        private static int fourCc(String s){
+            return (s.charAt(0) << 24) | (s.charAt(1) << 16) | (s.charAt(2) << 8) | s.charAt(3);
+        }
+        
+        /**
+         * zlib state and scratch arrays, used by one call at a time
+         */
+        private static final class Codec {
+            
+                final Inflater inflater = new Inflater();
+                final Deflater deflater = new Deflater();
+                byte[] plain = new byte[0];
+                byte[] packed = new byte[0];
+                
+                byte[] plain(int size){
+                    if(this.plain.length < size)
+                        this.plain = new byte[size];
+                    return this.plain;
+                }
+                
+                void inflate(byte[] src, int offset, int length, byte[] dst, int dstLength) throws MalformedFileException{
+                    this.inflater.reset();
+                    this.inflater.setInput(src, offset, length);
+                    int n = 0;
+                    try{
+                        while(n < dstLength && !this.inflater.finished()){
+                            int r = this.inflater.inflate(dst, n, dstLength - n);
+                            if(r == 0 && (this.inflater.needsInput() || this.inflater.needsDictionary()))
+                                break;
+                            n += r;
+                        }
+                    }
+                    catch(DataFormatException ex){
+                        throw new MalformedFileException("cmvd atom does not hold zlib data: " + ex.getMessage());
+                    }
+                    if(n != dstLength)
+                        throw new MalformedFileException("cmvd atom inflated to " + n + " bytes instead of " + dstLength);
+                }
+                
+                /**
+                 * Drops scratch arrays too big to keep around between calls
+                 */
+                void trim(){
+                    if(this.plain.length > MAX_POOLED_SCRATCH)
+                        this.plain = new byte[0];
+                    if(this.packed.length > MAX_POOLED_SCRATCH)
+                        this.packed = new byte[0];
+                }
+                
+                /**
+                 * Frees the native zlib memory; the codec cannot be used afterwards
+                 */
+                void end(){
+                    this.inflater.end();
+                    this.deflater.end();
+                }
+                
+                int deflate(byte[] src, int length){
+                    this.deflater.reset();
+                    this.deflater.setInput(src, 0, length);
+                    this.deflater.finish();
+                    if(this.packed.length < 64)
+                        this.packed = new byte[Math.max(64, length / 2)];
+                    int n = 0;
+                    while(!this.deflater.finished()){
+                        if(n == this.packed.length)
+                            this.packed = Arrays.copyOf(this.packed, this.packed.length * 2);
+                        n += this.deflater.deflate(this.packed, n, this.packed.length - n);
+                    }
+                    return n;
+                }
+            
+        }
+    
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author SkibbleBip
+ * Result of the layout pass of QtFastStart: the ftyp atom, the patched moov atom and the ranges of the input
+ * that follow them in the fast start output. Those are the atoms between the ftyp and the moov atom, then the
+ * atoms after the moov atom, if any. A layout may be cached and shared by calls, so it is never modified
+ */
+class FastStartLayout {
+    
+        final ByteBuffer ftypAtom; // null when the input has no ftyp atom
+        final ByteBuffer moovAtom;
+        final long startOffset;
+        final long lastOffset; // offset of the moov atom in the input
+        final long trailingOffset; // offset of the first byte after the moov atom in the input
+        final long endOffset;
+        final SeekIndex seekIndex; // null when the options of the call that built the layout asked for none
+        
+        FastStartLayout(ByteBuffer ftypAtom, ByteBuffer moovAtom, long startOffset, long lastOffset){
+            this(ftypAtom, moovAtom, startOffset, lastOffset, lastOffset, lastOffset, null);
+        }
+        
+        FastStartLayout(ByteBuffer ftypAtom, ByteBuffer moovAtom, long startOffset, long lastOffset, long trailingOffset, long endOffset, SeekIndex seekIndex){
+            this.ftypAtom = ftypAtom;
+            this.moovAtom = moovAtom;
+            this.startOffset = startOffset;
+            this.lastOffset = lastOffset;
+            this.trailingOffset = trailingOffset;
+            this.endOffset = endOffset;
+            this.seekIndex = seekIndex;
+        }
+        
+        /**
+         * 
+         * @param index seek index of the patched moov atom, or null
+         * @return the same layout with the given seek index
+         */
+        FastStartLayout withSeekIndex(SeekIndex index){
+            return new FastStartLayout(this.ftypAtom, this.moovAtom, this.startOffset, this.lastOffset, this.trailingOffset, this.endOffset, index);
+        }
+        
+        /**
+         * 
+         * @return independent view of the ftyp atom, or null if there is none
+         */
+        ByteBuffer ftypAtom(){
+            return this.ftypAtom == null ? null : this.ftypAtom.duplicate().rewind();
+        }
+        
+        /**
+         * 
+         * @return independent view of the patched moov atom
+         */
+        ByteBuffer moovAtom(){
+            return this.moovAtom.duplicate().rewind();
+        }
+        
+        /**
+         * 
+         * @return number of bytes written before the rest of the input
+         */
+        long headerSize(){
+            return (this.ftypAtom == null ? 0 : this.ftypAtom.limit()) + this.moovAtom.limit();
+        }
+        
+        /**
+         * 
+         * @return number of bytes of the input copied after the header, from startOffset to lastOffset and from
+         * trailingOffset to endOffset
+         */
+        long restSize(){
+            return (this.lastOffset - this.startOffset) + (this.endOffset - this.trailingOffset);
+        }
+        
+        /**
+         * 
+         * @return total size of the fast start output
+         */
+        long outputSize(){
+            return headerSize() + restSize();
+        }
+        
+        /**
+         * 
+         * @param offset offset in the rest of the output, after the header
+         * @return offset of the same byte in the input
+         */
+        long inputOffset(long offset){
+            long before = this.lastOffset - this.startOffset;
+            return offset < before ? this.startOffset + offset : this.trailingOffset + (offset - before);
+        }
+        
+        /**
+         * 
+         * @param offset offset in the rest of the output, after the header
+         * @return number of bytes from there that lie back to back in the input
+         */
+        long contiguous(long offset){
+            long before = this.lastOffset - this.startOffset;
+            return offset < before ? before - offset : restSize() - offset;
+        }
+    
+}
@@ -0,0 +1,322 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ *
+ * @author SkibbleBip
+ * Per call settings for QtFastStart. Every setter returns this FastStartOptions so settings can be chained
+ */
+public class FastStartOptions {
+    
+        /** Default number of bytes the streaming mode keeps in memory before spilling to a temporary file */
+        public static final long DEFAULT_SPILL_THRESHOLD = 32L * 1024 * 1024;
+    
+        /** Default number of stco/co64 entries a table needs before it is patched in parallel */
+        public static final int DEFAULT_PARALLEL_PATCH_THRESHOLD = 256 * 1024;
+    
+        /** Default number of bytes of media data in each buffer a FastStartPublisher emits */
+        public static final int DEFAULT_PUBLISH_CHUNK_SIZE = 64 * 1024;
+    
+        private long spillThreshold = DEFAULT_SPILL_THRESHOLD;
+        private Path tempDirectory = null;
+        private ForkJoinPool parallelPatchPool = null;
+        private int parallelPatchThreshold = DEFAULT_PARALLEL_PATCH_THRESHOLD;
+        private QtFastStartListener listener = null;
+        private MoovCache moovCache = null;
+        private int publishChunkSize = DEFAULT_PUBLISH_CHUNK_SIZE;
+        private Executor publishExecutor = ForkJoinPool.commonPool();
+        private boolean recompressMoov = false;
+        private long expectedLength = -1;
+        private long inputLimit = Long.MAX_VALUE;
+        private SegmentPool segmentPool = null;
+        private Set<Checksums.Algorithm> checksums = Collections.emptySet();
+        private int moovPadding = 0;
+        private Consumer<SeekIndex> seekIndex = null;
+        
+        /**
+         * 
+         * @return number of bytes the streaming mode buffers in memory before spilling to a temporary file
+         */
+        public long spillThreshold(){return this.spillThreshold;}
+        /**
+         * 
+         * @return directory the streaming mode creates its temporary files in, or null for the default temporary directory
+         */
+        public Path tempDirectory(){return this.tempDirectory;}
+        /**
+         * 
+         * @return pool large chunk offset tables are patched on, or null to patch every table on the calling thread
+         */
+        public ForkJoinPool parallelPatchPool(){return this.parallelPatchPool;}
+        /**
+         * 
+         * @return number of entries a stco/co64 table needs before it is split across the parallel patch pool
+         */
+        public int parallelPatchThreshold(){return this.parallelPatchThreshold;}
+        /**
+         * 
+         * @return listener receiving the events of calls made with these options, or null
+         */
+        public QtFastStartListener listener(){return this.listener;}
+        /**
+         * 
+         * @return cache the patched moov atoms of files on disk are kept in, or null
+         */
+        public MoovCache moovCache(){return this.moovCache;}
+        /**
+         * 
+         * @return number of bytes of media data in each buffer a FastStartPublisher emits
+         */
+        public int publishChunkSize(){return this.publishChunkSize;}
+        /**
+         * 
+         * @return executor a FastStartPublisher reads its chunks and signals its subscriber on
+         */
+        public Executor publishExecutor(){return this.publishExecutor;}
+        /**
+         * 
+         * @return true if a compressed moov atom is written compressed again, false if it is written uncompressed
+         */
+        public boolean recompressMoov(){return this.recompressMoov;}
+        /**
+         * 
+         * @return length an input stream is expected to have, or -1 if unknown
+         */
+        public long expectedLength(){return this.expectedLength;}
+        /**
+         * 
+         * @return maximum number of bytes read from an input stream before the call fails
+         */
+        public long inputLimit(){return this.inputLimit;}
+        /**
+         * 
+         * @return pool input streams are read into, or null
+         */
+        public SegmentPool segmentPool(){return this.segmentPool;}
+        /**
+         * 
+         * @return algorithms of the checksums computed over the output while it is written, empty for none
+         */
+        public Set<Checksums.Algorithm> checksums(){return this.checksums;}
+        /**
+         * 
+         * @return number of bytes reserved in a free atom after the moov atom of the output
+         */
+        public int moovPadding(){return this.moovPadding;}
+        /**
+         * 
+         * @return consumer of the seek index of the output, or null
+         */
+        public Consumer<SeekIndex> seekIndex(){return this.seekIndex;}
+        
+        /**
+         * 
+         * @param spillThreshold number of bytes the streaming mode buffers in memory before spilling to a temporary file
+         * @return this FastStartOptions
+         */
+        public FastStartOptions spillThreshold(long spillThreshold){
+            if(spillThreshold < 0)
+                throw new IllegalArgumentException("spill threshold " + spillThreshold + " is negative");
+            this.spillThreshold = spillThreshold;
+            return this;
+        }
+        
+        /**
+         * 
+         * @param tempDirectory directory to create temporary files in, or null for the default temporary directory
+         * @return this FastStartOptions
+         */
+        public FastStartOptions tempDirectory(Path tempDirectory){
+            this.tempDirectory = tempDirectory;
+            return this;
+        }
+        
+        /**
+         * 
+         * @param pool pool to split large chunk offset tables across, such as {@link ForkJoinPool#commonPool()},
+         * or null to patch every table on the calling thread. Asynchronous calls also patch their moov atom on
+         * it, or on the common pool when it is null
+         * @return this FastStartOptions
+         */
+        public FastStartOptions parallelPatchPool(ForkJoinPool pool){
+            this.parallelPatchPool = pool;
+            return this;
+        }
+        
+        /**
+         * 
+         * @param entries number of entries a stco/co64 table needs before it is split across the parallel patch pool
+         * @return this FastStartOptions
+         */
+        public FastStartOptions parallelPatchThreshold(int entries){
+            if(entries < 1)
+                throw new IllegalArgumentException("parallel patch threshold " + entries + " is not positive");
+            this.parallelPatchThreshold = entries;
+            return this;
+        }
+        
+        /**
+         * 
+         * @param listener listener receiving phase timings, byte counters and the outcome of calls made with
+         * these options, or null for none
+         * @return this FastStartOptions
+         */
+        public FastStartOptions listener(QtFastStartListener listener){
+            this.listener = listener;
+            return this;
+        }
+        
+        /**
+         * 
+         * @param cache cache to look the patched moov atoms of files on disk up in and to add them to, shared by
+         * every call made with options that hold it, or null to read and patch the moov atom on every call
+         * @return this FastStartOptions
+         */
+        public FastStartOptions moovCache(MoovCache cache){
+            this.moovCache = cache;
+            return this;
+        }
+        
+        /**
+         * 
+         * @param bytes number of bytes of media data in each buffer a FastStartPublisher emits
+         * @return this FastStartOptions
+         */
+        public FastStartOptions publishChunkSize(int bytes){
+            if(bytes < 1)
+                throw new IllegalArgumentException("publish chunk size " + bytes + " is not positive");
+            this.publishChunkSize = bytes;
+            return this;
+        }
+        
+        /**
+         * 
+         * @param executor executor a FastStartPublisher reads its chunks and signals its subscriber on
+         * @return this FastStartOptions
+         */
+        public FastStartOptions publishExecutor(Executor executor){
+            if(executor == null)
+                throw new NullPointerException("executor");
+            this.publishExecutor = executor;
+            return this;
+        }
+        
+        /**
+         * 
+         * @param recompress true to write a compressed (cmov) moov atom compressed again, padded with a free atom
+         * so its offsets fit, or false to write it uncompressed, which players handle more widely
+         * @return this FastStartOptions
+         */
+        public FastStartOptions recompressMoov(boolean recompress){
+            this.recompressMoov = recompress;
+            return this;
+        }
+        
+        /**
+         * 
+         * @param length length the input stream is expected to have, such as its Content-Length or file size, so
+         * it is read into one array of that size instead of a growing one, or -1 if unknown
+         * @return this FastStartOptions
+         */
+        public FastStartOptions expectedLength(long length){
+            if(length < -1)
+                throw new IllegalArgumentException("expected length " + length + " is negative");
+            this.expectedLength = length;
+            return this;
+        }
+        
+        /**
+         * 
+         * @param bytes maximum number of bytes to read from an input stream; a stream that declares or turns out to
+         * have more fails as soon as that is known
+         * @return this FastStartOptions
+         */
+        public FastStartOptions inputLimit(long bytes){
+            if(bytes < 0)
+                throw new IllegalArgumentException("input limit " + bytes + " is negative");
+            this.inputLimit = bytes;
+            return this;
+        }
+        
+        /**
+         * 
+         * @param pool pool of fixed-size segments to read input streams into, shared by every call made with
+         * options that hold it, or null to size the arrays to each stream
+         * @return this FastStartOptions
+         */
+        public FastStartOptions segmentPool(SegmentPool pool){
+            this.segmentPool = pool;
+            return this;
+        }
+        
+        /**
+         * 
+         * @param algorithms algorithms of the checksums to compute over the output while it is written, none to
+         * compute no checksums. Each call computes its own and returns them in its {@link FastStartResult}; the
+         * calls returning a byte array have no room for them, see {@link CompositeOutput#toByteArray(Checksums)}
+         * @return this FastStartOptions
+         */
+        public FastStartOptions checksums(Checksums.Algorithm... algorithms){
+            this.checksums = algorithms.length == 0 ? Collections.emptySet()
+                    : Collections.unmodifiableSet(EnumSet.of(algorithms[0], algorithms));
+            return this;
+        }
+        
+        /**
+         * 
+         * @param consumer consumer handed the seek index of the output, on the thread doing the work, once its
+         * moov atom is patched or found in the moov cache; it is not called when the input is left unchanged.
+         * Asynchronous calls also return the index in their {@link FastStartResult}, which tells the inputs of
+         * concurrent calls apart. null to build no index
+         * @return this FastStartOptions
+         */
+        public FastStartOptions seekIndex(Consumer<SeekIndex> consumer){
+            this.seekIndex = consumer;
+            return this;
+        }
+        
+        /**
+         * 
+         * @param bytes number of bytes to reserve in a free atom between the moov atom and the media data, so
+         * later metadata edits can grow the moov atom into it without moving the media data; 0 for none, otherwise
+         * at least the 8 bytes of the free atom header
+         * @return this FastStartOptions
+         */
+        public FastStartOptions moovPadding(int bytes){
+            if(bytes < 0 || (bytes > 0 && bytes < 8))
+                throw new IllegalArgumentException("moov padding " + bytes + " is neither 0 nor at least 8 bytes");
+            this.moovPadding = bytes;
+            return this;
+        }
+    
+}
@@ -0,0 +1,261 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * @author SkibbleBip
+ * Publishes a fast start output as a sequence of byte buffers: the ftyp atom, the moov atom, then the rest of the
+ * file in chunks of a fixed size. A chunk is only read or sliced once the subscriber has requested it, so a slow
+ * subscriber sets the pace and the output is never buffered as a whole. Signals are delivered on the executor of
+ * the options, one at a time. The publisher accepts a single subscriber and releases its input, closing the input
+ * file if there is one, when the subscriber cancels or the output ends. An input file is only opened once the
+ * subscriber has subscribed, so a publisher nobody subscribes to holds nothing open
+ */
+public class FastStartPublisher implements Flow.Publisher<ByteBuffer> {
+    
+        /**
+         * The buffers of an output, handed out one at a time
+         */
+        interface Source extends Closeable {
+            
+                /**
+                 * 
+                 * @return next buffer of the output, or null at its end
+                 * @throws IOException 
+                 */
+                ByteBuffer next() throws IOException;
+            
+        }
+        
+        /**
+         * Opens the source of the output once there is a subscriber for it
+         */
+        interface Opener {
+            
+                /**
+                 * 
+                 * @return source of the output
+                 * @throws IOException
+                 * @throws QtFastStart.QtFastStartException 
+                 */
+                Source open() throws IOException, QtFastStart.QtFastStartException;
+            
+        }
+        
+        private final Opener opener;
+        private final Executor executor;
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+        
+        /* package */
+        FastStartPublisher(Source source, Executor executor){
+            this(() -> source, executor);
+        }
+        
+        /* package */
+        FastStartPublisher(Opener opener, Executor executor){
+            this.opener = opener;
+            this.executor = executor;
+        }
+        
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber){
+            if(subscriber == null)
+                throw new NullPointerException("subscriber");
+            
+            if(!this.subscribed.compareAndSet(false, true)){
+                subscriber.onSubscribe(new Flow.Subscription(){
+                    @Override
+                    public void request(long n){}
+                    @Override
+                    public void cancel(){}
+                });
+                subscriber.onError(new IllegalStateException("a FastStartPublisher accepts a single subscriber"));
+                return;
+            }
+            new Emitter(subscriber).start();
+        }
+        
+        /**
+         * Output of a fast start view: its header parts, then chunks read from the input
+         */
+        static Source of(FastStartView view, int chunkSize){
+            return new Source(){
+                private final ByteBuffer[] header = view.header();
+                private int part = 0;
+                private long offset = view.headerSize();
+                
+                @Override
+                public ByteBuffer next() throws IOException{
+                    if(this.part < this.header.length)
+                        return this.header[this.part++].duplicate();
+                    if(this.offset >= view.size())
+                        return null;
+                    
+                    ByteBuffer chunk = ByteBuffer.allocate((int)Math.min(chunkSize, view.size() - this.offset));
+                    while(chunk.hasRemaining())
+                        this.offset += view.read(this.offset, chunk);
+                    chunk.flip();
+                    return chunk;
+                }
+                
+                @Override
+                public void close() throws IOException{
+                    view.close();
+                }
+            };
+        }
+        
+        /**
+         * Delivers the buffers of the source to one subscriber as they are requested
+         */
+        private final class Emitter implements Flow.Subscription, Runnable {
+            
+                private final Flow.Subscriber<? super ByteBuffer> subscriber;
+                private Source source = null;
+                private final AtomicLong demand = new AtomicLong();
+                private final AtomicInteger pending = new AtomicInteger();
+                private volatile boolean cancelled = false;
+                private volatile Throwable badRequest = null;
+                private boolean started = false;
+                private boolean done = false;
+                
+                Emitter(Flow.Subscriber<? super ByteBuffer> subscriber){
+                    this.subscriber = subscriber;
+                }
+                
+                void start(){
+                    schedule();
+                }
+                
+                @Override
+                public void request(long n){
+                    if(n <= 0)
+                        this.badRequest = new IllegalArgumentException("request of " + n + " buffers is not positive");
+                    else
+                        this.demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+                    schedule();
+                }
+                
+                @Override
+                public void cancel(){
+                    this.cancelled = true;
+                    schedule();
+                }
+                
+                private void schedule(){
+                    if(this.pending.getAndIncrement() == 0)
+                        executor.execute(this);
+                }
+                
+                /**
+                 * Runs on the executor, never on two threads at once
+                 */
+                @Override
+                public void run(){
+                    int missed = 1;
+                    do{
+                        if(!this.started){
+                            this.started = true;
+                            this.subscriber.onSubscribe(this);
+                        }
+                        drain();
+                        missed = this.pending.addAndGet(-missed);
+                    }while(missed != 0);
+                }
+                
+                private void drain(){
+                    if(this.done)
+                        return;
+                    
+                    try{
+                        if(this.cancelled){
+                            terminate();
+                            return;
+                        }
+                        if(this.badRequest != null){
+                            terminate();
+                            this.subscriber.onError(this.badRequest);
+                            return;
+                        }
+                        
+                        while(this.demand.get() > 0 && !this.cancelled && this.badRequest == null){
+                            if(this.source == null)
+                                this.source = opener.open();
+                            ByteBuffer next = this.source.next();
+                            if(next == null){
+                                terminate();
+                                this.subscriber.onComplete();
+                                return;
+                            }
+                            this.demand.decrementAndGet();
+                            try{
+                                this.subscriber.onNext(next);
+                            }
+                            catch(RuntimeException ex){
+                                // a subscriber that throws is treated as cancelled, and is not signalled again
+                                this.cancelled = true;
+                                terminate();
+                                Logger.getLogger(FastStartPublisher.class.getName()).log(Level.WARNING, "subscriber failed in onNext, cancelled", ex);
+                                return;
+                            }
+                        }
+                    }
+                    catch(IOException | QtFastStart.QtFastStartException | RuntimeException ex){
+                        terminate();
+                        this.subscriber.onError(ex);
+                        return;
+                    }
+                    
+                    // pick up a cancel or a bad request made from within onNext
+                    if(this.cancelled || this.badRequest != null)
+                        drain();
+                }
+                
+                private void terminate(){
+                    this.done = true;
+                    if(this.source == null)
+                        return;
+                    try{
+                        this.source.close();
+                    }
+                    catch(IOException ex){
+                        Logger.getLogger(FastStartPublisher.class.getName()).log(Level.WARNING, "failed to close input", ex);
+                    }
+                }
+            
+        }
+    
+}
@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+/**
+ *
+ * @author SkibbleBip
+ * Outcome of a fast start of a stream or of a file on disk, returned by the calls that do not return the output
+ * itself
+ */
+public final class FastStartResult {
+    
+        private final boolean optimized;
+        private final long inputSize;
+        private final long outputSize;
+        private final Checksums checksums;
+        private final SeekIndex seekIndex;
+        
+        /* package */
+        FastStartResult(boolean optimized, long inputSize, long outputSize, Checksums checksums, SeekIndex seekIndex){
+            this.optimized = optimized;
+            this.inputSize = inputSize;
+            this.outputSize = outputSize;
+            this.checksums = checksums;
+            this.seekIndex = seekIndex;
+        }
+        
+        /**
+         * 
+         * @return true if the output was rewritten as fast start, false if the input was left or copied unchanged
+         */
+        public boolean optimized(){return this.optimized;}
+        
+        /**
+         * 
+         * @return number of bytes of the input
+         */
+        public long inputSize(){return this.inputSize;}
+        
+        /**
+         * 
+         * @return number of bytes written to the output, 0 if an output file was not written because the input
+         * file is already fast start
+         */
+        public long outputSize(){return this.outputSize;}
+        
+        /**
+         * 
+         * @return checksums of this output, or of the input when it is already fast start, in the algorithms named
+         * by the options; null if the options name none
+         */
+        public Checksums checksums(){return this.checksums;}
+        
+        /**
+         * 
+         * @return seek index of the output, the one handed to the seek index consumer of the options; null if the
+         * options have no consumer or the output was not written
+         */
+        public SeekIndex seekIndex(){return this.seekIndex;}
+        
+        @Override
+        public String toString(){
+            return "FastStartResult[optimized=" + this.optimized + ", inputSize=" + this.inputSize
+                    + ", outputSize=" + this.outputSize + "]";
+        }
+    
+}
@@ -0,0 +1,274 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ *
+ * @author SkibbleBip
+ * Random access view of the fast start output of an input that is left untouched. Bytes in the ftyp and the
+ * patched moov atom are served from memory, every byte after them is read from the media data of the input, or
+ * from the atoms after its moov atom, if any, so any range of the optimized file can be served, for example to an
+ * HTTP Range request, without writing the optimized file first. A view of a file keeps the file open until
+ * it is closed; reads may be made from several threads at once
+ */
+public class FastStartView implements Closeable {
+    
+        private final AtomInput source;
+        private final FileChannel file; // null when the input is in memory
+        private final ByteBuffer data; // null unless the input is a single array
+        private final ByteBuffer[] header;
+        private final long headerSize;
+        private final FastStartLayout layout; // null when the input is served unchanged
+        private final long size;
+        private final boolean optimized;
+        
+        /**
+         * 
+         * @param source input to read from
+         * @param file input file, closed with the view, or null
+         * @param data input bytes when they are held in a single array, or null
+         * @param layout layout of the fast start output, or null if the input is already fast start
+         * @param inputSize size of the input
+         */
+        /* package */
+        FastStartView(AtomInput source, FileChannel file, ByteBuffer data, FastStartLayout layout, long inputSize){
+            this.source = source;
+            this.file = file;
+            this.data = data == null ? null : data.asReadOnlyBuffer();
+            this.optimized = layout != null;
+            this.layout = layout;
+            if(layout == null){
+                this.header = new ByteBuffer[0];
+                this.headerSize = 0;
+                this.size = inputSize;
+            }
+            else{
+                ByteBuffer ftyp = layout.ftypAtom();
+                this.header = ftyp == null
+                        ? new ByteBuffer[]{layout.moovAtom().asReadOnlyBuffer()}
+                        : new ByteBuffer[]{ftyp.asReadOnlyBuffer(), layout.moovAtom().asReadOnlyBuffer()};
+                this.headerSize = layout.headerSize();
+                this.size = layout.outputSize();
+            }
+        }
+        
+        /**
+         * 
+         * @return total size of the fast start output
+         */
+        public long size(){return this.size;}
+        
+        /**
+         * 
+         * @return true if the output differs from the input, false if the input is already fast start and the view
+         * serves it unchanged
+         */
+        public boolean optimized(){return this.optimized;}
+        
+        /**
+         * 
+         * @return fresh read-only views of the ftyp and moov atoms in output order, none if the input is
+         * already fast start
+         */
+        /* package */
+        ByteBuffer[] header(){
+            ByteBuffer[] ret = new ByteBuffer[this.header.length];
+            for(int i = 0; i < ret.length; i++)
+                ret[i] = this.header[i].duplicate();
+            return ret;
+        }
+        
+        /**
+         * 
+         * @return number of bytes of the output served from memory
+         */
+        /* package */
+        long headerSize(){return this.headerSize;}
+        
+        /**
+         * Reads bytes of the fast start output
+         * @param offset offset in the output to read from
+         * @param dst buffer to fill, up to its remaining bytes
+         * @return number of bytes read, less than remaining only at the end of the output, or -1 if offset is at
+         * or past the end of the output
+         * @throws IOException 
+         */
+        public int read(long offset, ByteBuffer dst) throws IOException{
+            if(offset < 0)
+                throw new IllegalArgumentException("offset " + offset + " is negative");
+            if(offset >= this.size)
+                return -1;
+            
+            int done = 0;
+            long position = 0;
+            for(ByteBuffer part : this.header){
+                int length = part.limit();
+                if(offset < position + length && dst.hasRemaining()){
+                    int from = (int)(offset - position);
+                    int n = Math.min(length - from, dst.remaining());
+                    ByteBuffer src = part.duplicate();
+                    src.limit(from + n).position(from);
+                    dst.put(src);
+                    offset += n;
+                    done += n;
+                }
+                position += length;
+            }
+            
+            int limit = dst.limit();
+            try{
+                if(dst.remaining() > this.size - offset)
+                    dst.limit(dst.position() + (int)(this.size - offset));
+                while(dst.hasRemaining()){
+                    int end = dst.limit();
+                    long run = sourceRun(offset);
+                    if(dst.remaining() > run)
+                        dst.limit(dst.position() + (int)run);
+                    int n = readSource(dst, sourcePosition(offset));
+                    dst.limit(end);
+                    offset += n;
+                    done += n;
+                }
+            }
+            finally{
+                dst.limit(limit);
+            }
+            return done;
+        }
+        
+        /**
+         * 
+         * @return offset in the input of the byte at the given offset of the output, after the header
+         */
+        private long sourcePosition(long offset){
+            return this.layout == null ? offset : this.layout.inputOffset(offset - this.headerSize);
+        }
+        
+        /**
+         * 
+         * @return number of bytes from the given offset of the output that lie back to back in the input
+         */
+        private long sourceRun(long offset){
+            return this.layout == null ? this.size - offset : this.layout.contiguous(offset - this.headerSize);
+        }
+        
+        /**
+         * Writes a range of the fast start output to a channel. The part after the moov atom is copied with
+         * {@link FileChannel#transferTo} when the input is a file
+         * @param offset offset in the output of the first byte
+         * @param count number of bytes, cut at the end of the output
+         * @param target channel to write to, such as a SocketChannel
+         * @return number of bytes written
+         * @throws IOException 
+         */
+        public long transferTo(long offset, long count, WritableByteChannel target) throws IOException{
+            if(offset < 0 || count < 0)
+                throw new IllegalArgumentException("range " + offset + "+" + count + " is negative");
+            
+            long end = Math.min(this.size, offset + count);
+            long done = 0;
+            long position = 0;
+            for(ByteBuffer part : this.header){
+                int length = part.limit();
+                if(offset < position + length && offset < end){
+                    int from = (int)(offset - position);
+                    int n = (int)Math.min(length - from, end - offset);
+                    ByteBuffer src = part.duplicate();
+                    src.limit(from + n).position(from);
+                    while(src.hasRemaining())
+                        target.write(src);
+                    offset += n;
+                    done += n;
+                }
+                position += length;
+            }
+            
+            if(offset >= end)
+                return done;
+            
+            for(long at = offset; at < end; ){
+                long n = Math.min(end - at, sourceRun(at));
+                transferSource(sourcePosition(at), n, target);
+                at += n;
+            }
+            return done + (end - offset);
+        }
+        
+        /**
+         * Writes a range of the input to the channel
+         */
+        private void transferSource(long from, long left, WritableByteChannel target) throws IOException{
+            if(this.file != null){
+                while(left > 0){
+                    long n = this.file.transferTo(from, left, target);
+                    if(n <= 0)
+                        throw new IOException("input ended " + left + " bytes before the expected end");
+                    from += n;
+                    left -= n;
+                }
+            }
+            else if(this.data != null){
+                ByteBuffer src = this.data.duplicate();
+                src.limit((int)(from + left)).position((int)from);
+                while(src.hasRemaining())
+                    target.write(src);
+            }
+            else{
+                ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(left, 64 * 1024));
+                while(left > 0){
+                    buffer.clear().limit((int)Math.min(left, buffer.capacity()));
+                    while(buffer.hasRemaining())
+                        from += readSource(buffer, from);
+                    buffer.flip();
+                    while(buffer.hasRemaining())
+                        target.write(buffer);
+                    left -= buffer.limit();
+                }
+            }
+        }
+        
+        private int readSource(ByteBuffer dst, long position) throws IOException{
+            int n = this.source.read(dst, position);
+            if(n < 0)
+                throw new IOException("input ended before the expected end of the output");
+            return n;
+        }
+        
+        /**
+         * Closes the input file of the view, if any
+         * @throws IOException 
+         */
+        @Override
+        public void close() throws IOException{
+            if(this.file != null)
+                this.file.close();
+        }
+    
+}
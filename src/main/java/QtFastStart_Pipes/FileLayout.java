@@ -0,0 +1,166 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * @author SkibbleBip
+ * Summary of the top level atoms of a file, as found by {@link QtFastStart#inspect(java.nio.file.Path)}
+ * from the atom headers alone
+ */
+public class FileLayout {
+    
+        private final List<AtomInfo> atoms;
+        private final boolean moovCompressed;
+        private final boolean fragmented;
+        private final long inflatedMoovSize;
+        
+        /* package */
+        FileLayout(List<AtomInfo> atoms, boolean moovCompressed, boolean fragmented, long inflatedMoovSize){
+            this.atoms = Collections.unmodifiableList(atoms);
+            this.moovCompressed = moovCompressed;
+            this.fragmented = fragmented;
+            this.inflatedMoovSize = inflatedMoovSize;
+        }
+        
+        /**
+         * 
+         * @return top level atoms in file order, up to the point the walk stopped
+         */
+        public List<AtomInfo> atoms(){return this.atoms;}
+        
+        /**
+         * 
+         * @param type fourcc of the atom, such as "moov"
+         * @return first top level atom of the given type, or null
+         */
+        public AtomInfo find(String type){
+            for(AtomInfo atom : this.atoms)
+                if(atom.type.equals(type))
+                    return atom;
+            return null;
+        }
+        
+        /**
+         * 
+         * @return offset of the moov atom, or -1 if none was found
+         */
+        public long moovOffset(){
+            AtomInfo moov = find("moov");
+            return moov == null ? -1 : moov.offset;
+        }
+        
+        /**
+         * 
+         * @return size of the moov atom, or -1 if none was found
+         */
+        public long moovSize(){
+            AtomInfo moov = find("moov");
+            return moov == null ? -1 : moov.size;
+        }
+        
+        /**
+         * 
+         * @return true if the moov atom holds a compressed cmov atom
+         */
+        public boolean moovCompressed(){return this.moovCompressed;}
+        
+        /**
+         * 
+         * @return size of the moov atom once its cmov atom is inflated, as declared by the cmvd atom; the size of
+         * the moov atom itself if it is not compressed, or -1 if there is no moov atom or its cmvd atom was not found
+         */
+        public long inflatedMoovSize(){return this.moovCompressed ? this.inflatedMoovSize : moovSize();}
+        
+        /**
+         * 
+         * @return true if the walk met a movie fragment atom, such as moof, sidx or styp, of a fragmented MP4 or
+         * CMAF file
+         */
+        public boolean isFragmented(){return this.fragmented;}
+        
+        /**
+         * 
+         * @return true if there is a moov atom and it comes before any mdat atom, or the file is fragmented, so the
+         * file can already be streamed
+         */
+        public boolean isFastStart(){
+            if(this.fragmented)
+                return true;
+            for(AtomInfo atom : this.atoms){
+                if(atom.type.equals("moov"))
+                    return true;
+                if(atom.type.equals("mdat"))
+                    return false;
+            }
+            return false;
+        }
+        
+        @Override
+        public String toString(){
+            return "FileLayout" + this.atoms + (this.moovCompressed ? " compressed moov" : "") + (this.fragmented ? " fragmented" : "");
+        }
+    
+    /**
+     * A top level atom header
+     */
+    public static class AtomInfo {
+        private final String type;
+        private final long offset;
+        private final long size;
+        
+        /* package */
+        AtomInfo(int type, long offset, long size){
+            this.type = new String(new char[]{
+                (char)((type >> 24) & 255), (char)((type >> 16) & 255), (char)((type >> 8) & 255), (char)(type & 255)});
+            this.offset = offset;
+            this.size = size;
+        }
+        
+        /**
+         * 
+         * @return fourcc of the atom
+         */
+        public String type(){return this.type;}
+        /**
+         * 
+         * @return offset of the atom header in the file
+         */
+        public long offset(){return this.offset;}
+        /**
+         * 
+         * @return size of the atom including its header
+         */
+        public long size(){return this.size;}
+        
+        @Override
+        public String toString(){
+            return this.type + "@" + this.offset + "+" + this.size;
+        }
+    }
+    
+}
@@ -0,0 +1,114 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import QtFastStart_Pipes.ArtificialFileStream.BadFileSizeException;
+import QtFastStart_Pipes.QtFastStart.MalformedFileException;
+import QtFastStart_Pipes.QtFastStart.UnsupportedFileException;
+import QtFastStart_Pipes.QtFastStartListener.Outcome;
+
+/**
+ *
+ * @author SkibbleBip
+ * Times the phases of one QtFastStart call and forwards them to the listener of its options
+ */
+class Instrumentation {
+    
+        private static final QtFastStartListener NONE = new QtFastStartListener(){};
+    
+        private final QtFastStartListener listener;
+        private final long start;
+        private boolean finished = false;
+        private Outcome unchanged = Outcome.ALREADY_FAST_START;
+        
+        /**
+         * Starts the clock of a call
+         * @param options options of the call
+         */
+        Instrumentation(FastStartOptions options){
+            this.listener = options.listener() == null ? NONE : options.listener();
+            this.start = System.nanoTime();
+        }
+        
+        /**
+         * 
+         * @return current time, to be passed as the start of a phase
+         */
+        long now(){return System.nanoTime();}
+        
+        void atomScanFinished(int atomCount, long since){
+            this.listener.atomScanFinished(atomCount, System.nanoTime() - since);
+        }
+        
+        void moovLoaded(long moovSize, long since){
+            this.listener.moovLoaded(moovSize, System.nanoTime() - since);
+        }
+        
+        void offsetsPatched(long stcoEntries, long co64Entries, long since){
+            this.listener.offsetsPatched(stcoEntries, co64Entries, System.nanoTime() - since);
+        }
+        
+        void dataCopied(long bytes, long since){
+            this.listener.dataCopied(bytes, System.nanoTime() - since);
+        }
+        
+        /**
+         * Marks the input as one whose top level atoms could not be walked, so a call that leaves it unchanged
+         * reports {@link Outcome#UNWALKABLE} rather than {@link Outcome#ALREADY_FAST_START}
+         */
+        void unwalkable(){
+            this.unchanged = Outcome.UNWALKABLE;
+        }
+        
+        /**
+         * Reports the end of a call that completed, once
+         * @param optimized true if the output was rewritten, false if the input was left unchanged
+         */
+        void finished(boolean optimized){
+            finish(optimized ? Outcome.OPTIMIZED : this.unchanged, null);
+        }
+        
+        /**
+         * Reports the end of a call that threw, once
+         * @param failure exception the call failed with
+         */
+        void failed(Throwable failure){
+            Outcome outcome;
+            if(failure instanceof MalformedFileException)
+                outcome = Outcome.MALFORMED;
+            else if(failure instanceof UnsupportedFileException || failure instanceof BadFileSizeException)
+                outcome = Outcome.UNSUPPORTED;
+            else
+                outcome = Outcome.FAILED;
+            finish(outcome, failure);
+        }
+        
+        private void finish(Outcome outcome, Throwable failure){
+            if(this.finished)
+                return;
+            this.finished = true;
+            this.listener.finished(outcome, System.nanoTime() - this.start, failure);
+        }
+    
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * @author SkibbleBip
+ * A pool of bytes shared by concurrent fast start jobs. A job reserves the memory it is about to hold,
+ * its input and output buffers or its moov atom, before it starts and gives it back when it is done,
+ * so several large files arriving at once are processed one after the other instead of all at once.
+ * Waiting goes through a ReentrantLock rather than a monitor, so a virtual thread waiting for its share
+ * unmounts from its carrier thread
+ */
+public class MemoryBudget {
+    
+        private final long total;
+        private long available;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition released = this.lock.newCondition();
+        
+        /**
+         * 
+         * @param total number of bytes that may be reserved at the same time
+         */
+        public MemoryBudget(long total){
+            if(total <= 0)
+                throw new IllegalArgumentException("memory budget " + total + " is not positive");
+            this.total = total;
+            this.available = total;
+        }
+        
+        /**
+         * 
+         * @return number of bytes that may be reserved at the same time
+         */
+        public long total(){return this.total;}
+        
+        /**
+         * 
+         * @return number of bytes not reserved right now
+         */
+        public long available(){
+            this.lock.lock();
+            try{
+                return this.available;
+            }
+            finally{
+                this.lock.unlock();
+            }
+        }
+        
+        /**
+         * Reserves bytes, waiting until enough of them are released. A request bigger than the whole budget
+         * waits for the whole budget, so an oversized job runs alone instead of never running
+         * @param bytes number of bytes to reserve
+         * @return number of bytes actually reserved, to be passed to {@link #release(long)}
+         * @throws InterruptedException 
+         */
+        public long acquire(long bytes) throws InterruptedException{
+            if(bytes < 0)
+                throw new IllegalArgumentException("cannot reserve " + bytes + " bytes");
+            
+            long reserved = Math.min(bytes, this.total);
+            this.lock.lockInterruptibly();
+            try{
+                while(this.available < reserved)
+                    this.released.await();
+                this.available -= reserved;
+            }
+            finally{
+                this.lock.unlock();
+            }
+            return reserved;
+        }
+        
+        /**
+         * 
+         * @param bytes number of bytes returned by {@link #acquire(long)}
+         */
+        public void release(long bytes){
+            this.lock.lock();
+            try{
+                this.available = Math.min(this.total, this.available + bytes);
+                this.released.signalAll();
+            }
+            finally{
+                this.lock.unlock();
+            }
+        }
+    
+}
@@ -0,0 +1,204 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ *
+ * @author SkibbleBip
+ * Keeps the patched moov atoms of recently processed files, so a file that is fast started again only has its
+ * ftyp, the cached moov and its media data streamed out instead of having its moov read and patched once more.
+ * Files are identified by path, size and modification time; a file that changed on disk simply misses.
+ * The least recently used entries are evicted once the cached atoms exceed the byte limit
+ */
+public class MoovCache {
+    
+        private final long maxBytes;
+        private final LinkedHashMap<Key, FastStartLayout> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes = 0;
+        private long hits = 0;
+        private long misses = 0;
+        
+        /**
+         * 
+         * @param maxBytes number of bytes of ftyp and moov atoms the cache may hold
+         */
+        public MoovCache(long maxBytes){
+            if(maxBytes <= 0)
+                throw new IllegalArgumentException("moov cache size " + maxBytes + " is not positive");
+            this.maxBytes = maxBytes;
+        }
+        
+        /**
+         * 
+         * @return number of bytes of ftyp and moov atoms the cache may hold
+         */
+        public long maxBytes(){return this.maxBytes;}
+        
+        /**
+         * 
+         * @return number of bytes of ftyp and moov atoms held right now
+         */
+        public synchronized long bytes(){return this.bytes;}
+        
+        /**
+         * 
+         * @return number of files cached right now
+         */
+        public synchronized int size(){return this.entries.size();}
+        
+        /**
+         * 
+         * @return number of lookups answered from the cache
+         */
+        public synchronized long hits(){return this.hits;}
+        
+        /**
+         * 
+         * @return number of lookups that had to read and patch the moov atom
+         */
+        public synchronized long misses(){return this.misses;}
+        
+        /**
+         * Drops every cached entry of a file, whatever its size and modification time were
+         * @param file path of the file
+         */
+        public synchronized void invalidate(Path file){
+            Path path = normalize(file);
+            Iterator<Map.Entry<Key, FastStartLayout>> it = this.entries.entrySet().iterator();
+            while(it.hasNext()){
+                Map.Entry<Key, FastStartLayout> e = it.next();
+                if(e.getKey().path.equals(path)){
+                    this.bytes -= e.getValue().headerSize();
+                    it.remove();
+                }
+            }
+        }
+        
+        /**
+         * Drops every cached entry
+         */
+        public synchronized void clear(){
+            this.entries.clear();
+            this.bytes = 0;
+        }
+        
+        /**
+         * 
+         * @param file path of the file
+         * @param size size of the file as seen through the channel it is read from
+         * @param options settings the moov atom is patched with
+         * @return identity of the file as it is on disk right now, patched with these settings
+         * @throws IOException 
+         */
+        static Key key(Path file, long size, FastStartOptions options) throws IOException{
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return new Key(normalize(file), size, attributes.lastModifiedTime().toMillis(), options.moovPadding(), options.recompressMoov());
+        }
+        
+        /**
+         * 
+         * @param key identity of the file
+         * @return cached layout of the file, or null
+         */
+        synchronized FastStartLayout get(Key key){
+            FastStartLayout layout = this.entries.get(key);
+            if(layout == null)
+                this.misses++;
+            else
+                this.hits++;
+            return layout;
+        }
+        
+        /**
+         * Caches a layout, evicting the least recently used entries until it fits. A layout bigger than the
+         * whole cache is not kept
+         * @param key identity of the file
+         * @param layout layout computed for it
+         */
+        synchronized void put(Key key, FastStartLayout layout){
+            long weight = layout.headerSize();
+            if(weight > this.maxBytes)
+                return;
+            
+            FastStartLayout old = this.entries.put(key, layout);
+            if(old != null)
+                this.bytes -= old.headerSize();
+            this.bytes += weight;
+            
+            Iterator<FastStartLayout> eldest = this.entries.values().iterator();
+            while(this.bytes > this.maxBytes){
+                this.bytes -= eldest.next().headerSize();
+                eldest.remove();
+            }
+        }
+        
+        private static Path normalize(Path file){
+            return file.toAbsolutePath().normalize();
+        }
+        
+        /**
+         * Path, size and modification time of a file, and the padding and compression its moov atom was patched for
+         */
+        static final class Key {
+            
+                final Path path;
+                final long size;
+                final long modified;
+                final int padding;
+                final boolean recompress;
+                
+                Key(Path path, long size, long modified, int padding, boolean recompress){
+                    this.path = path;
+                    this.size = size;
+                    this.modified = modified;
+                    this.padding = padding;
+                    this.recompress = recompress;
+                }
+                
+                @Override
+                public boolean equals(Object o){
+                    if(!(o instanceof Key))
+                        return false;
+                    Key k = (Key)o;
+                    return this.size == k.size && this.modified == k.modified && this.padding == k.padding
+                            && this.recompress == k.recompress && this.path.equals(k.path);
+                }
+                
+                @Override
+                public int hashCode(){
+                    return Objects.hash(this.path, this.size, this.modified, this.padding, this.recompress);
+                }
+            
+        }
+    
+}
@@ -0,0 +1,194 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import QtFastStart_Pipes.QtFastStart.MalformedFileException;
+import QtFastStart_Pipes.QtFastStart.UnsupportedFileException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * @author SkibbleBip
+ * Rewrites the stco atoms of a moov atom whose entries would no longer fit in 32 bits once the media data moves
+ * into co64 atoms, which hold the same entries in 64 bits. The moov atom grows by 4 bytes per promoted entry,
+ * which moves the media data further, so tables are promoted until no remaining stco atom overflows. The sizes
+ * of the stbl, minf, mdia, trak and moov atoms around a promoted table grow with it
+ */
+final class MoovRewriter {
+    
+        private static final long UINT32_MAX = 0xFFFFFFFFL;
+        private static final int FREE = CompressedMoov.FREE;
+    
+        private MoovRewriter(){}
+        
+        /**
+         * 
+         * @param moovAtom patched moov atom
+         * @param padding number of bytes reserved after the moov atom, 0 or at least the 8 bytes of a free atom header
+         * @return the moov atom itself without padding, or a copy of it followed by a free atom of padding bytes
+         * @throws UnsupportedFileException if the padded moov atom is too big
+         */
+        static ByteBuffer pad(ByteBuffer moovAtom, int padding) throws UnsupportedFileException{
+            if(padding == 0)
+                return moovAtom;
+            
+            long size = (long)moovAtom.remaining() + padding;
+            if(size > Integer.MAX_VALUE - 8)
+                throw new UnsupportedFileException("moov atom with " + padding + " bytes of padding is too big");
+            // zeroed, so the reserved space holds no stale data
+            ByteBuffer out = ByteBuffer.allocate((int)size).order(ByteOrder.BIG_ENDIAN);
+            out.put(moovAtom.duplicate());
+            out.putInt(padding).putInt(FREE);
+            out.clear();
+            return out;
+        }
+        
+        /**
+         * 
+         * @param moovAtom uncompressed moov atom, not patched yet
+         * @param extra number of bytes written between the moov atom and the media data on top of the moov atom
+         * itself, 0 when the media data directly follows it
+         * @return the moov atom itself if no stco entry overflows, or a bigger copy of it with the overflowing
+         * stco atoms turned into co64 atoms. Either way its chunk offsets are still to be patched by its size
+         * plus extra
+         * @throws MalformedFileException
+         * @throws UnsupportedFileException if the promoted moov atom is too big
+         */
+        static ByteBuffer promoteOverflowingStco(ByteBuffer moovAtom, long extra) throws MalformedFileException, UnsupportedFileException{
+            Atom moov = Atom.parseMoov(moovAtom);
+            List<Atom> stcos = moov.findAll(Atom.STCO, new ArrayList<>());
+            if(stcos.isEmpty())
+                return moovAtom;
+            
+            int[] counts = new int[stcos.size()];
+            long[] maxima = new long[stcos.size()];
+            long[] growths = new long[stcos.size()];
+            for(int i = 0; i < counts.length; i++){
+                Atom stco = stcos.get(i);
+                if(stco.size < stco.headerSize + 8)
+                    throw new MalformedFileException("malformed atom");
+                int entries = stco.payloadOffset() + 8;
+                counts[i] = QtFastStart.uint32ToInt(moovAtom.getInt(entries - 4));
+                if(stco.end() - entries < (long)counts[i] * 4)
+                    throw new MalformedFileException("bad atom size/element count");
+                long max = 0;
+                for(int e = 0; e < counts[i]; e++)
+                    max = Math.max(max, moovAtom.getInt(entries + e * 4) & UINT32_MAX);
+                maxima[i] = max;
+                // the co64 atom is written with an 8 byte header and 8 byte entries
+                growths[i] = 4L * counts[i] + 8 - stco.headerSize;
+            }
+            
+            // promoting a table moves the media data further, which can push other tables over the limit
+            boolean[] promoted = new boolean[counts.length];
+            long growth = 0;
+            boolean changed = true;
+            while(changed){
+                changed = false;
+                long delta = moovAtom.remaining() + growth + extra;
+                for(int i = 0; i < counts.length; i++){
+                    if(!promoted[i] && maxima[i] + delta > UINT32_MAX){
+                        promoted[i] = true;
+                        growth += growths[i];
+                        changed = true;
+                    }
+                }
+            }
+            if(growth == 0)
+                return moovAtom;
+            
+            long newSize = moovAtom.remaining() + growth;
+            if(newSize > Integer.MAX_VALUE - 8)
+                throw new UnsupportedFileException("moov atom of " + newSize + " bytes with co64 atoms is too big");
+            if(QtFastStart.sDEBUG)
+                QtFastStart.printf("promoting stco atoms to co64, moov atom grows by %d bytes...", growth);
+            
+            // copy the moov atom, writing the promoted tables as co64 atoms, and count how much each ancestor grows
+            ByteBuffer out = ByteBuffer.allocate((int)newSize).order(ByteOrder.BIG_ENDIAN);
+            Map<Atom, Long> grown = new IdentityHashMap<>();
+            int cursor = 0;
+            for(int i = 0; i < counts.length; i++){
+                if(!promoted[i])
+                    continue;
+                Atom stco = stcos.get(i);
+                copy(moovAtom, cursor, stco.offset, out);
+                
+                int entries = stco.payloadOffset() + 8;
+                int co64Size = 16 + counts[i] * 8;
+                out.putInt(co64Size).putInt(Atom.CO64);
+                out.putInt(moovAtom.getInt(entries - 8)); // version and flags
+                out.putInt(counts[i]);
+                for(int e = 0; e < counts[i]; e++)
+                    out.putLong(moovAtom.getInt(entries + e * 4) & UINT32_MAX);
+                // bytes of the stco atom after its table, if any, go after the co64 table
+                int tail = entries + counts[i] * 4;
+                copy(moovAtom, tail, stco.end(), out);
+                cursor = stco.end();
+                
+                for(Atom a = stco.parent; a != null; a = a.parent)
+                    grown.merge(a, growths[i], Long::sum);
+            }
+            copy(moovAtom, cursor, moovAtom.limit(), out);
+            
+            for(Map.Entry<Atom, Long> e : grown.entrySet())
+                growSize(moovAtom, out, e.getKey(), e.getValue(), stcos, promoted, growths);
+            
+            out.clear();
+            return out;
+        }
+        
+        private static void copy(ByteBuffer src, int from, int to, ByteBuffer dst){
+            ByteBuffer range = src.duplicate();
+            range.limit(to).position(from);
+            dst.put(range);
+        }
+        
+        /**
+         * Adds to the size field of an ancestor of promoted tables, found in the copy after every promoted table
+         * that precedes it
+         */
+        private static void growSize(ByteBuffer src, ByteBuffer dst, Atom atom, long added, List<Atom> stcos, boolean[] promoted, long[] growths) throws UnsupportedFileException{
+            long shift = 0;
+            for(int i = 0; i < promoted.length; i++)
+                if(promoted[i] && stcos.get(i).end() <= atom.offset)
+                    shift += growths[i];
+            int offset = (int)(atom.offset + shift);
+            
+            long size = QtFastStart.uint32ToLong(src.getInt(atom.offset));
+            if(size == 1){
+                dst.putLong(offset + 8, src.getLong(atom.offset + 8) + added);
+            }
+            else if(size != 0){
+                if(size + added > UINT32_MAX)
+                    throw new UnsupportedFileException("atom grows past 4 GB with co64 atoms");
+                dst.putInt(offset, (int)(size + added));
+            }
+        }
+    
+}
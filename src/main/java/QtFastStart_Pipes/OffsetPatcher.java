@@ -0,0 +1,233 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import QtFastStart_Pipes.QtFastStart.MalformedFileException;
+import QtFastStart_Pipes.QtFastStart.UnsupportedFileException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ *
+ * @author SkibbleBip
+ * Adds a delta to every entry of the stco and co64 tables of a moov atom. Entries are moved in blocks
+ * through IntBuffer/LongBuffer views into primitive arrays, patched with a branch-free loop the JIT can
+ * vectorize, and written back. Tables with many entries can be split across a ForkJoinPool. When the options
+ * ask for a seek index, the patched entries are also copied out of those arrays, so the index is built from the
+ * tables decoded here instead of parsing the moov atom again
+ */
+class OffsetPatcher {
+    
+        // entries moved between the moov buffer and the primitive arrays at a time
+        private static final int BLOCK_SIZE = 4096;
+        // tables are not split below this many entries per task
+        private static final int MIN_SPLIT = 64 * 1024;
+    
+        private final ForkJoinPool pool;
+        private final int parallelThreshold;
+        private final boolean indexed;
+        private long stcoEntries = 0;
+        private long co64Entries = 0;
+        private SeekIndex seekIndex = null;
+        
+        /**
+         * 
+         * @param options pool and threshold for parallel patching, and whether a seek index is built
+         */
+        OffsetPatcher(FastStartOptions options){
+            this.pool = options.parallelPatchPool();
+            this.parallelThreshold = options.parallelPatchThreshold();
+            this.indexed = options.seekIndex() != null;
+        }
+        
+        /**
+         * 
+         * @return number of stco entries patched so far
+         */
+        long stcoEntries(){return this.stcoEntries;}
+        /**
+         * 
+         * @return number of co64 entries patched so far
+         */
+        long co64Entries(){return this.co64Entries;}
+        /**
+         * 
+         * @return seek index of the moov atom patched last, or null if the options ask for none
+         */
+        SeekIndex seekIndex(){return this.seekIndex;}
+        
+        /**
+         * 
+         * @param moovAtom whole uncompressed moov atom
+         * @param moov atom tree of the moov atom
+         * @param delta number of bytes the chunks move by
+         * @throws MalformedFileException if a table does not fit in its atom
+         * @throws UnsupportedFileException if a patched stco entry does not fit in 32 bits
+         */
+        void patch(ByteBuffer moovAtom, Atom moov, long delta) throws MalformedFileException, UnsupportedFileException{
+            List<Atom> tables = moov.findAll(Atom.STCO, new ArrayList<>());
+            moov.findAll(Atom.CO64, tables);
+            Map<Atom, long[]> patched = this.indexed ? new IdentityHashMap<>() : null;
+            
+            for(Atom table : tables){
+                if(table.size < table.headerSize + 8)
+                    throw new MalformedFileException("malformed atom");
+                
+                // skip size, type, version (1 byte) and flags (3 bytes)
+                int entries = table.payloadOffset() + 8;
+                // uint32_t, but assuming moovAtomSize is in int32 range, so this will be in int32 range
+                int offsetCount = QtFastStart.uint32ToInt(moovAtom.getInt(entries - 4));
+                int entrySize = table.type == Atom.STCO ? 4 : 8;
+                if(table.end() - entries < (long)offsetCount * entrySize)
+                    throw new MalformedFileException("bad atom size/element count");
+                
+                if(QtFastStart.sDEBUG)
+                    QtFastStart.printf("patching %s atom, %d entries...", table.type == Atom.STCO ? "stco" : "co64", offsetCount);
+                
+                ByteBuffer view = moovAtom.duplicate();
+                view.position(entries).limit(entries + offsetCount * entrySize);
+                view = view.slice(); // big endian, as a fresh slice always is
+                long[] offsets = null;
+                if(patched != null)
+                    patched.put(table, offsets = new long[offsetCount]);
+                
+                boolean overflow;
+                if(this.pool != null && offsetCount >= this.parallelThreshold)
+                    overflow = this.pool.invoke(new PatchTask(view, entrySize, 0, offsetCount, delta, offsets));
+                else
+                    overflow = patchRange(view, entrySize, 0, offsetCount, delta, offsets);
+                
+                if(entrySize == 4)
+                    this.stcoEntries += offsetCount;
+                else
+                    this.co64Entries += offsetCount;
+                
+                if(overflow)
+                    throw new UnsupportedFileException("patched stco entry overflows uint32: "
+                            + "the stco atom should have been promoted to a co64 atom first");
+            }
+            
+            // a recompressed moov atom is patched once per round, the last round holds the offsets written out
+            if(patched != null)
+                this.seekIndex = SeekIndex.of(moovAtom, moov, patched);
+        }
+        
+        /**
+         * @param offsets array the patched entries from..to are copied to for the seek index, or null
+         * @return true if an stco entry overflowed uint32
+         */
+        private static boolean patchRange(ByteBuffer table, int entrySize, int from, int to, long delta, long[] offsets){
+            if(entrySize == 4){
+                IntBuffer view = table.asIntBuffer();
+                int[] block = new int[Math.min(BLOCK_SIZE, to - from)];
+                int overflow = 0;
+                for(int i = from; i < to; i += block.length){
+                    int n = Math.min(block.length, to - i);
+                    view.position(i);
+                    view.get(block, 0, n);
+                    overflow |= patchStco(block, n, (int)delta);
+                    view.position(i);
+                    view.put(block, 0, n);
+                    if(offsets != null)
+                        for(int k = 0; k < n; k++)
+                            offsets[i + k] = Integer.toUnsignedLong(block[k]);
+                }
+                return overflow < 0;
+            }
+            
+            LongBuffer view = table.asLongBuffer();
+            long[] block = new long[Math.min(BLOCK_SIZE, to - from)];
+            for(int i = from; i < to; i += block.length){
+                int n = Math.min(block.length, to - i);
+                view.position(i);
+                view.get(block, 0, n);
+                patchCo64(block, n, delta);
+                view.position(i);
+                view.put(block, 0, n);
+                if(offsets != null)
+                    System.arraycopy(block, 0, offsets, i, n);
+            }
+            return false;
+        }
+        
+        /**
+         * @return negative if an entry wrapped around uint32
+         */
+        private static int patchStco(int[] block, int n, int delta){
+            int overflow = 0;
+            for(int i = 0; i < n; i++){
+                int currentOffset = block[i];
+                int newOffset = currentOffset + delta; // calculate uint32 in int, bitwise addition
+                // current 0xffffffff => new 0x00000000 (actual >= 0x0000000100000000L)
+                overflow |= currentOffset & ~newOffset;
+                block[i] = newOffset;
+            }
+            return overflow;
+        }
+        
+        private static void patchCo64(long[] block, int n, long delta){
+            for(int i = 0; i < n; i++)
+                block[i] += delta; // calculate uint64 in long, bitwise addition
+        }
+        
+        private static class PatchTask extends RecursiveTask<Boolean> {
+            private static final long serialVersionUID = 1L;
+
+            private final ByteBuffer table;
+            private final int entrySize;
+            private final int from;
+            private final int to;
+            private final long delta;
+            private final long[] offsets;
+            
+            PatchTask(ByteBuffer table, int entrySize, int from, int to, long delta, long[] offsets){
+                this.table = table;
+                this.entrySize = entrySize;
+                this.from = from;
+                this.to = to;
+                this.delta = delta;
+                this.offsets = offsets;
+            }
+            
+            @Override
+            protected Boolean compute(){
+                if(this.to - this.from <= MIN_SPLIT)
+                    return patchRange(this.table, this.entrySize, this.from, this.to, this.delta, this.offsets);
+                
+                int middle = (this.from + this.to) >>> 1;
+                PatchTask left = new PatchTask(this.table, this.entrySize, this.from, middle, this.delta, this.offsets);
+                left.fork();
+                boolean right = new PatchTask(this.table, this.entrySize, middle, this.to, this.delta, this.offsets).compute();
+                return left.join() | right;
+            }
+        }
+    
+}
@@ -28,8 +28,17 @@ import QtFastStart_Pipes.ArtificialFileStream.BadFilePositionException;
 import QtFastStart_Pipes.ArtificialFileStream.BadFileSizeException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -83,45 +92,144 @@ public class QtFastStart {
         return ByteBuffer.wrap(byteArray).order(ByteOrder.BIG_ENDIAN).getInt();
     }
 
-    private static void printf(String format, Object... args) {
+    /* package */
+    static void printf(String format, Object... args) {
         if (sDEBUG) System.err.println("QtFastStart: " + String.format(format, args));
     }
 
 
-    private static ByteBuffer readAndFill(ArtificialFileStream infile, ByteBuffer buffer)/* throws IOException*/ {
+    private static ByteBuffer readAndFill(AtomInput infile, ByteBuffer buffer, long position) throws IOException {
         buffer = buffer.clear();
 
-        buffer = infile.read(buffer);
-        buffer.flip();
-        return  buffer;
-    }
+        while (buffer.hasRemaining()) {
+            int n = infile.read(buffer, position);
+            if (n < 0)
+                break;
+            position += n;
+        }
 
-    private static ByteBuffer readAndFill(ArtificialFileStream infile, ByteBuffer buffer, long position) throws BadFilePositionException{
-        buffer = buffer.clear();
-        
-        buffer = infile.read(buffer, (int)position);
-        
         buffer.flip();
         return buffer;//size == buffer.capacity();
     }
 
+    private static void writeFully(WritableByteChannel outfile, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            outfile.write(buffer);
+    }
+
+    private static void transferFully(FileChannel infile, long position, long count, WritableByteChannel outfile) throws IOException {
+        while (count > 0) {
+            long n = infile.transferTo(position, count, outfile);
+            if (n <= 0)
+                throw new IOException("input ended " + count + " bytes before the expected end");
+            position += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Copies through a direct buffer instead of {@link FileChannel#transferTo}, so every block can be added to
+     * the checksums between its read and its write
+     * @param outfile channel to write to, or null to only compute the checksums
+     */
+    private static void copyFully(FileChannel infile, long position, long count, WritableByteChannel outfile, Checksums checksums) throws IOException {
+        ByteBuffer block = ByteBuffer.allocateDirect((int)Math.min(count, CHECKSUM_BLOCK_SIZE));
+        while (count > 0) {
+            block.clear().limit((int)Math.min(block.capacity(), count));
+            int n = infile.read(block, position);
+            if (n < 0)
+                throw new IOException("input ended " + count + " bytes before the expected end");
+            block.flip();
+            checksums.update(block);
+            if (outfile != null)
+                writeFully(outfile, block);
+            position += n;
+            count -= n;
+        }
+    }
+
+    private static void writeFully(FileChannel outfile, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += outfile.write(buffer, position);
+    }
+
+    /**
+     * Moves count bytes of a file from one position to another through one block sized buffer. The blocks are
+     * copied back to front when the range moves towards the end of the file, and front to back otherwise, so the
+     * source of a block is never overwritten before it is read.
+     */
+    private static void moveFully(FileChannel file, long from, long to, long count, ByteBuffer block) throws IOException {
+        boolean backwards = to > from;
+        long done = 0;
+        while (done < count) {
+            int n = (int) Math.min(block.capacity(), count - done);
+            long offset = backwards ? count - done - n : done;
+            block.clear().limit(n);
+            while (block.hasRemaining())
+                if (file.read(block, from + offset + block.position()) < 0)
+                    throw new IOException("input ended " + (count - done) + " bytes before the expected end");
+            block.flip();
+            writeFully(file, block, to + offset);
+            done += n;
+        }
+    }
+
+    /** Number of bytes moved at a time by {@link #fastStartInPlace(Path)} */
+    public static final int IN_PLACE_BLOCK_SIZE = 1024 * 1024;
+    // bytes of a file copied at a time when the copy is checksummed
+    private static final int CHECKSUM_BLOCK_SIZE = 1024 * 1024;
+
     /* top level atoms */
     private static final int FREE_ATOM = fourCcToInt(new byte[]{'f', 'r', 'e', 'e'});
     private static final int JUNK_ATOM = fourCcToInt(new byte[]{'j', 'u', 'n', 'k'});
-    private static final int MDAT_ATOM = fourCcToInt(new byte[]{'m', 'd', 'a', 't'});
-    private static final int MOOV_ATOM = fourCcToInt(new byte[]{'m', 'o', 'o', 'v'});
+    static final int MDAT_ATOM = fourCcToInt(new byte[]{'m', 'd', 'a', 't'});
+    static final int MOOV_ATOM = fourCcToInt(new byte[]{'m', 'o', 'o', 'v'});
     private static final int PNOT_ATOM = fourCcToInt(new byte[]{'p', 'n', 'o', 't'});
     private static final int SKIP_ATOM = fourCcToInt(new byte[]{'s', 'k', 'i', 'p'});
     private static final int WIDE_ATOM = fourCcToInt(new byte[]{'w', 'i', 'd', 'e'});
     private static final int PICT_ATOM = fourCcToInt(new byte[]{'P', 'I', 'C', 'T'});
-    private static final int FTYP_ATOM = fourCcToInt(new byte[]{'f', 't', 'y', 'p'});
+    static final int FTYP_ATOM = fourCcToInt(new byte[]{'f', 't', 'y', 'p'});
     private static final int UUID_ATOM = fourCcToInt(new byte[]{'u', 'u', 'i', 'd'});
 
     private static final int CMOV_ATOM = fourCcToInt(new byte[]{'c', 'm', 'o', 'v'});
-    private static final int STCO_ATOM = fourCcToInt(new byte[]{'s', 't', 'c', 'o'});
-    private static final int CO64_ATOM = fourCcToInt(new byte[]{'c', 'o', '6', '4'});
 
-    private static final int ATOM_PREAMBLE_SIZE = 8;
+    /* top level atoms of fragmented and CMAF files */
+    private static final int MOOF_ATOM = fourCcToInt(new byte[]{'m', 'o', 'o', 'f'});
+    private static final int MFRA_ATOM = fourCcToInt(new byte[]{'m', 'f', 'r', 'a'});
+    private static final int SIDX_ATOM = fourCcToInt(new byte[]{'s', 'i', 'd', 'x'});
+    private static final int SSIX_ATOM = fourCcToInt(new byte[]{'s', 's', 'i', 'x'});
+    private static final int STYP_ATOM = fourCcToInt(new byte[]{'s', 't', 'y', 'p'});
+    private static final int EMSG_ATOM = fourCcToInt(new byte[]{'e', 'm', 's', 'g'});
+    private static final int PRFT_ATOM = fourCcToInt(new byte[]{'p', 'r', 'f', 't'});
+
+    static final int ATOM_PREAMBLE_SIZE = 8;
+
+    static boolean isQtTopLevelAtom(int atomType) {
+        return (atomType == FREE_ATOM)
+                || (atomType == JUNK_ATOM)
+                || (atomType == MDAT_ATOM)
+                || (atomType == MOOV_ATOM)
+                || (atomType == PNOT_ATOM)
+                || (atomType == SKIP_ATOM)
+                || (atomType == WIDE_ATOM)
+                || (atomType == PICT_ATOM)
+                || (atomType == UUID_ATOM)
+                || (atomType == FTYP_ATOM);
+    }
+
+    /**
+     * @return true for the top level atoms of fragmented MP4 and CMAF files, which carry their sample tables
+     * in the fragments and can already be streamed
+     */
+    static boolean isFragmentAtom(int atomType) {
+        return (atomType == MOOF_ATOM)
+                || (atomType == MFRA_ATOM)
+                || (atomType == SIDX_ATOM)
+                || (atomType == SSIX_ATOM)
+                || (atomType == STYP_ATOM)
+                || (atomType == EMSG_ATOM)
+                || (atomType == PRFT_ATOM);
+    }
 
     /**
      * @param in  Input Stream.
@@ -129,19 +237,40 @@ public class QtFastStart {
      * @throws IOException
      */
     public static byte[] fastStart(InputStream in) throws IOException{
+        return fastStart(in, new FastStartOptions());
+    }
+    /**
+     * @param in  Input Stream.
+     * @param options settings to process the input with; no checksums are computed, as the output array has no
+     * room for them, see {@link CompositeOutput#toByteArray(Checksums)}
+     * @return input stream if input file is already fast start, or byte array of the resulting output. An output
+     * over 2 GB does not fit in one array, so it is rejected before it is copied and null is returned; use
+     * {@link #fastStartBuffers(InputStream, FastStartOptions)} or {@link #fastStart(Path, Path, FastStartOptions)} for those
+     * @throws IOException
+     */
+    public static byte[] fastStart(InputStream in, FastStartOptions options) throws IOException{
         
         byte[] ret = null;
-        ArtificialFileStream aStream;
+        ArtificialFileStream aStream = null;
+        Instrumentation metrics = new Instrumentation(options);
         
         try {
             
-            aStream = new ArtificialFileStream(in);
-            ret = fastStartImpl(aStream);
+            aStream = ingest(in, options);
+            ret = fastStartImpl(aStream, options, metrics);
         } catch (BadFileSizeException | MalformedFileException | UnsupportedFileException | BadFilePositionException ex) {
+            metrics.failed(ex);
             Logger.getLogger(QtFastStart.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (IOException ex) {
+            metrics.failed(ex);
+            throw ex;
+        } finally {
+            in.close();
+            // the output is a separate array, so pooled input segments can be reused right away
+            if (aStream != null)
+                aStream.release();
         }
-            
-        in.close();
+
         return ret;
 
     }
@@ -151,214 +280,1156 @@ public class QtFastStart {
      * @throws IOException
      */
     public static byte[] fastStart(byte[] in) throws IOException{
+        return fastStart(in, new FastStartOptions());
+    }
+    /**
+     * @param in byte array.
+     * @param options settings to process the input with; no checksums are computed, as the output array has no
+     * room for them, see {@link CompositeOutput#toByteArray(Checksums)}
+     * @return input bytes if input file is already fast start, or byte array of the resulting output. An output
+     * over 2 GB does not fit in one array, so it is rejected before it is copied and null is returned; use
+     * {@link #fastStartBuffers(byte[], FastStartOptions)} or {@link #fastStart(Path, Path, FastStartOptions)} for those
+     * @throws IOException
+     */
+    public static byte[] fastStart(byte[] in, FastStartOptions options) throws IOException{
         
         byte[] ret = null;
         ArtificialFileStream aStream;
+        Instrumentation metrics = new Instrumentation(options);
         
         aStream = new ArtificialFileStream(in);
         try {
-            ret = fastStartImpl(aStream);
-        } catch (MalformedFileException | UnsupportedFileException | BadFilePositionException ex) {
+            ret = fastStartImpl(aStream, options, metrics);
+        } catch (BadFileSizeException | MalformedFileException | UnsupportedFileException | BadFilePositionException ex) {
+            metrics.failed(ex);
             Logger.getLogger(QtFastStart.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (IOException ex) {
+            metrics.failed(ex);
+            throw ex;
         }
         
         return ret;
     
     }    
 
-    private static byte[] fastStartImpl(ArtificialFileStream in) throws MalformedFileException, UnsupportedFileException, BadFilePositionException {
-        ByteBuffer atomBytes = ByteBuffer.allocate(ATOM_PREAMBLE_SIZE).order(ByteOrder.BIG_ENDIAN);
-        int atomType = 0;
-        long atomSize = 0; // uint64_t
-        long lastOffset;
-        ByteBuffer moovAtom;
-        ByteBuffer ftypAtom = null;
-        // uint64_t, but assuming it is in int32 range. It is reasonable as int max is around 2GB. Such large moov is unlikely, yet unallocatable :).
-        int moovAtomSize;
-        int startOffset = 0;
+    /**
+     * Streams the input to the output with the default {@link FastStartOptions}.
+     * @param in  Input Stream.
+     * @param out Output Stream.
+     * @return the result, optimized if the output was rewritten as fast start and not if the input was copied unchanged
+     * @throws IOException
+     * @throws QtFastStartException
+     * @see #fastStart(InputStream, OutputStream, FastStartOptions)
+     */
+    public static FastStartResult fastStart(InputStream in, OutputStream out) throws IOException, QtFastStartException {
+        return fastStart(in, out, new FastStartOptions());
+    }
+
+    /**
+     * Streams the input to the output, moving the moov atom that follows the media data in front of it. Everything
+     * after the ftyp atom is held in memory up to the spill threshold of the options, and in a temporary file past
+     * it, so heap usage does not grow with the size of the input. Atoms after the moov atom are written after the
+     * media data. Inputs that are already fast start or fragmented, or that hold atoms that cannot be walked, are
+     * copied to the output unchanged.
+     * Neither stream is closed.
+     * @param in  Input Stream.
+     * @param out Output Stream.
+     * @param options settings to process the input with, including the spill threshold and temporary directory
+     * @return the result, optimized if the output was rewritten as fast start and not if the input was copied
+     * unchanged, with the checksums of the output
+     * @throws IOException
+     * @throws QtFastStartException
+     */
+    public static FastStartResult fastStart(InputStream in, OutputStream out, FastStartOptions options) throws IOException, QtFastStartException {
+        Instrumentation metrics = new Instrumentation(options);
+        Checksums checksums = Checksums.of(options.checksums());
+        if (checksums != null)
+            out = checksums.wrap(out);
+        try (SpillBuffer pending = new SpillBuffer(options.spillThreshold(), options.tempDirectory())) {
+            FastStartResult result = fastStartStreamImpl(in, out, pending, checksums, options, metrics);
+            metrics.finished(result.optimized());
+            return result;
+        } catch (IOException | QtFastStartException ex) {
+            metrics.failed(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes a fast start copy of a file on disk. Atoms are scanned with positional reads, only the ftyp and
+     * moov atoms are read into memory, and the media data is copied with {@link FileChannel#transferTo}, which
+     * lets the kernel copy it without passing it through the Java heap.
+     * @param in  path of the input file.
+     * @param out path of the output file, created or truncated; not written if input file is already fast start
+     * @return the result, optimized if the output file was written and not if input file is already fast start
+     * @throws IOException
+     * @throws QtFastStartException
+     */
+    public static FastStartResult fastStart(Path in, Path out) throws IOException, QtFastStartException {
+        return fastStart(in, out, new FastStartOptions());
+    }
+
+    /**
+     * Writes a fast start copy of a file on disk. With a {@link MoovCache} in the options, a file that was
+     * processed before and has not changed since is written from its cached moov atom.
+     * @param in  path of the input file.
+     * @param out path of the output file, created or truncated; not written if input file is already fast start
+     * @param options settings to process the input with
+     * @return the result, optimized if the output file was written and not if input file is already fast start,
+     * with the checksums of the output
+     * @throws IOException
+     * @throws QtFastStartException
+     * @see #fastStart(Path, Path)
+     */
+    public static FastStartResult fastStart(Path in, Path out, FastStartOptions options) throws IOException, QtFastStartException {
+        Instrumentation metrics = new Instrumentation(options);
+        try (FileChannel inChannel = FileChannel.open(in, StandardOpenOption.READ)) {
+            FastStartLayout layout = layout(in, inChannel, options, metrics);
+            Checksums checksums = Checksums.of(options.checksums());
+            if (layout == null) {
+                if (checksums != null) {
+                    // the input is the output, read once to checksum it
+                    copyFully(inChannel, 0, inChannel.size(), null, checksums);
+                }
+                metrics.finished(false);
+                return new FastStartResult(false, inChannel.size(), 0, checksums, null);
+            }
+
+            // the copy is timed from the first byte written, as it reports the whole output
+            long copyStart = metrics.now();
+            try (FileChannel outChannel = FileChannel.open(out, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                if (layout.ftypAtom != null) {
+                    if (sDEBUG)
+                        printf("writing ftyp atom...");
+                    ByteBuffer ftypAtom = layout.ftypAtom();
+                    if (checksums != null)
+                        checksums.update(ftypAtom);
+                    writeFully(outChannel, ftypAtom);
+                }
+                if (sDEBUG)
+                    printf("writing moov atom...");
+                ByteBuffer moovAtom = layout.moovAtom();
+                if (checksums != null)
+                    checksums.update(moovAtom);
+                writeFully(outChannel, moovAtom);
+                if (sDEBUG)
+                    printf("copying rest of file...");
+                for (long done = 0; done < layout.restSize(); ) {
+                    // the media data, then the atoms that followed the moov atom
+                    long n = layout.contiguous(done);
+                    if (checksums == null)
+                        transferFully(inChannel, layout.inputOffset(done), n, outChannel);
+                    else
+                        copyFully(inChannel, layout.inputOffset(done), n, outChannel, checksums);
+                    done += n;
+                }
+                metrics.dataCopied(layout.outputSize(), copyStart);
+            }
+            metrics.finished(true);
+            return new FastStartResult(true, inChannel.size(), layout.outputSize(), checksums, layout.seekIndex);
+        } catch (IOException | QtFastStartException ex) {
+            metrics.failed(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes a fast start copy of a file on disk without blocking the calling thread. The file is read and
+     * written through AsynchronousFileChannels and each step runs when the previous read or write completes;
+     * the media data is copied with several chunks in flight at once. The moov atom is patched on the parallel
+     * patch pool of the options, or on the common pool, rather than on an I/O thread.
+     * @param in  path of the input file.
+     * @param out path of the output file, created or truncated; not written if input file is already fast start
+     * @return future completed with the result, or exceptionally with the IOException or QtFastStartException
+     * the call failed with
+     */
+    public static CompletableFuture<FastStartResult> fastStartAsync(Path in, Path out) {
+        return fastStartAsync(in, out, new FastStartOptions());
+    }
+
+    /**
+     * @param in  path of the input file.
+     * @param out path of the output file, created or truncated; not written if input file is already fast start
+     * @param options settings to process the input with
+     * @return future completed with the result, or exceptionally with the IOException or QtFastStartException
+     * the call failed with
+     * @see #fastStartAsync(Path, Path)
+     */
+    public static CompletableFuture<FastStartResult> fastStartAsync(Path in, Path out, FastStartOptions options) {
+        return AsyncFastStart.start(in, out, options);
+    }
+
+    /**
+     * Rewrites a file on disk into fast start order in place, without a second copy of it. The media data is
+     * moved towards the end of the file by the size of the moov atom in blocks of {@value #IN_PLACE_BLOCK_SIZE}
+     * bytes, last block first, and the ftyp and patched moov atoms are written into the gap, so memory use is
+     * bounded by the moov atom and one block. The file is left corrupt if the rewrite is interrupted, so only use
+     * this on files that can be recreated.
+     * @param file path of the file to rewrite
+     * @return true if the file was rewritten, false if it is already fast start and was left untouched
+     * @throws IOException
+     * @throws QtFastStartException
+     */
+    public static boolean fastStartInPlace(Path file) throws IOException, QtFastStartException {
+        return fastStartInPlace(file, new FastStartOptions());
+    }
+
+    /**
+     * @param file path of the file to rewrite
+     * @param options settings to process the input with
+     * @return true if the file was rewritten, false if it is already fast start and was left untouched
+     * @throws IOException
+     * @throws QtFastStartException
+     * @see #fastStartInPlace(Path)
+     */
+    public static boolean fastStartInPlace(Path file, FastStartOptions options) throws IOException, QtFastStartException {
+        Instrumentation metrics = new Instrumentation(options);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FastStartLayout layout = layout(file, channel, options, metrics);
+            if (layout == null) {
+                metrics.finished(false);
+                return false;
+            }
+            if (options.moovCache() != null)
+                options.moovCache().invalidate(file);
+
+            long copyStart = metrics.now();
+            if (sDEBUG)
+                printf("moving rest of file...");
+            ByteBuffer block = ByteBuffer.allocateDirect((int) Math.min(IN_PLACE_BLOCK_SIZE, Math.max(1, layout.restSize())));
+            long mediaSize = layout.lastOffset - layout.startOffset;
+            long trailingSize = layout.restSize() - mediaSize;
+            if (layout.headerSize() >= layout.startOffset) {
+                // the media data moves towards the end, so the atoms after the moov atom get out of its way first
+                moveFully(channel, layout.trailingOffset, layout.headerSize() + mediaSize, trailingSize, block);
+                moveFully(channel, layout.startOffset, layout.headerSize(), mediaSize, block);
+            } else {
+                moveFully(channel, layout.startOffset, layout.headerSize(), mediaSize, block);
+                moveFully(channel, layout.trailingOffset, layout.headerSize() + mediaSize, trailingSize, block);
+            }
+
+            long position = 0;
+            if (layout.ftypAtom != null) {
+                if (sDEBUG)
+                    printf("writing ftyp atom...");
+                ByteBuffer ftypAtom = layout.ftypAtom();
+                position = ftypAtom.remaining();
+                writeFully(channel, ftypAtom, 0);
+            }
+            if (sDEBUG)
+                printf("writing moov atom...");
+            writeFully(channel, layout.moovAtom(), position);
+            // atoms in front of the ftyp atom are not part of the output
+            channel.truncate(layout.outputSize());
+            metrics.dataCopied(layout.outputSize(), copyStart);
+            metrics.finished(true);
+            return true;
+        } catch (IOException | QtFastStartException ex) {
+            metrics.failed(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens a random access view of the fast start output of a file, without writing it. Only the ftyp and moov
+     * atoms are read into memory; reads past them are served from the file, which stays open until the view is
+     * closed.
+     * @param in  path of the input file.
+     * @return view of the fast start output, or of the unchanged file if input file is already fast start
+     * @throws IOException
+     * @throws QtFastStartException
+     */
+    public static FastStartView view(Path in) throws IOException, QtFastStartException {
+        return view(in, new FastStartOptions());
+    }
+
+    /**
+     * @param in  path of the input file.
+     * @param options settings to process the input with; its moov cache, if any, is used
+     * @return view of the fast start output, or of the unchanged file if input file is already fast start
+     * @throws IOException
+     * @throws QtFastStartException
+     * @see #view(Path)
+     */
+    public static FastStartView view(Path in, FastStartOptions options) throws IOException, QtFastStartException {
+        Instrumentation metrics = new Instrumentation(options);
+        FileChannel inChannel = FileChannel.open(in, StandardOpenOption.READ);
+        try {
+            FastStartLayout layout = layout(in, inChannel, options, metrics);
+            metrics.finished(layout != null);
+            return new FastStartView(AtomInput.of(inChannel), inChannel, null, layout, inChannel.size());
+        } catch (IOException | QtFastStartException ex) {
+            metrics.failed(ex);
+            inChannel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @param in byte array.
+     * @return view of the fast start output that shares everything after the moov atom with the input, or a
+     * view of the unchanged input if input file is already fast start
+     * @throws QtFastStartException
+     */
+    public static FastStartView view(byte[] in) throws QtFastStartException {
+        return view(in, new FastStartOptions());
+    }
+
+    /**
+     * @param in byte array.
+     * @param options settings to process the input with
+     * @return view of the fast start output, or a view of the unchanged input if input file is already fast start
+     * @throws QtFastStartException
+     * @see #view(byte[])
+     */
+    public static FastStartView view(byte[] in, FastStartOptions options) throws QtFastStartException {
+        Instrumentation metrics = new Instrumentation(options);
+        AtomInput input = AtomInput.of(new ArtificialFileStream(in));
+        FastStartLayout layout;
         
-        ArtificialFileStream outStream = new ArtificialFileStream();
+        try {
+            layout = layout(input, options, metrics);
+        } catch (IOException ex) {
+            MalformedFileException malformed = new MalformedFileException(ex.getMessage());
+            metrics.failed(malformed);
+            throw malformed;
+        } catch (QtFastStartException ex) {
+            metrics.failed(ex);
+            throw ex;
+        }
         
+        metrics.finished(layout != null);
+        return new FastStartView(input, null, ByteBuffer.wrap(in), layout, in.length);
+    }
+
+    /**
+     * Publishes the fast start output of a file as a stream of buffers: the ftyp atom, the moov atom, then the
+     * rest of the file in chunks read as the subscriber requests them. The file is only opened, and its moov atom
+     * read, once a subscriber has subscribed, which is told about a failure to do so through onError; it is closed
+     * once the subscriber cancels or the output ends.
+     * @param in  path of the input file.
+     * @return publisher of the fast start output, or of the unchanged file if input file is already fast start
+     */
+    public static FastStartPublisher publisher(Path in) {
+        return publisher(in, new FastStartOptions());
+    }
 
-        // traverse through the atoms in the file to make sure that 'moov' is at the end
-        int orig = atomBytes.capacity();
-        atomBytes = readAndFill(in, atomBytes);
-        while (orig == atomBytes.limit()) {
-            atomSize = uint32ToLong(atomBytes.getInt()); // uint32
-            atomType = atomBytes.getInt(); // representing uint32_t in signed int
-
-            // keep ftyp atom
-            if (atomType == FTYP_ATOM) {
-                int ftypAtomSize = uint32ToInt(atomSize); // XXX: assume in range of int32_t
-                ftypAtom = ByteBuffer.allocate(ftypAtomSize).order(ByteOrder.BIG_ENDIAN);
-                atomBytes.rewind();
-                ftypAtom.put(atomBytes);
-                
-                ftypAtom = in.read(ftypAtom);
-                if (ftypAtom.capacity() < ftypAtomSize - ATOM_PREAMBLE_SIZE) 
+    /**
+     * @param in  path of the input file.
+     * @param options settings to process the input with, including the chunk size and executor of the publisher
+     * @return publisher of the fast start output, or of the unchanged file if input file is already fast start
+     * @see #publisher(Path)
+     */
+    public static FastStartPublisher publisher(Path in, FastStartOptions options) {
+        return new FastStartPublisher(() -> FastStartPublisher.of(view(in, options), options.publishChunkSize()), options.publishExecutor());
+    }
+
+    /**
+     * Reads a whole stream, which is needed to reach a trailing moov atom, then publishes its fast start output
+     * as a stream of buffers that are only copied out of the input as the subscriber requests them.
+     * @param in  Input Stream, closed once it has been read.
+     * @return publisher of the fast start output, or of the unchanged input if input file is already fast start
+     * @throws IOException
+     * @throws QtFastStartException
+     */
+    public static FastStartPublisher publisher(InputStream in) throws IOException, QtFastStartException {
+        return publisher(in, new FastStartOptions());
+    }
+
+    /**
+     * @param in  Input Stream, closed once it has been read.
+     * @param options settings to process the input with, including the chunk size and executor of the publisher
+     * @return publisher of the fast start output, or of the unchanged input if input file is already fast start
+     * @throws IOException
+     * @throws QtFastStartException
+     * @see #publisher(InputStream)
+     */
+    public static FastStartPublisher publisher(InputStream in, FastStartOptions options) throws IOException, QtFastStartException {
+        
+        ArtificialFileStream aStream;
+        Instrumentation metrics = new Instrumentation(options);
+        FastStartLayout layout;
+        
+        try {
+            aStream = ingest(in, options);
+            layout = layout(AtomInput.of(aStream), options, metrics);
+        } catch (BadFileSizeException ex) {
+            metrics.failed(ex);
+            throw new UnsupportedFileException(ex.getMessage());
+        } catch (IOException | QtFastStartException ex) {
+            metrics.failed(ex);
+            throw ex;
+        } finally {
+            in.close();
+        }
+        
+        metrics.finished(layout != null);
+        FastStartView view = new FastStartView(AtomInput.of(aStream), null, null, layout, aStream.size());
+        return new FastStartPublisher(FastStartPublisher.of(view, options.publishChunkSize()), options.publishExecutor());
+    
+    }
+
+    /**
+     * @param in byte array.
+     * @return publisher of the fast start output, or of the unchanged input if input file is already fast start
+     * @throws QtFastStartException
+     */
+    public static FastStartPublisher publisher(byte[] in) throws QtFastStartException {
+        return publisher(in, new FastStartOptions());
+    }
+
+    /**
+     * @param in byte array.
+     * @param options settings to process the input with, including the chunk size and executor of the publisher
+     * @return publisher of the fast start output, or of the unchanged input if input file is already fast start
+     * @throws QtFastStartException
+     * @see #publisher(byte[])
+     */
+    public static FastStartPublisher publisher(byte[] in, FastStartOptions options) throws QtFastStartException {
+        FastStartView view = view(in, options);
+        return new FastStartPublisher(FastStartPublisher.of(view, options.publishChunkSize()), options.publishExecutor());
+    }
+
+    /**
+     * Walks the top level atom headers of a stream, skipping over their payloads, and stops as soon as the moov
+     * atom is found. For a file that is already fast start only the first few hundred bytes are read.
+     * The stream is not closed.
+     * @param in  Input Stream.
+     * @return layout summary of the atoms up to and including the moov atom
+     * @throws IOException
+     * @throws QtFastStartException
+     */
+    public static FileLayout inspect(InputStream in) throws IOException, QtFastStartException {
+        byte[] header = new byte[ATOM_PREAMBLE_SIZE * 2];
+        ByteBuffer atomBytes = ByteBuffer.wrap(header).order(ByteOrder.BIG_ENDIAN);
+        List<FileLayout.AtomInfo> atoms = new ArrayList<>();
+        boolean compressed = false;
+        boolean fragmented = false;
+        long inflatedSize = -1;
+        long position = 0;
+
+        while (in.readNBytes(header, 0, ATOM_PREAMBLE_SIZE) == ATOM_PREAMBLE_SIZE) {
+            long atomSize = uint32ToLong(atomBytes.getInt(0)); // uint32
+            int atomType = atomBytes.getInt(4); // representing uint32_t in signed int
+            int headerSize = ATOM_PREAMBLE_SIZE;
+            if (atomSize == 1) {
+                /* 64-bit special case */
+                if (in.readNBytes(header, ATOM_PREAMBLE_SIZE, ATOM_PREAMBLE_SIZE) != ATOM_PREAMBLE_SIZE)
                     break;
-                ftypAtom.flip();
-                startOffset = in.position(); // after ftyp atom
-            } else {
-                if (atomSize == 1) {
-                    /* 64-bit special case */
-                    atomBytes.clear();
-                    
-                    atomBytes = readAndFill(in, atomBytes);
-                    if (orig != atomBytes.capacity()) 
-                        break;
-                    atomSize = uint64ToLong(atomBytes.getLong()); // XXX: assume in range of int64_t
-                    in.position(in.position() + (int)atomSize - ATOM_PREAMBLE_SIZE * 2); // seek
-                } else {
-                    in.position(in.position() + (int)atomSize - ATOM_PREAMBLE_SIZE); // seek
-                }
+                atomSize = uint64ToLong(atomBytes.getLong(ATOM_PREAMBLE_SIZE));
+                headerSize += ATOM_PREAMBLE_SIZE;
             }
-            if (sDEBUG) printf("%c%c%c%c %10d %d",
-                    (atomType >> 24) & 255,
-                    (atomType >> 16) & 255,
-                    (atomType >> 8) & 255,
-                    (atomType >> 0) & 255,
-                    in.position() - atomSize,
-                    atomSize);
-            if ((atomType != FREE_ATOM)
-                    && (atomType != JUNK_ATOM)
-                    && (atomType != MDAT_ATOM)
-                    && (atomType != MOOV_ATOM)
-                    && (atomType != PNOT_ATOM)
-                    && (atomType != SKIP_ATOM)
-                    && (atomType != WIDE_ATOM)
-                    && (atomType != PICT_ATOM)
-                    && (atomType != UUID_ATOM)
-                    && (atomType != FTYP_ATOM)) {
-                if(sDEBUG)
-                    printf("encountered non-QT top-level atom (is this a QuickTime file?)");
+            atoms.add(new FileLayout.AtomInfo(atomType, position, atomSize));
+            if (isFragmentAtom(atomType)) {
+                fragmented = true;
                 break;
             }
-
-        /* The atom header is 8 (or 16 bytes), if the atom size (which
-         * includes these 8 or 16 bytes) is less than that, we won't be
-         * able to continue scanning sensibly after this atom, so break. */
-            if (atomSize < 8)
+            if (!isQtTopLevelAtom(atomType) || atomSize < headerSize)
+                break;
+            if (atomType == MOOV_ATOM) {
+                // a compressed moov holds a cmov atom as its first child
+                compressed = atomSize >= headerSize + ATOM_PREAMBLE_SIZE
+                        && in.readNBytes(header, 0, ATOM_PREAMBLE_SIZE) == ATOM_PREAMBLE_SIZE
+                        && atomBytes.getInt(4) == CMOV_ATOM;
+                if (compressed)
+                    inflatedSize = inflatedMoovSize(in, header, atomBytes);
+                break;
+            }
+            if (!skipFully(in, atomSize - headerSize))
                 break;
+            position += atomSize;
+        }
+        return new FileLayout(atoms, compressed, fragmented, inflatedSize);
+    }
+
+    /**
+     * Walks every top level atom header of a file with positional reads, without reading any payload.
+     * @param in  path of the input file.
+     * @return layout summary of the top level atoms
+     * @throws IOException
+     * @throws QtFastStartException
+     */
+    public static FileLayout inspect(Path in) throws IOException, QtFastStartException {
+        try (FileChannel channel = FileChannel.open(in, StandardOpenOption.READ)) {
+            return inspect(channel);
+        }
+    }
+
+    /**
+     * Walks every top level atom header of a channel, without reading any payload. The channel is not closed.
+     * @param in  channel to read from.
+     * @return layout summary of the top level atoms
+     * @throws IOException
+     * @throws QtFastStartException
+     */
+    public static FileLayout inspect(SeekableByteChannel in) throws IOException, QtFastStartException {
+        return inspect(AtomInput.of(in));
+    }
+
+    /**
+     * Reads the dcom and cmvd headers at the start of the payload of a cmov atom, the stream being right after
+     * the cmov header.
+     * @return uncompressed size declared by the cmvd atom, or -1 if the headers are not there
+     */
+    private static long inflatedMoovSize(InputStream in, byte[] header, ByteBuffer atomBytes) throws IOException {
+        if (in.readNBytes(header, 0, 12) != 12 || atomBytes.getInt(4) != CompressedMoov.DCOM)
+            return -1;
+        long dcomSize = uint32ToLong(atomBytes.getInt(0));
+        if (dcomSize < 12 || !skipFully(in, dcomSize - 12))
+            return -1;
+        if (in.readNBytes(header, 0, 12) != 12 || atomBytes.getInt(4) != CompressedMoov.CMVD)
+            return -1;
+        return uint32ToLong(atomBytes.getInt(8));
+    }
+
+    /**
+     * @return false if the stream ended before count bytes were skipped
+     */
+    private static boolean skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long n = in.skip(count);
+            if (n <= 0) {
+                // skip() may return 0 before the end of the stream, read() tells the two apart
+                if (in.read() < 0)
+                    return false;
+                n = 1;
+            }
+            count -= n;
+        }
+        return true;
+    }
+
+    /**
+     * @param in byte array.
+     * @return composite view of the resulting output, made of the ftyp atom, the patched moov atom and a slice of the input
+     * holding the rest of the file, or a view of the input bytes if input file is already fast start
+     * @throws QtFastStartException
+     */
+    public static CompositeOutput fastStartBuffers(byte[] in) throws QtFastStartException {
+        return fastStartBuffers(in, new FastStartOptions());
+    }
+
+    /**
+     * @param in byte array.
+     * @param options settings to process the input with
+     * @return composite view of the resulting output, or a view of the input bytes if input file is already fast start
+     * @throws QtFastStartException
+     * @see #fastStartBuffers(byte[])
+     */
+    public static CompositeOutput fastStartBuffers(byte[] in, FastStartOptions options) throws QtFastStartException {
         
-        atomBytes = readAndFill(in, atomBytes);
+        ArtificialFileStream aStream = new ArtificialFileStream(in);
+        Instrumentation metrics = new Instrumentation(options);
+        FastStartLayout layout;
         
+        try {
+            layout = layout(AtomInput.of(aStream), options, metrics);
+        } catch (IOException ex) {
+            MalformedFileException malformed = new MalformedFileException(ex.getMessage());
+            metrics.failed(malformed);
+            throw malformed;
+        } catch (QtFastStartException ex) {
+            metrics.failed(ex);
+            throw ex;
         }
+        
+        metrics.finished(layout != null);
+        if (layout == null)
+            return new CompositeOutput(ByteBuffer.wrap(in));
+        
+        // only the ftyp and the patched moov were allocated, the rest of the file is shared with the input
+        ByteBuffer[] rest = restSlices(ByteBuffer.wrap(in), layout);
+        return new CompositeOutput(layout.ftypAtom(), layout.moovAtom(), rest[0], rest[1]);
+    
+    }
+
+    /**
+     * Works on a heap, direct or memory mapped buffer without copying it onto the heap. Only the ftyp and moov
+     * atoms are copied, into a direct buffer when the input is direct; the rest of the output is a slice of the
+     * input, so a direct input gives an output that stays off the heap, ready for socket writes.
+     * @param in buffer holding the input file from its position to its limit; its position is not changed
+     * @return composite view of the resulting output, made of the header and a slice of the input holding the rest
+     * of the file, or a slice of the input if input file is already fast start
+     * @throws QtFastStartException
+     */
+    public static CompositeOutput fastStart(ByteBuffer in) throws QtFastStartException {
+        return fastStart(in, new FastStartOptions());
+    }
 
-        if (atomType != MOOV_ATOM) {
-            if(sDEBUG) 
-                printf("last atom in file was not a moov atom");
-            return in.getByteArray();
+    /**
+     * @param in buffer holding the input file from its position to its limit; its position is not changed
+     * @param options settings to process the input with
+     * @return composite view of the resulting output, or a slice of the input if input file is already fast start
+     * @throws QtFastStartException
+     * @see #fastStart(ByteBuffer)
+     */
+    public static CompositeOutput fastStart(ByteBuffer in, FastStartOptions options) throws QtFastStartException {
+        
+        ByteBuffer file = in.slice();
+        Instrumentation metrics = new Instrumentation(options);
+        FastStartLayout layout;
+        
+        try {
+            layout = layout(AtomInput.of(file), options, metrics);
+        } catch (IOException ex) {
+            MalformedFileException malformed = new MalformedFileException(ex.getMessage());
+            metrics.failed(malformed);
+            throw malformed;
+        } catch (QtFastStartException ex) {
+            metrics.failed(ex);
+            throw ex;
         }
+        
+        metrics.finished(layout != null);
+        if (layout == null)
+            return new CompositeOutput(file);
+        
+        ByteBuffer header = in.isDirect() ? ByteBuffer.allocateDirect((int) layout.headerSize()) : ByteBuffer.allocate((int) layout.headerSize());
+        if (layout.ftypAtom != null)
+            header.put(layout.ftypAtom());
+        header.put(layout.moovAtom());
+        header.flip();
+        
+        ByteBuffer[] rest = restSlices(file, layout);
+        return new CompositeOutput(header, rest[0], rest[1]);
+    
+    }
 
-        // moov atom was, in fact, the last atom in the chunk; load the whole moov atom
+    /**
+     * @return slices of the input holding the media data and the atoms after the moov atom, the second one null
+     * if the moov atom is the last atom
+     */
+    private static ByteBuffer[] restSlices(ByteBuffer file, FastStartLayout layout) {
+        ByteBuffer media = file.duplicate();
+        media.limit((int) layout.lastOffset).position((int) layout.startOffset);
+        if (layout.endOffset == layout.trailingOffset)
+            return new ByteBuffer[]{media.slice(), null};
+        ByteBuffer trailing = file.duplicate();
+        trailing.limit((int) layout.endOffset).position((int) layout.trailingOffset);
+        return new ByteBuffer[]{media.slice(), trailing.slice()};
+    }
 
-        // atomSize is uint64, but for moov uint32 should be stored.
-        // XXX: assuming moov atomSize <= max vaue of int32
-        moovAtomSize = uint32ToInt(atomSize);
-        lastOffset = in.size() - moovAtomSize; // NOTE: assuming no extra data after moov, as qt-faststart.c
-        moovAtom = ByteBuffer.allocate(moovAtomSize).order(ByteOrder.BIG_ENDIAN);
+    /**
+     * @param in  Input Stream.
+     * @return composite view of the resulting output, made of the ftyp atom, the patched moov atom and slices of
+     * the buffered input holding the rest of the file, or a view of the input if input file is already fast start.
+     * Unlike {@link #fastStart(InputStream)} the result may be bigger than one byte array can hold
+     * @throws IOException
+     * @throws QtFastStartException
+     */
+    public static CompositeOutput fastStartBuffers(InputStream in) throws IOException, QtFastStartException {
+        return fastStartBuffers(in, new FastStartOptions());
+    }
+
+    /**
+     * @param in  Input Stream.
+     * @param options settings to process the input with
+     * @return composite view of the resulting output, or a view of the input if input file is already fast start
+     * @throws IOException
+     * @throws QtFastStartException
+     * @see #fastStartBuffers(InputStream)
+     */
+    public static CompositeOutput fastStartBuffers(InputStream in, FastStartOptions options) throws IOException, QtFastStartException {
+        
+        ArtificialFileStream aStream;
+        Instrumentation metrics = new Instrumentation(options);
+        FastStartLayout layout;
+        
+        try {
+            aStream = ingest(in, options);
+            layout = layout(AtomInput.of(aStream), options, metrics);
+        } catch (BadFileSizeException ex) {
+            metrics.failed(ex);
+            throw new UnsupportedFileException(ex.getMessage());
+        } catch (IOException | QtFastStartException ex) {
+            metrics.failed(ex);
+            throw ex;
+        } finally {
+            in.close();
+        }
+        
+        metrics.finished(layout != null);
+        if (layout == null)
+            return new CompositeOutput(aStream.slices(0, aStream.size()));
+        
+        ByteBuffer[] media = aStream.slices(layout.startOffset, layout.lastOffset - layout.startOffset);
+        ByteBuffer[] trailing = aStream.slices(layout.trailingOffset, layout.endOffset - layout.trailingOffset);
+        ByteBuffer[] parts = new ByteBuffer[media.length + trailing.length + 2];
+        parts[0] = layout.ftypAtom();
+        parts[1] = layout.moovAtom();
+        System.arraycopy(media, 0, parts, 2, media.length);
+        System.arraycopy(trailing, 0, parts, 2 + media.length, trailing.length);
+        return new CompositeOutput(parts);
+    
+    }
+
+    /**
+     * Reads a whole input stream as the options describe it: presized to its expected length, into pooled
+     * segments, and no longer than the input limit.
+     */
+    private static ArtificialFileStream ingest(InputStream in, FastStartOptions options) throws IOException, BadFileSizeException {
+        return new ArtificialFileStream(in, options.expectedLength(), options.inputLimit(), options.segmentPool());
+    }
+
+    private static byte[] fastStartImpl(ArtificialFileStream in, FastStartOptions options, Instrumentation metrics) throws IOException, MalformedFileException, UnsupportedFileException, BadFilePositionException, BadFileSizeException {
+        FastStartLayout layout = layout(AtomInput.of(in), options, metrics);
+        
+        if (layout == null) {
+            byte[] ret = in.getByteArray();
+            metrics.finished(false);
+            return ret;
+        }
+        
+        // fail before anything is allocated or copied when the output cannot be returned as one array
+        if (layout.outputSize() > Integer.MAX_VALUE - 8)
+            throw new BadFileSizeException("Output of " + layout.outputSize() + " bytes is bigger than the supported array size " + (Integer.MAX_VALUE - 8)
+                    + ", use fastStartBuffers or fastStart(Path, Path) instead");
+
+        in.position(layout.startOffset); // seek after ftyp atom
+        long copyStart = metrics.now();
+
+        // the output length is known up front, so the output is allocated once and every byte is copied into it exactly once
+        ArtificialFileStream outStream = new ArtificialFileStream(layout.outputSize());
+
+        if (layout.ftypAtom != null) {
+            // dump the same ftyp atom
+            if(sDEBUG)
+                printf("writing ftyp atom...");
+            outStream.write(layout.ftypAtom());
+        }
+
+        // dump the new moov atom
+        if(sDEBUG)
+            printf("writing moov atom...");
+        outStream.write(layout.moovAtom());
+
+        // copy the remainder of the infile, from offset 0 -> (lastOffset - startOffset) - 1
+        if(sDEBUG)
+            printf("copying rest of file...");
+        for (long done = 0; done < layout.restSize(); ) {
+            // the media data, then the atoms that followed the moov atom
+            long n = layout.contiguous(done);
+            in.transferTo(layout.inputOffset(done), n, outStream);
+            done += n;
+        }
+        metrics.dataCopied(outStream.size(), copyStart);
+
+        byte[] ret = outStream.getByteArray();
+        metrics.finished(true);
+        return ret;
+    }
+
+    /* package */
+    static FileLayout inspect(AtomInput in) throws IOException, UnsupportedFileException {
+        ByteBuffer atomBytes = ByteBuffer.allocate(ATOM_PREAMBLE_SIZE).order(ByteOrder.BIG_ENDIAN);
+        List<FileLayout.AtomInfo> atoms = new ArrayList<>();
+        boolean compressed = false;
+        boolean fragmented = false;
+        long inflatedSize = -1;
+        long position = 0;
+
+        while (readAndFill(in, atomBytes, position).limit() == ATOM_PREAMBLE_SIZE) {
+            long atomSize = uint32ToLong(atomBytes.getInt()); // uint32
+            int atomType = atomBytes.getInt(); // representing uint32_t in signed int
+            int headerSize = ATOM_PREAMBLE_SIZE;
+            if (atomSize == 1) {
+                /* 64-bit special case */
+                if (readAndFill(in, atomBytes, position + ATOM_PREAMBLE_SIZE).limit() != ATOM_PREAMBLE_SIZE)
+                    break;
+                atomSize = uint64ToLong(atomBytes.getLong());
+                headerSize += ATOM_PREAMBLE_SIZE;
+            }
+            atoms.add(new FileLayout.AtomInfo(atomType, position, atomSize));
+            if (isFragmentAtom(atomType)) {
+                fragmented = true;
+                break;
+            }
+            if (!isQtTopLevelAtom(atomType) || atomSize < headerSize)
+                break;
+            if (atomType == MOOV_ATOM && atomSize >= headerSize + ATOM_PREAMBLE_SIZE) {
+                // a compressed moov holds a cmov atom as its first child
+                compressed |= readAndFill(in, atomBytes, position + headerSize).limit() == ATOM_PREAMBLE_SIZE
+                        && atomBytes.getInt(4) == CMOV_ATOM;
+                if (compressed && inflatedSize < 0)
+                    inflatedSize = inflatedMoovSize(in, position + headerSize + ATOM_PREAMBLE_SIZE);
+            }
+            position += atomSize;
+        }
+        return new FileLayout(atoms, compressed, fragmented, inflatedSize);
+    }
+
+    /**
+     * Reads the dcom and cmvd headers at the start of the payload of a cmov atom.
+     * @param cmovPayload position of the dcom atom
+     * @return uncompressed size declared by the cmvd atom, or -1 if the headers are not there
+     */
+    private static long inflatedMoovSize(AtomInput in, long cmovPayload) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(12).order(ByteOrder.BIG_ENDIAN);
+        if (readAndFill(in, bytes, cmovPayload).limit() != 12 || bytes.getInt(4) != CompressedMoov.DCOM)
+            return -1;
+        long dcomSize = uint32ToLong(bytes.getInt(0));
+        if (dcomSize < 12 || readAndFill(in, bytes, cmovPayload + dcomSize).limit() != 12
+                || bytes.getInt(4) != CompressedMoov.CMVD)
+            return -1;
+        return uint32ToLong(bytes.getInt(8));
+    }
+
+    /**
+     * Walks the top level atoms, loads the moov atom and patches its chunk offsets.
+     * @return layout of the fast start output, or null if the input is already fast start
+     */
+    private static FastStartLayout layout(AtomInput in, FastStartOptions options, Instrumentation metrics) throws IOException, MalformedFileException, UnsupportedFileException {
+        ByteBuffer atomBytes = ByteBuffer.allocate(AtomWalk.HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        AtomWalk walk = new AtomWalk(in.size());
+        long scanStart = metrics.now();
+
+        // traverse through the atoms in the file to find the 'moov' after the media data, and what follows it
+        for (long position = 0; position != AtomWalk.DONE; )
+            position = walk.next(readAndFill(in, atomBytes, position));
+        metrics.atomScanFinished(walk.atomCount(), scanStart);
+
+        if (!walk.moovFound()) {
+            if (!walk.fastStart())
+                metrics.unwalkable();
+            return null;
+        }
+
+        // keep ftyp atom
+        ByteBuffer ftypAtom = null;
+        if (walk.ftypOffset() >= 0) {
+            ftypAtom = ByteBuffer.allocate(walk.ftypSize()).order(ByteOrder.BIG_ENDIAN);
+            if (readAndFill(in, ftypAtom, walk.ftypOffset()).limit() < walk.ftypSize()) {
+                metrics.unwalkable();
+                return null;
+            }
+        }
+        long startOffset = walk.startOffset();
+        long lastOffset = walk.moovOffset();
+        int moovAtomSize = walk.moovSize();
+
+        // load the whole moov atom; the atoms after it, if any, are copied after the media data
+        long trailingOffset = lastOffset + moovAtomSize;
+        long endOffset = Math.max(trailingOffset, in.size());
+        if (sDEBUG && endOffset > trailingOffset)
+            printf("%d bytes of atoms after the moov atom", endOffset - trailingOffset);
+        long loadStart = metrics.now();
+        ByteBuffer moovAtom = ByteBuffer.allocate(moovAtomSize).order(ByteOrder.BIG_ENDIAN);
         
-        orig = moovAtom.capacity();
         moovAtom = readAndFill(in, moovAtom, lastOffset);
-        if (orig != moovAtom.capacity()) {
+        if (moovAtom.limit() != moovAtomSize) {
             throw new MalformedFileException("failed to read moov atom");
         }
+        metrics.moovLoaded(moovAtomSize, loadStart);
+
+        OffsetPatcher patcher = new OffsetPatcher(options);
+        moovAtom = patchMoov(moovAtom, endOffset > trailingOffset ? trailingOffset : -1, patcher, options, metrics);
+        SeekIndex index = indexMoov(patcher.seekIndex(), options);
 
-        // this utility does not support compressed atoms yet, so disqualify files with compressed QT atoms
-        if (moovAtom.getInt(12) == CMOV_ATOM) {
-            throw new UnsupportedFileException("this utility does not support compressed moov atoms yet");
+        moovAtom.rewind();
+        return new FastStartLayout(ftypAtom, moovAtom, startOffset, lastOffset, trailingOffset, endOffset, index);
+    }
+
+    /**
+     * Looks the layout of a file up in the moov cache of the options, computing and caching it on a miss.
+     * @return layout of the fast start output, or null if the input is already fast start
+     */
+    private static FastStartLayout layout(Path path, FileChannel in, FastStartOptions options, Instrumentation metrics) throws IOException, MalformedFileException, UnsupportedFileException {
+        MoovCache cache = options.moovCache();
+        if (cache == null)
+            return layout(AtomInput.of(in), options, metrics);
+
+        MoovCache.Key key = MoovCache.key(path, in.size(), options);
+        FastStartLayout layout = cache.get(key);
+        if (layout != null) {
+            if (sDEBUG)
+                printf("using cached moov atom");
+            return layout.withSeekIndex(indexMoov(layout, options));
         }
+        layout = layout(AtomInput.of(in), options, metrics);
+        if (layout != null)
+            cache.put(key, layout);
+        return layout;
+    }
 
-        // crawl through the moov chunk in search of stco or co64 atoms
-        while (moovAtom.remaining() >= 8) {
-            int atomHead = moovAtom.position();
-            atomType = moovAtom.getInt(atomHead + 4); // representing uint32_t in signed int
-            if (!(atomType == STCO_ATOM || atomType == CO64_ATOM)) {
-                moovAtom.position(moovAtom.position() + 1);
-                continue;
+    private static FastStartResult fastStartStreamImpl(InputStream in, OutputStream out, SpillBuffer pending, Checksums checksums, FastStartOptions options, Instrumentation metrics) throws IOException, QtFastStartException {
+        byte[] header = new byte[ATOM_PREAMBLE_SIZE * 2];
+        ByteBuffer atomBytes = ByteBuffer.wrap(header).order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer ftypAtom = null;
+        ByteBuffer moovAtom = null;
+        long startOffset = 0; // offset in pending right after ftyp atom
+        long moovOffset = -1; // offset in pending where the moov atom was taken out
+        boolean mdatSeen = false;
+        boolean complete = false;
+        boolean fastStart = false; // stopped at a sign of an input that is already fast start
+        int atomCount = 0;
+        long scanStart = metrics.now();
+
+        // every atom read goes to pending, so the input can still be copied unchanged, except for the moov atom
+        while (true) {
+            int headerSize = in.readNBytes(header, 0, ATOM_PREAMBLE_SIZE);
+            if (headerSize < ATOM_PREAMBLE_SIZE) {
+                // end of the stream, with at most a few bytes too short for an atom
+                pending.write(header, 0, headerSize);
+                complete = true;
+                break;
             }
-            atomSize = uint32ToLong(moovAtom.getInt(atomHead)); // uint32
-            if (atomSize > moovAtom.remaining()) {
-                throw new MalformedFileException("bad atom size");
+            atomCount++;
+            long atomSize = uint32ToLong(atomBytes.getInt(0)); // uint32
+            int atomType = atomBytes.getInt(4); // representing uint32_t in signed int
+            if (atomSize == 1) {
+                /* 64-bit special case */
+                int n = in.readNBytes(header, ATOM_PREAMBLE_SIZE, ATOM_PREAMBLE_SIZE);
+                headerSize += n;
+                if (n < ATOM_PREAMBLE_SIZE) {
+                    pending.write(header, 0, headerSize);
+                    break;
+                }
+                atomSize = uint64ToLong(atomBytes.getLong(ATOM_PREAMBLE_SIZE));
             }
-            moovAtom.position(atomHead + 12); // skip size (4 bytes), type (4 bytes), version (1 byte) and flags (3 bytes)
-            if (moovAtom.remaining() < 4) {
-                throw new MalformedFileException("malformed atom");
+            if (sDEBUG) printf("%c%c%c%c %10d %d",
+                    (atomType >> 24) & 255,
+                    (atomType >> 16) & 255,
+                    (atomType >> 8) & 255,
+                    (atomType >> 0) & 255,
+                    pending.size() + (moovAtom == null ? 0 : moovAtom.limit()),
+                    atomSize);
+            // after the moov atom any atom with a sound size can follow the media data, as it is only copied
+            if (isFragmentAtom(atomType) || (!isQtTopLevelAtom(atomType) && moovAtom == null) || atomSize < headerSize) {
+                if (sDEBUG)
+                    printf(isFragmentAtom(atomType) ? "encountered a movie fragment atom, copying the rest unchanged"
+                            : "encountered non-QT or malformed top-level atom, copying the rest unchanged");
+                fastStart = isFragmentAtom(atomType);
+                pending.write(header, 0, headerSize);
+                break;
             }
-            // uint32_t, but assuming moovAtomSize is in int32 range, so this will be in int32 range
-            int offsetCount = uint32ToInt(moovAtom.getInt());
-            if (atomType == STCO_ATOM) {
-                
-                if(sDEBUG)
-                    printf("patching stco atom...");
-                
-                if (moovAtom.remaining() < offsetCount * 4) {
-                    throw new MalformedFileException("bad atom size/element count");
-                }
-                for (int i = 0; i < offsetCount; i++) {
-                    int currentOffset = moovAtom.getInt(moovAtom.position());
-                    int newOffset = currentOffset + moovAtomSize; // calculate uint32 in int, bitwise addition
-                    // current 0xffffffff => new 0x00000000 (actual >= 0x0000000100000000L)
-                    if (currentOffset < 0 && newOffset >= 0) {
-                        throw new UnsupportedFileException("This is bug in original qt-faststart.c: "
-                                + "stco atom should be extended to co64 atom as new offset value overflows uint32, "
-                                + "but is not implemented.");
-                    }
-                    moovAtom.putInt(newOffset);
-                }
-            } else if (atomType == CO64_ATOM) {
-                
-                if(sDEBUG)
-                    printf("patching co64 atom...");
-                if (moovAtom.remaining() < offsetCount * 8) {
-                    throw new MalformedFileException("bad atom size/element count");
+
+            if (atomType == MOOV_ATOM) {
+                if (!mdatSeen || moovAtom != null) {
+                    // a moov atom in front of the media data is already fast start; a second one is not handled
+                    if (sDEBUG)
+                        printf(moovAtom != null ? "more than one moov atom" : "moov atom is in front of the media data");
+                    fastStart = true;
+                    pending.write(header, 0, headerSize);
+                    break;
                 }
-                for (int i = 0; i < offsetCount; i++) {
-                    long currentOffset = moovAtom.getLong(moovAtom.position());
-                    moovAtom.putLong(currentOffset + moovAtomSize); // calculate uint64 in long, bitwise addition
+                // atomSize is uint64, but for moov uint32 should be stored.
+                long loadStart = metrics.now();
+                ByteBuffer atom = readAtom(in, header, headerSize, uint32ToInt(atomSize));
+                if (atom.hasRemaining()) {
+                    // truncated moov atom, copy what was read unchanged
+                    pending.write(atom.array(), 0, atom.position());
+                    break;
                 }
+                metrics.moovLoaded(atom.capacity(), loadStart);
+                moovAtom = atom;
+                moovOffset = pending.size();
+                // atoms after the moov atom are walked too, to make sure they can follow the media data
+                continue;
+            }
+
+            if (atomType == FTYP_ATOM && moovAtom == null) {
+                // keep ftyp atom
+                ftypAtom = readAtom(in, header, headerSize, uint32ToInt(atomSize));
+                pending.write(ftypAtom.array(), 0, ftypAtom.position());
+                if (ftypAtom.hasRemaining())
+                    break;
+                ftypAtom.flip();
+                startOffset = pending.size();
+                continue;
+            }
+
+            if (atomType == MDAT_ATOM)
+                mdatSeen = true;
+            pending.write(header, 0, headerSize);
+            if (pending.transferFrom(in, atomSize - headerSize) < atomSize - headerSize)
+                break;
+        }
+
+        metrics.atomScanFinished(atomCount, scanStart);
+
+        if (moovAtom == null || !complete) {
+            if (sDEBUG)
+                printf(moovAtom == null ? "no moov atom after the media data in stream" : "atoms after the moov atom could not be walked");
+            if (!fastStart)
+                metrics.unwalkable();
+            long copied = pending.size();
+            if (moovAtom == null) {
+                pending.writeTo(out, 0);
+            } else {
+                pending.writeTo(out, 0, moovOffset);
+                out.write(moovAtom.array());
+                pending.writeTo(out, moovOffset);
+                copied += moovAtom.capacity();
             }
+            copied += in.transferTo(out);
+            return new FastStartResult(false, copied, copied, checksums, null);
         }
 
-        in.position(startOffset); // seek after ftyp atom
+        // the input offset of the first byte after the moov atom, counting what was taken out of pending
+        long trailingOffset = moovOffset + moovAtom.limit();
+        boolean trailing = pending.size() > moovOffset;
+        long inputSize = pending.size() + moovAtom.capacity();
+        moovAtom.flip();
+        OffsetPatcher patcher = new OffsetPatcher(options);
+        moovAtom = patchMoov(moovAtom, trailing ? trailingOffset : -1, patcher, options, metrics);
+        SeekIndex index = indexMoov(patcher.seekIndex(), options);
 
+        long copyStart = metrics.now();
         if (ftypAtom != null) {
-            // dump the same ftyp atom
-            if(sDEBUG)
+            if (sDEBUG)
                 printf("writing ftyp atom...");
-            ftypAtom.rewind();
-            outStream.write(ftypAtom);
+            out.write(ftypAtom.array(), 0, ftypAtom.limit());
         }
-
-        // dump the new moov atom
-        if(sDEBUG)
+        if (sDEBUG)
             printf("writing moov atom...");
-        moovAtom.rewind();
-        outStream.write(moovAtom);
+        out.write(moovAtom.array(), 0, moovAtom.limit());
+        if (sDEBUG)
+            printf("copying buffered media data%s...", pending.spilled() ? " from temporary file" : "");
+        // pending holds the media data and then the atoms that followed the moov atom, in output order
+        pending.writeTo(out, startOffset);
+        long outputSize = (ftypAtom != null ? ftypAtom.limit() : 0) + moovAtom.limit() + pending.size() - startOffset;
+        metrics.dataCopied(outputSize, copyStart);
+        return new FastStartResult(true, inputSize, outputSize, checksums, index);
+    }
 
-        // copy the remainder of the infile, from offset 0 -> (lastOffset - startOffset) - 1
-        if(sDEBUG)
-            printf("copying rest of file...");
-        in.transferTo(startOffset, (int)(lastOffset - startOffset), outStream);
+    /**
+     * Reads a whole atom whose header was already read.
+     * @return the atom, positioned after the last byte read, with bytes remaining only if the stream ended early
+     */
+    private static ByteBuffer readAtom(InputStream in, byte[] header, int headerSize, int atomSize) throws IOException {
+        ByteBuffer atom = ByteBuffer.allocate(atomSize).order(ByteOrder.BIG_ENDIAN);
+        atom.put(header, 0, headerSize);
+        int n = in.readNBytes(atom.array(), headerSize, atomSize - headerSize);
+        atom.position(headerSize + n);
+        return atom;
+    }
+
+    /**
+     * Adds the size of the moov atom to every chunk offset in its stco and co64 atoms, as the moov atom
+     * is about to be moved in front of the data they point to.
+     * @param moovAtom whole moov atom, from its position to its limit
+     */
+    /* package */
+    static ByteBuffer patchMoov(ByteBuffer moovAtom, FastStartOptions options) throws MalformedFileException, UnsupportedFileException {
+        return patchMoov(moovAtom, -1, new OffsetPatcher(options), options, new Instrumentation(options));
+    }
+
+    /**
+     * Patches the chunk offsets of a moov atom for the fast start output, where the media data moves by the
+     * size of the moov atom that is written and the padding after it.
+     * @return the moov atom to write, followed by a free atom of the padding of the options if there is any: the
+     * same buffer, patched in place, unless the moov atom is compressed, had stco atoms promoted to co64 or is padded
+     * @param trailingOffset offset in the input of the first byte after the moov atom when atoms follow it, which
+     * move to the end of the output right after the media data, or -1 if the moov atom is the last atom
+     * @param patcher patcher of the chunk offsets, holding the seek index of the moov atom afterwards if the options
+     * ask for one
+     */
+    static ByteBuffer patchMoov(ByteBuffer moovAtom, long trailingOffset, OffsetPatcher patcher, FastStartOptions options, Instrumentation metrics) throws MalformedFileException, UnsupportedFileException {
+        long patchStart = metrics.now();
+
+        ByteBuffer ret;
+        if (CompressedMoov.isCompressed(moovAtom)) {
+            ret = CompressedMoov.patch(moovAtom, trailingOffset, options, patcher);
+        } else {
+            if (trailingOffset >= 0)
+                closeMoovGap(moovAtom, trailingOffset, moovAtom.remaining());
+            // offsets that would pass 4 GB get their tables promoted to co64 first, which grows the moov atom
+            ret = MoovRewriter.promoteOverflowingStco(moovAtom, options.moovPadding());
+            patchOffsets(ret, ret.remaining() + options.moovPadding(), patcher);
+        }
+        ret = MoovRewriter.pad(ret, options.moovPadding());
 
-        return outStream.getByteArray();
+        metrics.offsetsPatched(patcher.stcoEntries(), patcher.co64Entries(), patchStart);
+        return ret;
+    }
+
+    /**
+     * Hands the seek index built while a moov atom was patched to the consumer of the options.
+     * @param index seek index of the patcher, null unless the options have a consumer for it
+     * @return the seek index
+     */
+    static SeekIndex indexMoov(SeekIndex index, FastStartOptions options) {
+        if (index != null)
+            options.seekIndex().accept(index);
+        return index;
+    }
+
+    /**
+     * Hands the seek index of a cached layout to the consumer of the options, if there is one. A cache hit has
+     * no patching pass, so a layout cached by a call that asked for no index has its moov atom parsed again.
+     * @return the seek index, or null if the options have no consumer for it
+     */
+    static SeekIndex indexMoov(FastStartLayout layout, FastStartOptions options) throws MalformedFileException, UnsupportedFileException {
+        if (options.seekIndex() == null)
+            return null;
+        SeekIndex index = layout.seekIndex != null ? layout.seekIndex : SeekIndex.of(layout.moovAtom());
+        options.seekIndex().accept(index);
+        return index;
+    }
+
+    /**
+     * Adds a delta to every chunk offset of an uncompressed moov atom.
+     */
+    static void patchOffsets(ByteBuffer moovAtom, long delta, OffsetPatcher patcher) throws MalformedFileException, UnsupportedFileException {
+        // walk the atom tree down to the stco and co64 atoms, jumping over everything else
+        patcher.patch(moovAtom, Atom.parseMoov(moovAtom), delta);
+    }
+
+    /**
+     * Moves the chunk offsets that point into the atoms after the moov atom back by the size of the moov atom,
+     * so they read as if the moov atom was cut out of the input. Afterwards every offset is patched by the same
+     * delta as the media data in front of the moov atom.
+     * @param moovAtom uncompressed moov atom holding the offsets
+     * @param trailingOffset offset in the input of the first byte after the moov atom
+     * @param gap size of the moov atom in the input
+     */
+    static void closeMoovGap(ByteBuffer moovAtom, long trailingOffset, long gap) throws MalformedFileException, UnsupportedFileException {
+        Atom moov = Atom.parseMoov(moovAtom);
+        List<Atom> tables = moov.findAll(Atom.STCO, new ArrayList<>());
+        moov.findAll(Atom.CO64, tables);
+
+        for (Atom table : tables) {
+            if (table.size < table.headerSize + 8)
+                throw new MalformedFileException("malformed atom");
+            int entries = table.payloadOffset() + 8;
+            int offsetCount = uint32ToInt(moovAtom.getInt(entries - 4));
+            int entrySize = table.type == Atom.STCO ? 4 : 8;
+            if (table.end() - entries < (long) offsetCount * entrySize)
+                throw new MalformedFileException("bad atom size/element count");
+
+            for (int i = 0; i < offsetCount; i++) {
+                int at = entries + i * entrySize;
+                if (entrySize == 4) {
+                    long offset = uint32ToLong(moovAtom.getInt(at));
+                    if (offset >= trailingOffset)
+                        moovAtom.putInt(at, (int) (offset - gap));
+                } else {
+                    long offset = moovAtom.getLong(at);
+                    if (Long.compareUnsigned(offset, trailingOffset) >= 0)
+                        moovAtom.putLong(at, offset - gap);
+                }
+            }
+        }
     }
 
     public static class QtFastStartException extends Exception {
-        private QtFastStartException(String detailMessage) {
+        /* package */
+        QtFastStartException(String detailMessage) {
             super(detailMessage);
         }
     }
 
     public static class MalformedFileException extends QtFastStartException {
-        private MalformedFileException(String detailMessage) {
+        /* package */
+        MalformedFileException(String detailMessage) {
             super(detailMessage);
         }
     }
 
     public static class UnsupportedFileException extends QtFastStartException {
-        private UnsupportedFileException(String detailMessage) {
+        /* package */
+        UnsupportedFileException(String detailMessage) {
             super(detailMessage);
         }
     }
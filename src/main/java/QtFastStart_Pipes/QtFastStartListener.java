@@ -0,0 +1,94 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+/**
+ *
+ * @author SkibbleBip
+ * Receives structured events about one QtFastStart call, registered with
+ * {@link FastStartOptions#listener(QtFastStartListener)}. Events are delivered on the thread doing the
+ * work, every method does nothing by default. Durations are in nanoseconds
+ */
+public interface QtFastStartListener {
+    
+        /**
+         * How a call ended
+         */
+        enum Outcome {
+            /** the output was rewritten with the moov atom first */
+            OPTIMIZED,
+            /** the input was already fast start or fragmented */
+            ALREADY_FAST_START,
+            /**
+             * the top level atoms could not be walked to a moov atom after the media data: an atom is not a
+             * QuickTime top level atom, has a bad size or is cut short, or there is no moov atom at all. The input
+             * was left unchanged
+             */
+            UNWALKABLE,
+            /** the input is not a well formed QuickTime/MP4 file */
+            MALFORMED,
+            /** the input is valid but uses something this library cannot process */
+            UNSUPPORTED,
+            /** an I/O error occurred */
+            FAILED
+        }
+        
+        /**
+         * 
+         * @param atomCount number of top level atoms walked
+         * @param nanos time spent walking them
+         */
+        default void atomScanFinished(int atomCount, long nanos){}
+        
+        /**
+         * 
+         * @param moovSize size of the moov atom in bytes
+         * @param nanos time spent reading it into memory
+         */
+        default void moovLoaded(long moovSize, long nanos){}
+        
+        /**
+         * 
+         * @param stcoEntries number of stco entries patched
+         * @param co64Entries number of co64 entries patched
+         * @param nanos time spent parsing the moov atom and patching them
+         */
+        default void offsetsPatched(long stcoEntries, long co64Entries, long nanos){}
+        
+        /**
+         * 
+         * @param bytes number of bytes written to the output, ftyp and moov atoms included
+         * @param nanos time spent writing them
+         */
+        default void dataCopied(long bytes, long nanos){}
+        
+        /**
+         * 
+         * @param outcome how the call ended
+         * @param totalNanos wall time of the whole call
+         * @param failure exception the call failed with, or null
+         */
+        default void finished(Outcome outcome, long totalNanos, Throwable failure){}
+    
+}
@@ -0,0 +1,211 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ *
+ * @author SkibbleBip
+ * Runs many fast start jobs concurrently on an executor. Every job first reserves the memory it will
+ * hold from a shared {@link MemoryBudget}: the ftyp and moov atoms for files on disk, a compressed moov atom
+ * counted inflated, and the output for byte arrays that need a rewrite. Jobs that do not fit wait until running jobs release their share.
+ * All jobs share the options of the processor, so these cannot carry a seek index consumer, whose indexes could
+ * not be told apart. Checksums named by the options are returned with the {@link FastStartResult} of each file
+ * job; byte array jobs compute none
+ */
+public class QtFastStartProcessor implements AutoCloseable {
+    
+        private final Executor executor;
+        private final ExecutorService ownedExecutor;
+        private final MemoryBudget budget;
+        private final FastStartOptions options;
+        
+        /**
+         * 
+         * @param executor executor to run jobs on, such as {@link #newVirtualThreadExecutor()}
+         * @param budget memory shared by all running jobs
+         * @param options settings every job is processed with
+         * @throws IllegalArgumentException if the options carry a seek index consumer
+         */
+        public QtFastStartProcessor(Executor executor, MemoryBudget budget, FastStartOptions options){
+            if(options.seekIndex() != null)
+                throw new IllegalArgumentException("the jobs of a processor share its options, so the seek indexes "
+                        + "of concurrent jobs could not be told apart; use QtFastStart.fastStartAsync, which returns them with each result");
+            this.executor = executor;
+            this.ownedExecutor = null;
+            this.budget = budget;
+            this.options = options;
+        }
+        
+        /**
+         * Creates a processor with its own fixed thread pool, shut down by {@link #close()}
+         * @param threads number of jobs run at the same time at most
+         * @param budgetBytes memory shared by all running jobs
+         */
+        public QtFastStartProcessor(int threads, long budgetBytes){
+            this.ownedExecutor = Executors.newFixedThreadPool(threads);
+            this.executor = this.ownedExecutor;
+            this.budget = new MemoryBudget(budgetBytes);
+            this.options = new FastStartOptions();
+        }
+        
+        /**
+         * 
+         * @return memory budget shared by the jobs of this processor
+         */
+        public MemoryBudget budget(){return this.budget;}
+        
+        /**
+         * Queues a fast start copy of a file on disk
+         * @param in path of the input file
+         * @param out path of the output file
+         * @return future completed with the result of {@link QtFastStart#fastStart(Path, Path, FastStartOptions)}
+         */
+        public CompletableFuture<FastStartResult> submit(Path in, Path out){
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    long reserved = this.budget.acquire(reservation(QtFastStart.inspect(in)));
+                    try {
+                        return QtFastStart.fastStart(in, out, this.options);
+                    } finally {
+                        this.budget.release(reserved);
+                    }
+                } catch (IOException | QtFastStart.QtFastStartException | InterruptedException ex) {
+                    throw new CompletionException(ex);
+                }
+            }, this.executor);
+        }
+        
+        /**
+         * Only the ftyp and moov atoms of a file on disk are held in memory, the rest is copied by the kernel.
+         * A compressed moov atom is held inflated next to its compressed form, and recompressing it takes a
+         * scratch copy of about the inflated size again
+         * @return number of bytes to reserve for the file
+         */
+        private long reservation(FileLayout layout){
+            long needed = this.options.moovPadding();
+            for (String type : new String[]{"ftyp", "moov"}) {
+                FileLayout.AtomInfo atom = layout.find(type);
+                if (atom != null)
+                    needed += atom.size();
+            }
+            return needed + inflation(layout);
+        }
+        
+        /**
+         * The header walk stops at the moov atom, so it reads no more than a few atom headers of the array.
+         * An input that is already fast start is returned as it is and takes nothing; a rewritten one takes
+         * an output about as big as the input, plus the padding and any inflated moov atom. An input whose
+         * headers cannot be walked is counted as rewritten
+         * @return number of bytes to reserve for the byte array
+         */
+        private long reservation(byte[] in) throws IOException{
+            try {
+                FileLayout layout = QtFastStart.inspect(new ByteArrayInputStream(in));
+                if (layout.isFastStart())
+                    return 0;
+                return in.length + this.options.moovPadding() + inflation(layout);
+            } catch (QtFastStart.QtFastStartException ex) {
+                return in.length;
+            }
+        }
+        
+        /**
+         * @return inflated size of a compressed moov atom, twice over when it is recompressed, or 0
+         */
+        private long inflation(FileLayout layout){
+            if (!layout.moovCompressed())
+                return 0;
+            return Math.max(0, layout.inflatedMoovSize()) * (this.options.recompressMoov() ? 2 : 1);
+        }
+        
+        /**
+         * Queues a fast start copy of a byte array
+         * @param in input bytes
+         * @return future completed with the result of {@link QtFastStart#fastStart(byte[], FastStartOptions)}
+         */
+        public CompletableFuture<byte[]> submit(byte[] in){
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    long reserved = this.budget.acquire(reservation(in));
+                    try {
+                        return QtFastStart.fastStart(in, this.options);
+                    } finally {
+                        this.budget.release(reserved);
+                    }
+                } catch (IOException | InterruptedException ex) {
+                    throw new CompletionException(ex);
+                }
+            }, this.executor);
+        }
+        
+        /**
+         * Queues a fast start copy of every input file
+         * @param inputs paths of the input files
+         * @param outputFor maps an input path to its output path
+         * @return one future per input, in the same order
+         */
+        public List<CompletableFuture<FastStartResult>> submitAll(List<Path> inputs, Function<Path, Path> outputFor){
+            List<CompletableFuture<FastStartResult>> ret = new ArrayList<>(inputs.size());
+            for(Path in : inputs)
+                ret.add(submit(in, outputFor.apply(in)));
+            return ret;
+        }
+        
+        /**
+         * Shuts down the executor if this processor created it, letting queued jobs finish
+         */
+        @Override
+        public void close(){
+            if(this.ownedExecutor != null)
+                this.ownedExecutor.shutdown();
+        }
+        
+        /**
+         * Creates an executor that runs every job on its own virtual thread, so jobs waiting for the memory
+         * budget or for I/O do not hold a platform thread. Virtual threads need Java 21 or later
+         * @return a new virtual thread per task executor
+         * @throws UnsupportedOperationException if the running Java version has no virtual threads
+         */
+        public static ExecutorService newVirtualThreadExecutor(){
+            try {
+                return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+                throw new UnsupportedOperationException("virtual threads need Java 21 or later", ex);
+            }
+        }
+    
+}
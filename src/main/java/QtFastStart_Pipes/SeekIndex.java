@@ -0,0 +1,369 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import QtFastStart_Pipes.QtFastStart.MalformedFileException;
+import QtFastStart_Pipes.QtFastStart.UnsupportedFileException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * @author SkibbleBip
+ * Maps a time to the byte range of the fast start output that holds it, built from the sample tables of the
+ * patched moov atom (stts, stsc, stsz and stco/co64) while it is still in memory. Each track keeps the start
+ * time, output offset and size of every chunk in primitive arrays, so a seek is a binary search, and the whole
+ * index is Serializable to be stored next to the output. Times are decode times in the timescale of the track;
+ * edit lists and composition offsets are not applied
+ */
+public final class SeekIndex implements Serializable {
+    
+        private static final long serialVersionUID = 1L;
+        
+        private static final int TKHD = fourCc("tkhd");
+        private static final int MDHD = fourCc("mdhd");
+        private static final int HDLR = fourCc("hdlr");
+        private static final int STTS = fourCc("stts");
+        private static final int STSC = fourCc("stsc");
+        private static final int STSZ = fourCc("stsz");
+        
+        private final Track[] tracks;
+        
+        private SeekIndex(Track[] tracks){
+            this.tracks = tracks;
+        }
+        
+        /**
+         * 
+         * @return tracks in the order of the moov atom
+         */
+        public List<Track> tracks(){return Collections.unmodifiableList(Arrays.asList(this.tracks));}
+        
+        /**
+         * 
+         * @param trackId track_ID of the tkhd atom
+         * @return the track, or null
+         */
+        public Track track(int trackId){
+            for(Track track : this.tracks)
+                if(track.trackId == trackId)
+                    return track;
+            return null;
+        }
+        
+        /**
+         * 
+         * @param seconds time to seek to
+         * @return offset in the output where a range request for that time should start: the lowest offset of the
+         * chunks holding it across all tracks, or -1 if no track has chunks
+         */
+        public long offset(double seconds){
+            long ret = -1;
+            for(Track track : this.tracks){
+                long offset = track.offset(seconds);
+                if(offset >= 0 && (ret < 0 || offset < ret))
+                    ret = offset;
+            }
+            return ret;
+        }
+        
+        @Override
+        public String toString(){
+            return "SeekIndex" + Arrays.toString(this.tracks);
+        }
+        
+        /**
+         * Builds the index of a patched moov atom
+         * @param moovAtom patched moov atom, compressed or not, from index 0 to its limit
+         * @return the index
+         * @throws MalformedFileException if a sample table does not fit in its atom or does not match the others
+         * @throws UnsupportedFileException 
+         */
+        /* package */
+        static SeekIndex of(ByteBuffer moovAtom) throws MalformedFileException, UnsupportedFileException{
+            ByteBuffer plain = CompressedMoov.isCompressed(moovAtom) ? CompressedMoov.inflate(moovAtom) : moovAtom;
+            return of(plain, Atom.parseMoov(plain), null);
+        }
+        
+        /**
+         * Builds the index of a moov atom whose atom tree is already parsed
+         * @param plain uncompressed moov atom
+         * @param moov atom tree of the moov atom
+         * @param offsets chunk offsets of each stco and co64 atom of the tree, as they were just patched, or null
+         * to read them from the atoms
+         * @return the index
+         * @throws MalformedFileException if a sample table does not fit in its atom or does not match the others
+         * @throws UnsupportedFileException 
+         */
+        /* package */
+        static SeekIndex of(ByteBuffer plain, Atom moov, Map<Atom, long[]> offsets) throws MalformedFileException, UnsupportedFileException{
+            List<Track> tracks = new ArrayList<>();
+            for(Atom trak : moov.children){
+                if(trak.type != Atom.TRAK)
+                    continue;
+                Track track = track(plain, trak, offsets);
+                if(track != null)
+                    tracks.add(track);
+            }
+            return new SeekIndex(tracks.toArray(new Track[0]));
+        }
+        
+        /**
+         * @return the track, or null if it has no sample tables
+         */
+        private static Track track(ByteBuffer moov, Atom trak, Map<Atom, long[]> patched) throws MalformedFileException, UnsupportedFileException{
+            Atom mdia = trak.child(Atom.MDIA);
+            Atom minf = mdia == null ? null : mdia.child(Atom.MINF);
+            Atom stbl = minf == null ? null : minf.child(Atom.STBL);
+            Atom tkhd = trak.child(TKHD);
+            Atom mdhd = mdia == null ? null : mdia.child(MDHD);
+            if(stbl == null || tkhd == null || mdhd == null)
+                return null;
+            Atom stts = stbl.child(STTS);
+            Atom stsc = stbl.child(STSC);
+            Atom stsz = stbl.child(STSZ);
+            Atom stco = stbl.child(Atom.STCO);
+            if(stco == null)
+                stco = stbl.child(Atom.CO64);
+            if(stts == null || stsc == null || stsz == null || stco == null)
+                return null;
+            
+            // tkhd and mdhd have 64-bit creation and modification times from version 1 on
+            boolean tkhd64 = moov.get(field(tkhd, 0, 1)) == 1;
+            int trackId = moov.getInt(field(tkhd, tkhd64 ? 20 : 12, 4));
+            boolean mdhd64 = moov.get(field(mdhd, 0, 1)) == 1;
+            long timescale = QtFastStart.uint32ToLong(moov.getInt(field(mdhd, mdhd64 ? 20 : 12, 4)));
+            if(timescale == 0)
+                throw new MalformedFileException("track " + trackId + " has a timescale of 0");
+            Atom hdlr = mdia.child(HDLR);
+            String handler = hdlr == null ? "" : fourCcString(moov.getInt(field(hdlr, 8, 4)));
+            
+            long[] offsets = patched == null ? null : patched.get(stco);
+            if(offsets == null){
+                offsets = new long[entries(moov, stco, stco.type == Atom.STCO ? 4 : 8)];
+                int at = stco.payloadOffset() + 8;
+                for(int i = 0; i < offsets.length; i++){
+                    offsets[i] = stco.type == Atom.STCO ? QtFastStart.uint32ToLong(moov.getInt(at)) : moov.getLong(at);
+                    at += stco.type == Atom.STCO ? 4 : 8;
+                }
+            }
+            int chunks = offsets.length;
+            
+            // walk the samples chunk by chunk, with a cursor in each of stsc, stts and stsz
+            int stscCount = entries(moov, stsc, 12);
+            int sttsCount = entries(moov, stts, 8);
+            int stscAt = stsc.payloadOffset() + 8;
+            int sttsAt = stts.payloadOffset() + 8;
+            int stszSize = stsz.payloadOffset() + 12;
+            if(stsz.end() < stszSize)
+                throw new MalformedFileException("malformed atom");
+            long sampleSize = QtFastStart.uint32ToLong(moov.getInt(stszSize - 8));
+            int samples = QtFastStart.uint32ToInt(moov.getInt(stszSize - 4));
+            if(sampleSize == 0 && stsz.end() - stszSize < (long)samples * 4)
+                throw new MalformedFileException("bad atom size/element count");
+            
+            long[] times = new long[chunks];
+            long[] sizes = new long[chunks];
+            int stscIndex = -1;
+            long perChunk = 0;
+            long nextFirstChunk = 1;
+            int sttsIndex = 0;
+            long sttsLeft = 0;
+            long delta = 0;
+            long time = 0;
+            int sample = 0;
+            for(int chunk = 0; chunk < chunks; chunk++){
+                while(stscIndex + 1 < stscCount && chunk + 1 >= nextFirstChunk){
+                    stscIndex++;
+                    perChunk = QtFastStart.uint32ToLong(moov.getInt(stscAt + stscIndex * 12 + 4));
+                    nextFirstChunk = stscIndex + 1 < stscCount
+                            ? QtFastStart.uint32ToLong(moov.getInt(stscAt + (stscIndex + 1) * 12)) : Long.MAX_VALUE;
+                }
+                times[chunk] = time;
+                long size = 0;
+                for(long s = 0; s < perChunk && sample < samples; s++, sample++){
+                    size += sampleSize != 0 ? sampleSize : QtFastStart.uint32ToLong(moov.getInt(stszSize + sample * 4));
+                    while(sttsLeft == 0 && sttsIndex < sttsCount){
+                        sttsLeft = QtFastStart.uint32ToLong(moov.getInt(sttsAt + sttsIndex * 8));
+                        delta = QtFastStart.uint32ToLong(moov.getInt(sttsAt + sttsIndex * 8 + 4));
+                        sttsIndex++;
+                    }
+                    if(sttsLeft == 0)
+                        throw new MalformedFileException("stts atom of track " + trackId + " has fewer samples than its stsz atom");
+                    sttsLeft--;
+                    time += delta;
+                }
+                sizes[chunk] = size;
+            }
+            return new Track(trackId, handler, timescale, times, offsets, sizes, time);
+        }
+        
+        /**
+         * 
+         * @param offset offset of the field in the payload of the atom
+         * @param length size of the field
+         * @return offset of the field in the moov atom, checked to be inside the atom
+         */
+        private static int field(Atom atom, int offset, int length) throws MalformedFileException{
+            if(atom.size < atom.headerSize + offset + length)
+                throw new MalformedFileException("malformed atom");
+            return atom.payloadOffset() + offset;
+        }
+        
+        /**
+         * 
+         * @return entry count of a table atom, checked against its size
+         */
+        private static int entries(ByteBuffer moov, Atom table, int entrySize) throws MalformedFileException, UnsupportedFileException{
+            if(table.size < table.headerSize + 8)
+                throw new MalformedFileException("malformed atom");
+            int entries = table.payloadOffset() + 8;
+            int count = QtFastStart.uint32ToInt(moov.getInt(entries - 4));
+            if(table.end() - entries < (long)count * entrySize)
+                throw new MalformedFileException("bad atom size/element count");
+            return count;
+        }
+        
+        private static int fourCc(String s){
+            return (s.charAt(0) << 24) | (s.charAt(1) << 16) | (s.charAt(2) << 8) | s.charAt(3);
+        }
+        
+        private static String fourCcString(int type){
+            return new String(new char[]{
+                (char)((type >> 24) & 255), (char)((type >> 16) & 255), (char)((type >> 8) & 255), (char)(type & 255)});
+        }
+    
+    /**
+     * Chunks of one track in the output
+     */
+    public static final class Track implements Serializable {
+        
+            private static final long serialVersionUID = 1L;
+            
+            private final int trackId;
+            private final String handler;
+            private final long timescale;
+            private final long[] times;
+            private final long[] offsets;
+            private final long[] sizes;
+            private final long duration;
+            
+            private Track(int trackId, String handler, long timescale, long[] times, long[] offsets, long[] sizes, long duration){
+                this.trackId = trackId;
+                this.handler = handler;
+                this.timescale = timescale;
+                this.times = times;
+                this.offsets = offsets;
+                this.sizes = sizes;
+                this.duration = duration;
+            }
+            
+            /**
+             * 
+             * @return track_ID of the tkhd atom
+             */
+            public int trackId(){return this.trackId;}
+            /**
+             * 
+             * @return handler type of the hdlr atom, such as "vide" or "soun", or an empty string
+             */
+            public String handler(){return this.handler;}
+            /**
+             * 
+             * @return time units per second of the track
+             */
+            public long timescale(){return this.timescale;}
+            /**
+             * 
+             * @return sum of the sample durations, in the timescale of the track
+             */
+            public long duration(){return this.duration;}
+            /**
+             * 
+             * @return number of chunks
+             */
+            public int chunkCount(){return this.offsets.length;}
+            /**
+             * 
+             * @param chunk index of the chunk
+             * @return decode time of the first sample of the chunk, in the timescale of the track
+             */
+            public long time(int chunk){return this.times[chunk];}
+            /**
+             * 
+             * @param chunk index of the chunk
+             * @return offset of the chunk in the output
+             */
+            public long offset(int chunk){return this.offsets[chunk];}
+            /**
+             * 
+             * @param chunk index of the chunk
+             * @return number of bytes of the samples of the chunk
+             */
+            public long size(int chunk){return this.sizes[chunk];}
+            
+            /**
+             * 
+             * @param time decode time in the timescale of the track
+             * @return index of the last chunk starting at or before the time, 0 for times before the first chunk,
+             * or -1 if the track has no chunks
+             */
+            public int chunkAt(long time){
+                int low = 0;
+                int high = this.times.length - 1;
+                if(high < 0)
+                    return -1;
+                while(low < high){
+                    int middle = (low + high + 1) >>> 1;
+                    if(this.times[middle] <= time)
+                        low = middle;
+                    else
+                        high = middle - 1;
+                }
+                return low;
+            }
+            
+            /**
+             * 
+             * @param seconds time to seek to
+             * @return offset in the output of the chunk holding the time, or -1 if the track has no chunks
+             */
+            public long offset(double seconds){
+                int chunk = chunkAt((long)Math.floor(seconds * this.timescale));
+                return chunk < 0 ? -1 : this.offsets[chunk];
+            }
+            
+            @Override
+            public String toString(){
+                return this.handler + "#" + this.trackId + "[" + this.offsets.length + " chunks, " + this.duration + "/" + this.timescale + "]";
+            }
+        
+    }
+    
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.util.ArrayDeque;
+
+/**
+ *
+ * @author SkibbleBip
+ * A pool of equally sized byte arrays that input streams are read into. A stream of unknown length is held in
+ * as many segments as it needs, so it never has to be grown by copying, and the segments of an input that has
+ * been processed go back to the pool for the next one instead of to the garbage collector
+ */
+public class SegmentPool {
+    
+        /** Default size of a segment */
+        public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    
+        private final int segmentSize;
+        private final int shift;
+        private final int maxPooled;
+        private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+        
+        /**
+         * Creates a pool of {@value #DEFAULT_SEGMENT_SIZE} byte segments
+         * @param maxPooledBytes number of bytes of free segments the pool keeps for reuse
+         */
+        public SegmentPool(long maxPooledBytes){
+            this(DEFAULT_SEGMENT_SIZE, maxPooledBytes);
+        }
+        
+        /**
+         * 
+         * @param segmentSize size of a segment, a power of two of at least 4096 bytes
+         * @param maxPooledBytes number of bytes of free segments the pool keeps for reuse
+         */
+        public SegmentPool(int segmentSize, long maxPooledBytes){
+            if(segmentSize < 4096 || Integer.bitCount(segmentSize) != 1)
+                throw new IllegalArgumentException("segment size " + segmentSize + " is not a power of two of at least 4096");
+            if(maxPooledBytes < 0)
+                throw new IllegalArgumentException("pool size " + maxPooledBytes + " is negative");
+            this.segmentSize = segmentSize;
+            this.shift = Integer.numberOfTrailingZeros(segmentSize);
+            this.maxPooled = (int)Math.min(Integer.MAX_VALUE, maxPooledBytes / segmentSize);
+        }
+        
+        /**
+         * 
+         * @return size of a segment
+         */
+        public int segmentSize(){return this.segmentSize;}
+        
+        /**
+         * 
+         * @return number of bytes of free segments held for reuse right now
+         */
+        public synchronized long pooledBytes(){return (long)this.free.size() * this.segmentSize;}
+        
+        /**
+         * 
+         * @return log2 of the segment size
+         */
+        /* package */
+        int shift(){return this.shift;}
+        
+        /**
+         * 
+         * @return a free segment, reused if one is available; its content is undefined
+         */
+        /* package */
+        synchronized byte[] take(){
+            byte[] segment = this.free.poll();
+            return segment != null ? segment : new byte[this.segmentSize];
+        }
+        
+        /**
+         * Gives a segment back for reuse; it must no longer be referenced by the caller
+         * @param segment segment from {@link #take()}
+         */
+        /* package */
+        synchronized void give(byte[] segment){
+            if(segment.length == this.segmentSize && this.free.size() < this.maxPooled)
+                this.free.push(segment);
+        }
+    
+}
@@ -0,0 +1,216 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author SkibbleBip
+ * Append-only byte store that keeps its first bytes in memory and spills everything past a threshold
+ * to a temporary file, so buffering an arbitrarily large input costs a bounded amount of heap
+ */
+class SpillBuffer implements Closeable {
+    
+        private static final int CHUNK_SIZE = 64 * 1024;
+    
+        private final long threshold;
+        private final Path tempDirectory;
+        private final List<byte[]> chunks = new ArrayList<>();
+        private final byte[] scratch = new byte[CHUNK_SIZE];
+        private long memorySize = 0;
+        private long size = 0;
+        private Path spillFile = null;
+        private FileChannel spill = null;
+        
+        /**
+         * 
+         * @param threshold number of bytes kept in memory before spilling to disk
+         * @param tempDirectory directory for the spill file, or null for the default temporary directory
+         */
+        SpillBuffer(long threshold, Path tempDirectory){
+            this.threshold = threshold;
+            this.tempDirectory = tempDirectory;
+        }
+        
+        /**
+         * 
+         * @return number of bytes appended so far
+         */
+        long size(){return this.size;}
+        
+        /**
+         * 
+         * @return true if part of the content lives in a temporary file
+         */
+        boolean spilled(){return this.spill != null;}
+        
+        /**
+         * 
+         * @param b bytes to append
+         * @param off offset in b
+         * @param len number of bytes to append
+         * @throws IOException 
+         */
+        void write(byte[] b, int off, int len) throws IOException{
+            while(len > 0){
+                int n = appendToMemory(b, off, len);
+                if(n == 0){
+                    spillChannel().write(ByteBuffer.wrap(b, off, len));
+                    this.size += len;
+                    return;
+                }
+                off += n;
+                len -= n;
+            }
+        }
+        
+        /**
+         * Appends up to count bytes read from the input stream
+         * @param in stream to read from
+         * @param count number of bytes to read
+         * @return number of bytes read, less than count only if the stream ended
+         * @throws IOException 
+         */
+        long transferFrom(InputStream in, long count) throws IOException{
+            long done = 0;
+            while(done < count){
+                int want = (int)Math.min(count - done, CHUNK_SIZE);
+                int n = in.read(this.scratch, 0, want);
+                if(n < 0)
+                    break;
+                write(this.scratch, 0, n);
+                done += n;
+            }
+            return done;
+        }
+        
+        /**
+         * Writes the content from the given offset to the end to the output stream
+         * @param out stream to write to
+         * @param from offset of the first byte to write
+         * @throws IOException 
+         */
+        void writeTo(OutputStream out, long from) throws IOException{
+            writeTo(out, from, this.size);
+        }
+        
+        /**
+         * Writes part of the content to the output stream
+         * @param out stream to write to
+         * @param from offset of the first byte to write
+         * @param to offset after the last byte to write
+         * @throws IOException 
+         */
+        void writeTo(OutputStream out, long from, long to) throws IOException{
+            long skip = from;
+            long left = to - from;
+            long inMemory = this.memorySize;
+            for(byte[] chunk : this.chunks){
+                int used = (int)Math.min(chunk.length, inMemory);
+                inMemory -= used;
+                if(skip >= used){
+                    skip -= used;
+                    continue;
+                }
+                if(left <= 0)
+                    return;
+                int n = (int)Math.min(used - skip, left);
+                out.write(chunk, (int)skip, n);
+                left -= n;
+                skip = 0;
+            }
+            
+            if(this.spill == null)
+                return;
+            
+            long position = skip;
+            long end = Math.min(this.size - this.memorySize, position + left);
+            ByteBuffer buffer = ByteBuffer.wrap(this.scratch);
+            while(position < end){
+                buffer.clear();
+                buffer.limit((int)Math.min(CHUNK_SIZE, end - position));
+                int n = this.spill.read(buffer, position);
+                if(n < 0)
+                    throw new IOException("spill file is shorter than expected");
+                out.write(this.scratch, 0, n);
+                position += n;
+            }
+        }
+        
+        /**
+         * @return number of bytes taken from b, 0 once the memory part is full
+         */
+        private int appendToMemory(byte[] b, int off, int len){
+            if(this.spill != null || this.memorySize >= this.threshold)
+                return 0;
+            
+            int inChunk = (int)(this.memorySize % CHUNK_SIZE);
+            if(inChunk == 0 && this.chunks.size() * (long)CHUNK_SIZE == this.memorySize)
+                this.chunks.add(new byte[(int)Math.min(CHUNK_SIZE, this.threshold - this.memorySize)]);
+            
+            byte[] chunk = this.chunks.get(this.chunks.size() - 1);
+            int n = Math.min(len, chunk.length - inChunk);
+            System.arraycopy(b, off, chunk, inChunk, n);
+            this.memorySize += n;
+            this.size += n;
+            return n;
+        }
+        
+        private FileChannel spillChannel() throws IOException{
+            if(this.spill == null){
+                this.spillFile = this.tempDirectory == null
+                        ? Files.createTempFile("qtfaststart", ".spill")
+                        : Files.createTempFile(this.tempDirectory, "qtfaststart", ".spill");
+                this.spill = FileChannel.open(this.spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            return this.spill;
+        }
+        
+        /**
+         * Releases the memory and deletes the spill file
+         * @throws IOException 
+         */
+        @Override
+        public void close() throws IOException{
+            this.chunks.clear();
+            if(this.spill != null){
+                this.spill.close();
+                Files.deleteIfExists(this.spillFile);
+                this.spill = null;
+            }
+        }
+    
+}
@@ -0,0 +1,186 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the read and transfer paths of {@link ArtificialFileStream} copy
+ * straight between the backing arrays and the caller's buffer, using the
+ * per-thread allocation counter of the HotSpot {@code ThreadMXBean}, and that
+ * a pooled stream keeps its content when it is turned into one array.
+ *
+ * @author SkibbleBip
+ */
+public class ArtificialFileStreamTest {
+
+        private static final int MDAT_SIZE = 16 * 1024 * 1024;
+        private static final int CHUNKS = 1000;
+        /** room for the counter itself, JIT and class loading noise */
+        private static final long SLACK = 64 * 1024;
+        private static final int FTYP = 0x66747970; // ftyp
+        private static final int MDAT = 0x6d646174; // mdat
+
+        private com.sun.management.ThreadMXBean threads;
+
+        @Before
+        public void setUp(){
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+            threads = (com.sun.management.ThreadMXBean)bean;
+            assumeTrue(threads.isThreadAllocatedMemorySupported());
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+
+        private long allocated(){
+            return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        @Test
+        public void readDoesNotAllocate() throws Exception{
+            ArtificialFileStream stream = new ArtificialFileStream(new byte[MDAT_SIZE]);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+            for(int i = 0; i < 3; i++)
+                readAll(stream, buffer);
+
+            long before = allocated();
+            long read = readAll(stream, buffer);
+            long used = allocated() - before;
+
+            assertEquals(MDAT_SIZE, read);
+            assertTrue("read allocated " + used + " bytes", used < SLACK);
+        }
+
+        private static long readAll(ArtificialFileStream stream, ByteBuffer buffer) throws Exception{
+            long total = 0;
+            for(long position = 0; position < stream.size(); position += buffer.position()){
+                buffer.clear();
+                stream.read(buffer, position);
+                total += buffer.position();
+            }
+            return total;
+        }
+
+        @Test
+        public void transferToDoesNotAllocateBeyondTarget() throws Exception{
+            ArtificialFileStream source = new ArtificialFileStream(new byte[MDAT_SIZE]);
+
+            for(int i = 0; i < 3; i++)
+                source.transferTo(0, MDAT_SIZE, new ArtificialFileStream((long)MDAT_SIZE));
+
+            ArtificialFileStream target = new ArtificialFileStream((long)MDAT_SIZE);
+            long before = allocated();
+            long transferred = source.transferTo(0, MDAT_SIZE, target);
+            long used = allocated() - before;
+
+            assertEquals(MDAT_SIZE, transferred);
+            assertEquals(MDAT_SIZE, target.size());
+            assertTrue("transferTo allocated " + used + " bytes", used < SLACK);
+        }
+
+        @Test
+        public void pooledStreamKeepsItsContentAsArray() throws Exception{
+            byte[] data = new byte[3 * 4096 + 100];
+            for(int i = 0; i < data.length; i++)
+                data[i] = (byte)(i * 31);
+            SegmentPool pool = new SegmentPool(4096, 1024 * 1024);
+            ArtificialFileStream stream = new ArtificialFileStream(new ByteArrayInputStream(data), -1, Long.MAX_VALUE, pool);
+            stream.position(5000);
+
+            assertArrayEquals(data, stream.getByteArray());
+            // the segments went back to the pool, while the stream still reads the same bytes from the array
+            assertEquals(4 * 4096, pool.pooledBytes());
+            assertEquals(data.length, stream.size());
+            assertEquals(5000, stream.position());
+            ByteBuffer tail = ByteBuffer.allocate(200);
+            stream.read(tail, data.length - 200);
+            assertArrayEquals(Arrays.copyOfRange(data, data.length - 200, data.length), tail.array());
+            assertArrayEquals(data, stream.getByteArray());
+        }
+
+        @Test
+        public void fastStartAllocatesAboutTheOutput() throws Exception{
+            byte[] in = mp4(MDAT_SIZE, CHUNKS);
+
+            byte[] out = null;
+            for(int i = 0; i < 3; i++)
+                out = QtFastStart.fastStart(in);
+            assertEquals(in.length, out.length);
+
+            long before = allocated();
+            out = QtFastStart.fastStart(in);
+            long used = allocated() - before;
+
+            long moov = in.length - MDAT_SIZE - 8 - 20;
+            // the output itself, the patched moov and the atom headers, nothing proportional to the mdat
+            assertTrue("fastStart allocated " + used + " bytes for " + out.length, used < out.length + moov + SLACK);
+
+            // ftyp, then moov with every offset moved by the moov size, then the untouched mdat
+            ByteBuffer o = ByteBuffer.wrap(out);
+            assertEquals(FTYP, o.getInt(4));
+            assertEquals(Atom.MOOV, o.getInt(24));
+            int stco = 20 + (int)moov - CHUNKS * 4;
+            for(int i = 0; i < CHUNKS; i++)
+                assertEquals(28 + i * 16 + moov, o.getInt(stco + i * 4) & 0xffffffffL);
+            byte[] mdat = new byte[MDAT_SIZE + 8];
+            System.arraycopy(in, 20, mdat, 0, mdat.length);
+            byte[] moved = new byte[mdat.length];
+            System.arraycopy(out, 20 + (int)moov, moved, 0, moved.length);
+            assertArrayEquals(mdat, moved);
+        }
+
+        /**
+         * Builds ftyp, mdat and a trailing moov holding one track whose stco
+         * points at {@code chunks} offsets inside the mdat.
+         */
+        private static byte[] mp4(int mdatSize, int chunks){
+            int stco = 16 + chunks * 4;
+            int stbl = 8 + stco, minf = 8 + stbl, mdia = 8 + minf, trak = 8 + mdia, moov = 8 + trak;
+            ByteBuffer b = ByteBuffer.allocate(20 + 8 + mdatSize + moov);
+            b.putInt(20).putInt(FTYP).putInt(0x69736f6d).putInt(0).putInt(0x69736f6d);
+            b.putInt(8 + mdatSize).putInt(MDAT);
+            for(int i = 0; i < mdatSize; i++)
+                b.put((byte)i);
+            b.putInt(moov).putInt(Atom.MOOV);
+            b.putInt(trak).putInt(Atom.TRAK);
+            b.putInt(mdia).putInt(Atom.MDIA);
+            b.putInt(minf).putInt(Atom.MINF);
+            b.putInt(stbl).putInt(Atom.STBL);
+            b.putInt(stco).putInt(Atom.STCO).putInt(0).putInt(chunks);
+            for(int i = 0; i < chunks; i++)
+                b.putInt(28 + i * 16);
+            return b.array();
+        }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import static QtFastStart_Pipes.Mp4Files.chunks;
+import static QtFastStart_Pipes.Mp4Files.co64;
+import static QtFastStart_Pipes.Mp4Files.file;
+import static QtFastStart_Pipes.Mp4Files.fileOutput;
+import static QtFastStart_Pipes.Mp4Files.moov;
+import static QtFastStart_Pipes.Mp4Files.samples;
+import static QtFastStart_Pipes.Mp4Files.stco;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link QtFastStart#fastStartAsync} writes the bytes of
+ * {@link QtFastStart#fastStart(Path, Path)}, also with media data spanning
+ * more chunks than are in flight and with jobs running side by side, that
+ * the moov atom is patched on the patch pool rather than on an I/O thread,
+ * and that its future fails with the exception that stopped the job.
+ *
+ * @author SkibbleBip
+ */
+public class AsyncFastStartTest {
+
+        private static final int MDAT_SIZE = 200 * 1024 + 3;
+        private static final int LARGE_MDAT_SIZE = AsyncFastStart.CHUNK_SIZE * (AsyncFastStart.CHUNKS_IN_FLIGHT + 2) + 4321;
+
+        private Path dir;
+
+        @Before
+        public void setUp() throws Exception{
+            dir = Files.createTempDirectory("async");
+        }
+
+        @After
+        public void tearDown() throws Exception{
+            Mp4Files.delete(dir);
+        }
+
+        /**
+         * Fast starts a file asynchronously and checks its output against the file output.
+         */
+        private void assertMatches(byte[] in, String name) throws Exception{
+            byte[] expected = fileOutput(in, dir);
+            Path input = dir.resolve(name + "-in.mp4");
+            Path output = dir.resolve(name + "-out.mp4");
+            Files.write(input, in);
+
+            FastStartResult result = QtFastStart.fastStartAsync(input, output).get();
+            assertEquals(expected != in, result.optimized());
+            assertEquals(in.length, result.inputSize());
+            if(result.optimized()){
+                assertEquals(expected.length, result.outputSize());
+                assertArrayEquals(name, expected, Files.readAllBytes(output));
+            } else
+                assertFalse("output written for an unchanged input", Files.exists(output));
+            assertArrayEquals("input changed", in, Files.readAllBytes(input));
+        }
+
+        /**
+         * @return what the future failed with
+         */
+        private static Throwable failure(CompletableFuture<FastStartResult> future) throws Exception{
+            try{
+                future.get();
+            } catch(ExecutionException ex){
+                return ex.getCause();
+            }
+            throw new AssertionError("the job did not fail");
+        }
+
+        @Test
+        public void matchesTheFileOutput() throws Exception{
+            List<byte[]> samples = samples(MDAT_SIZE);
+            for(int i = 0; i < samples.size(); i++)
+                assertMatches(samples.get(i), "sample" + i);
+            assertMatches(file(LARGE_MDAT_SIZE, moov(stco(chunks(500, LARGE_MDAT_SIZE, 6)), co64(chunks(500, LARGE_MDAT_SIZE, 7))), 8), "large");
+        }
+
+        @Test
+        public void jobsSideBySideKeepTheirOutputs() throws Exception{
+            List<byte[]> expected = new ArrayList<>();
+            List<CompletableFuture<FastStartResult>> results = new ArrayList<>();
+            for(int i = 0; i < 8; i++){
+                byte[] in = file(MDAT_SIZE + i * 999, moov(stco(chunks(100 + i, MDAT_SIZE + i * 999, i))), i);
+                expected.add(fileOutput(in, dir));
+                Path input = dir.resolve("in" + i + ".mp4");
+                Files.write(input, in);
+                results.add(QtFastStart.fastStartAsync(input, dir.resolve("out" + i + ".mp4")));
+            }
+            for(int i = 0; i < results.size(); i++){
+                assertTrue(results.get(i).get().optimized());
+                assertArrayEquals("job " + i, expected.get(i), Files.readAllBytes(dir.resolve("out" + i + ".mp4")));
+            }
+        }
+
+        @Test
+        public void patchesOnThePatchPool() throws Exception{
+            Path input = dir.resolve("in.mp4");
+            Files.write(input, samples(MDAT_SIZE).get(0));
+            ForkJoinPool pool = new ForkJoinPool(2);
+            try{
+                CompletableFuture<Thread> patchedOn = new CompletableFuture<>();
+                FastStartOptions options = new FastStartOptions().parallelPatchPool(pool).listener(new QtFastStartListener(){
+                    @Override
+                    public void offsetsPatched(long stcoEntries, long co64Entries, long nanos){
+                        patchedOn.complete(Thread.currentThread());
+                    }
+                });
+                assertTrue(QtFastStart.fastStartAsync(input, dir.resolve("out.mp4"), options).get().optimized());
+                Thread thread = patchedOn.getNow(null);
+                assertTrue(String.valueOf(thread), thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread)thread).getPool() == pool);
+            } finally{
+                pool.shutdown();
+            }
+        }
+
+        @Test
+        public void malformedMoovFailsTheFuture() throws Exception{
+            byte[] table = stco(chunks(10, MDAT_SIZE, 9));
+            ByteBuffer.wrap(table).putInt(12, 1000);
+            Path input = dir.resolve("in.mp4");
+            Files.write(input, file(MDAT_SIZE, moov(table), 10));
+
+            Throwable failure = failure(QtFastStart.fastStartAsync(input, dir.resolve("out.mp4")));
+            assertTrue(String.valueOf(failure), failure instanceof QtFastStart.MalformedFileException);
+            try{
+                QtFastStart.fastStart(input, dir.resolve("sync.mp4"));
+                fail("the synchronous call accepted the input");
+            } catch(QtFastStart.MalformedFileException expected){
+                assertEquals(expected.getMessage(), failure.getMessage());
+            }
+        }
+
+        @Test
+        public void ioErrorsFailTheFuture() throws Exception{
+            Throwable failure = failure(QtFastStart.fastStartAsync(dir.resolve("missing.mp4"), dir.resolve("out.mp4")));
+            assertTrue(String.valueOf(failure), failure instanceof NoSuchFileException);
+
+            Path input = dir.resolve("in.mp4");
+            Files.write(input, samples(MDAT_SIZE).get(0));
+            failure = failure(QtFastStart.fastStartAsync(input, dir.resolve("missing").resolve("out.mp4")));
+            assertTrue(String.valueOf(failure), failure instanceof NoSuchFileException);
+        }
+
+}
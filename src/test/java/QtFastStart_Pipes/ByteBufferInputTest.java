@@ -0,0 +1,139 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import static QtFastStart_Pipes.Mp4Files.chunks;
+import static QtFastStart_Pipes.Mp4Files.file;
+import static QtFastStart_Pipes.Mp4Files.fileOutput;
+import static QtFastStart_Pipes.Mp4Files.moov;
+import static QtFastStart_Pipes.Mp4Files.samples;
+import static QtFastStart_Pipes.Mp4Files.stco;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link QtFastStart#fastStart(ByteBuffer)} gives the bytes of
+ * {@link QtFastStart#fastStart(Path, Path)} for heap, direct and memory mapped
+ * inputs read from their position to their limit, keeps a direct input off the
+ * heap, leaves the input buffer as it was and rejects a malformed moov atom.
+ *
+ * @author SkibbleBip
+ */
+public class ByteBufferInputTest {
+
+        private static final int MDAT_SIZE = 200 * 1024 + 3;
+
+        private Path dir;
+
+        @Before
+        public void setUp() throws Exception{
+            dir = Files.createTempDirectory("bytebuffer");
+        }
+
+        @After
+        public void tearDown() throws Exception{
+            Mp4Files.delete(dir);
+        }
+
+        /**
+         * @return the input between junk bytes, positioned and limited to it
+         */
+        private static ByteBuffer embedded(byte[] in, boolean direct){
+            ByteBuffer b = direct ? ByteBuffer.allocateDirect(in.length + 300) : ByteBuffer.allocate(in.length + 300);
+            for(int i = 0; i < 100; i++)
+                b.put((byte)0xA5);
+            b.put(in);
+            while(b.hasRemaining())
+                b.put((byte)0x5A);
+            return b.position(100).limit(100 + in.length);
+        }
+
+        private static void assertOutput(byte[] expected, ByteBuffer in) throws Exception{
+            int position = in.position(), limit = in.limit();
+            CompositeOutput out = QtFastStart.fastStart(in);
+            assertEquals(position, in.position());
+            assertEquals(limit, in.limit());
+            assertEquals(expected.length, out.size());
+            assertArrayEquals(expected, out.toByteArray());
+            if(in.isDirect())
+                for(ByteBuffer part : out.buffers())
+                    assertTrue("heap part in the output of a direct input", part.isDirect());
+        }
+
+        @Test
+        public void heapAndDirectInputsMatchTheFileOutput() throws Exception{
+            for(byte[] in : samples(MDAT_SIZE)){
+                byte[] expected = fileOutput(in, dir);
+                assertOutput(expected, ByteBuffer.wrap(in));
+                assertOutput(expected, embedded(in, false));
+                assertOutput(expected, embedded(in, true));
+            }
+        }
+
+        @Test
+        public void mappedInputMatchesTheFileOutput() throws Exception{
+            for(byte[] in : samples(MDAT_SIZE)){
+                byte[] expected = fileOutput(in, dir);
+                Path input = dir.resolve("in.mp4");
+                Files.write(input, in);
+                try(FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)){
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    assertOutput(expected, mapped);
+
+                    // written out with gathering writes, straight from the mapping
+                    Path output = dir.resolve("out.mp4");
+                    try(FileChannel target = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING)){
+                        assertEquals(expected.length, QtFastStart.fastStart(mapped).writeTo(target));
+                    }
+                    assertArrayEquals(expected, Files.readAllBytes(output));
+                }
+            }
+        }
+
+        @Test
+        public void malformedInputThrows() throws Exception{
+            // an stco atom with more entries than it holds
+            byte[] table = stco(chunks(10, MDAT_SIZE, 9));
+            ByteBuffer.wrap(table).putInt(12, 1000);
+            byte[] in = file(MDAT_SIZE, moov(table), 10);
+            try{
+                QtFastStart.fastStart(ByteBuffer.allocateDirect(in.length).put(in).flip());
+                fail("a malformed moov atom was accepted");
+            } catch(QtFastStart.MalformedFileException expected){
+            }
+        }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+import static QtFastStart_Pipes.Mp4Files.chunks;
+import static QtFastStart_Pipes.Mp4Files.file;
+import static QtFastStart_Pipes.Mp4Files.moov;
+import static QtFastStart_Pipes.Mp4Files.stco;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the checksums named by {@link FastStartOptions#checksums} come
+ * back with the result of each call and match digests of the output computed
+ * in a second pass, including for calls sharing their options.
+ *
+ * @author SkibbleBip
+ */
+public class ChecksumsTest {
+
+        private static final int MDAT_SIZE = 3 * 1024 * 1024 + 17;
+        private static final Checksums.Algorithm[] ALL = Checksums.Algorithm.values();
+
+        private Path dir;
+        private byte[] in;
+        private byte[] out;
+
+        @Before
+        public void setUp() throws Exception{
+            dir = Files.createTempDirectory("checksums");
+            in = file(MDAT_SIZE, moov(stco(chunks(300, MDAT_SIZE, 1))), 2);
+            out = QtFastStart.fastStart(in);
+        }
+
+        @After
+        public void tearDown() throws Exception{
+            Mp4Files.delete(dir);
+        }
+
+        private static void assertChecksums(byte[] expected, Checksums checksums) throws Exception{
+            CRC32C crc = new CRC32C();
+            crc.update(expected);
+            assertEquals(crc.getValue(), checksums.crc32c());
+            assertArrayEquals(MessageDigest.getInstance("MD5").digest(expected), checksums.md5());
+            assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(expected), checksums.sha256());
+            assertEquals(expected.length, checksums.bytes());
+        }
+
+        @Test
+        public void resultsCarryChecksumsOfTheOutput() throws Exception{
+            FastStartOptions options = new FastStartOptions().checksums(ALL);
+            Path input = dir.resolve("in.mp4");
+            Files.write(input, in);
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            FastStartResult streamed = QtFastStart.fastStart(new ByteArrayInputStream(in), stream, options);
+            assertTrue(streamed.optimized());
+            assertEquals(in.length, streamed.inputSize());
+            assertEquals(out.length, streamed.outputSize());
+            assertChecksums(out, streamed.checksums());
+
+            FastStartResult written = QtFastStart.fastStart(input, dir.resolve("out.mp4"), options);
+            assertTrue(written.optimized());
+            assertEquals(out.length, written.outputSize());
+            assertChecksums(out, written.checksums());
+
+            FastStartResult async = QtFastStart.fastStartAsync(input, dir.resolve("async.mp4"), options).get();
+            assertChecksums(out, async.checksums());
+
+            // the options only name the algorithms, nothing of a call is kept in them
+            assertEquals(EnumSet.allOf(Checksums.Algorithm.class), options.checksums());
+        }
+
+        @Test
+        public void checksumsCoverAnUnchangedInput() throws Exception{
+            FastStartOptions options = new FastStartOptions().checksums(ALL);
+            Path input = dir.resolve("fast.mp4");
+            Files.write(input, out);
+
+            FastStartResult result = QtFastStart.fastStart(input, dir.resolve("out.mp4"), options);
+            assertFalse(result.optimized());
+            assertFalse(Files.exists(dir.resolve("out.mp4")));
+            assertChecksums(out, result.checksums());
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            result = QtFastStart.fastStart(new ByteArrayInputStream(out), stream, options);
+            assertFalse(result.optimized());
+            assertEquals(out.length, result.outputSize());
+            assertChecksums(out, result.checksums());
+        }
+
+        @Test
+        public void callsSharingOptionsGetTheirOwnChecksums() throws Exception{
+            FastStartOptions options = new FastStartOptions().checksums(ALL);
+            List<byte[]> outputs = new ArrayList<>();
+            List<CompletableFuture<FastStartResult>> results = new ArrayList<>();
+            for(int i = 0; i < 6; i++){
+                byte[] input = file(MDAT_SIZE - i * 4096, moov(stco(chunks(100 + i, MDAT_SIZE - i * 4096, i))), i);
+                outputs.add(QtFastStart.fastStart(input));
+                Path path = dir.resolve("in" + i + ".mp4");
+                Files.write(path, input);
+                results.add(QtFastStart.fastStartAsync(path, dir.resolve("out" + i + ".mp4"), options));
+            }
+            for(int i = 0; i < results.size(); i++)
+                assertChecksums(outputs.get(i), results.get(i).get().checksums());
+        }
+
+        @Test
+        public void compositeOutputChecksumsItsArray() throws Exception{
+            Checksums checksums = new Checksums(ALL);
+            byte[] array = QtFastStart.fastStartBuffers(in).toByteArray(checksums);
+            assertArrayEquals(out, array);
+            assertChecksums(out, checksums);
+
+            // a second use starts over
+            QtFastStart.fastStartBuffers(out).toByteArray(checksums);
+            assertChecksums(out, checksums);
+        }
+
+        @Test
+        public void noAlgorithmsNoChecksums() throws Exception{
+            Path input = dir.resolve("in.mp4");
+            Files.write(input, in);
+            assertNull(QtFastStart.fastStart(input, dir.resolve("out.mp4"), new FastStartOptions()).checksums());
+            assertNull(QtFastStart.fastStart(input, dir.resolve("out.mp4"), new FastStartOptions().checksums(ALL).checksums(new Checksums.Algorithm[0])).checksums());
+        }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static QtFastStart_Pipes.Mp4Files.assertChunksFollow;
+import static QtFastStart_Pipes.Mp4Files.assertIdempotent;
+import static QtFastStart_Pipes.Mp4Files.chunks;
+import static QtFastStart_Pipes.Mp4Files.co64;
+import static QtFastStart_Pipes.Mp4Files.compress;
+import static QtFastStart_Pipes.Mp4Files.fastStart;
+import static QtFastStart_Pipes.Mp4Files.file;
+import static QtFastStart_Pipes.Mp4Files.find;
+import static QtFastStart_Pipes.Mp4Files.moov;
+import static QtFastStart_Pipes.Mp4Files.stco;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the fast start of files with a compressed (cmov) moov atom, written
+ * out inflated or recompressed, and that the {@link MoovCache} keeps the two
+ * apart.
+ *
+ * @author SkibbleBip
+ */
+public class CompressedMoovTest {
+
+        private static final int MDAT_SIZE = 64 * 1024;
+
+        private Path dir;
+
+        @Before
+        public void setUp() throws Exception{
+            dir = Files.createTempDirectory("cmov");
+        }
+
+        @After
+        public void tearDown() throws Exception{
+            Mp4Files.delete(dir);
+        }
+
+        private static byte[] cmovFile(long seed){
+            return file(MDAT_SIZE, compress(moov(stco(chunks(500, MDAT_SIZE, seed)), co64(chunks(300, MDAT_SIZE, seed + 1)))), seed + 2);
+        }
+
+        private static boolean compressed(byte[] file){
+            long[] moov = find(file, "moov");
+            return CompressedMoov.isCompressed(ByteBuffer.wrap(file, (int)moov[1], (int)moov[2]).slice());
+        }
+
+        @Test
+        public void rejectsImplausibleUncompressedSizes() throws Exception{
+            byte[] in = cmovFile(40);
+            long[] moov = find(in, "moov");
+            ByteBuffer b = ByteBuffer.wrap(in);
+            int cmvd = (int)moov[1] + 16 + b.getInt((int)moov[1] + 16);
+            long packedSize = b.getInt(cmvd) - 12;
+
+            // past what an array holds, past what the compressed data inflates to, too small for a moov atom
+            for(long declared : new long[]{0xFFFFFFF0L, Integer.MAX_VALUE - 7, packedSize * 2000, 4}){
+                byte[] bad = in.clone();
+                ByteBuffer.wrap(bad).putInt(cmvd + 8, (int)declared);
+                for(boolean recompress : new boolean[]{false, true}){
+                    try{
+                        QtFastStart.fastStartBuffers(bad, new FastStartOptions().recompressMoov(recompress));
+                        fail("cmvd size " + declared + " was accepted");
+                    } catch(QtFastStart.MalformedFileException expected){
+                    }
+                }
+                try{
+                    CompressedMoov.inflate(ByteBuffer.wrap(bad, (int)moov[1], (int)moov[2]).slice());
+                    fail("cmvd size " + declared + " was inflated");
+                } catch(QtFastStart.MalformedFileException expected){
+                }
+            }
+        }
+
+        @Test
+        public void writesInflatedMoov() throws Exception{
+            byte[] in = cmovFile(1);
+
+            byte[] out = fastStart(in, new FastStartOptions(), dir);
+
+            assertFalse(compressed(out));
+            assertChunksFollow(in, out);
+            assertIdempotent(out, new FastStartOptions(), dir);
+        }
+
+        @Test
+        public void writesRecompressedMoov() throws Exception{
+            byte[] in = cmovFile(4);
+            FastStartOptions options = new FastStartOptions().recompressMoov(true);
+
+            byte[] out = fastStart(in, options, dir);
+
+            assertTrue(compressed(out));
+            assertTrue(out.length < fastStart(in, new FastStartOptions(), dir).length);
+            assertChunksFollow(in, out);
+            assertIdempotent(out, options, dir);
+        }
+
+        @Test
+        public void cacheKeepsInflatedAndRecompressedApart() throws Exception{
+            byte[] in = cmovFile(7);
+            Path input = dir.resolve("cached.mp4");
+            Files.write(input, in);
+            Path output = dir.resolve("cached-out.mp4");
+            MoovCache cache = new MoovCache(1 << 20);
+
+            for(boolean recompress : new boolean[]{false, true, false, true}){
+                byte[] expected = QtFastStart.fastStart(in, new FastStartOptions().recompressMoov(recompress));
+                assertTrue(QtFastStart.fastStart(input, output, new FastStartOptions().recompressMoov(recompress).moovCache(cache)).optimized());
+                assertArrayEquals(expected, Files.readAllBytes(output));
+                assertEquals(recompress, compressed(expected));
+            }
+            assertEquals(2, cache.misses());
+            assertEquals(2, cache.hits());
+        }
+
+        @Test
+        public void cacheKeepsPaddingsApart() throws Exception{
+            byte[] in = cmovFile(10);
+            Path input = dir.resolve("cached.mp4");
+            Files.write(input, in);
+            Path output = dir.resolve("cached-out.mp4");
+            MoovCache cache = new MoovCache(1 << 20);
+
+            for(int padding : new int[]{0, 4096, 0, 4096}){
+                FastStartOptions options = new FastStartOptions().recompressMoov(true).moovPadding(padding);
+                byte[] expected = QtFastStart.fastStart(in, options);
+                assertTrue(QtFastStart.fastStart(input, output, options.moovCache(cache)).optimized());
+                assertArrayEquals(expected, Files.readAllBytes(output));
+            }
+            assertEquals(2, cache.misses());
+            assertEquals(2, cache.hits());
+        }
+
+}
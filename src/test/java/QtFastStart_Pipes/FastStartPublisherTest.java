@@ -0,0 +1,266 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import static QtFastStart_Pipes.Mp4Files.fileOutput;
+import static QtFastStart_Pipes.Mp4Files.samples;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a fast start publisher emits the bytes of
+ * {@link QtFastStart#fastStart(Path, Path)} in buffers of at most the chunk
+ * size, no more buffers than were requested, nothing after a cancel, and its
+ * failures through onError. Most tests signal on the calling thread so the
+ * buffers delivered after each request can be counted exactly.
+ *
+ * @author SkibbleBip
+ */
+public class FastStartPublisherTest {
+
+        private static final int MDAT_SIZE = 200 * 1024 + 3;
+        private static final int CHUNK_SIZE = 16 * 1024;
+        private static final Executor CALLER = Runnable::run;
+
+        private Path dir;
+
+        @Before
+        public void setUp() throws Exception{
+            dir = Files.createTempDirectory("publisher");
+        }
+
+        @After
+        public void tearDown() throws Exception{
+            Mp4Files.delete(dir);
+        }
+
+        /**
+         * Subscriber that records what it is sent, requesting a number of
+         * buffers once subscribed.
+         */
+        private static class Recorder implements Flow.Subscriber<ByteBuffer> {
+                private final long initial;
+                private final List<ByteBuffer> buffers = new ArrayList<>();
+                final CompletableFuture<Void> done = new CompletableFuture<>();
+                volatile Flow.Subscription subscription;
+                boolean completed = false;
+                Throwable error = null;
+
+                Recorder(long initial){
+                    this.initial = initial;
+                }
+
+                @Override
+                public synchronized void onSubscribe(Flow.Subscription subscription){
+                    this.subscription = subscription;
+                    if(this.initial > 0)
+                        subscription.request(this.initial);
+                }
+
+                @Override
+                public synchronized void onNext(ByteBuffer item){
+                    assertFalse("signal after the end", this.done.isDone());
+                    this.buffers.add(item);
+                }
+
+                @Override
+                public synchronized void onError(Throwable throwable){
+                    assertFalse("signal after the end", this.done.isDone());
+                    this.error = throwable;
+                    this.done.complete(null);
+                }
+
+                @Override
+                public synchronized void onComplete(){
+                    assertFalse("signal after the end", this.done.isDone());
+                    this.completed = true;
+                    this.done.complete(null);
+                }
+
+                synchronized int count(){
+                    return this.buffers.size();
+                }
+
+                synchronized byte[] bytes(){
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    for(ByteBuffer b : this.buffers){
+                        byte[] part = new byte[b.remaining()];
+                        b.duplicate().get(part);
+                        out.writeBytes(part);
+                    }
+                    return out.toByteArray();
+                }
+        }
+
+        private FastStartOptions options(Executor executor){
+            return new FastStartOptions().publishChunkSize(CHUNK_SIZE).publishExecutor(executor);
+        }
+
+        /**
+         * @param headerParts number of buffers in front of the chunks: the ftyp and moov atoms, none if the
+         * input is already fast start
+         */
+        private static void assertPublished(byte[] expected, Recorder recorder, int headerParts){
+            assertNull(recorder.error);
+            assertTrue(recorder.completed);
+            assertArrayEquals(expected, recorder.bytes());
+            for(ByteBuffer b : recorder.buffers.subList(headerParts, recorder.buffers.size()))
+                assertTrue(b.remaining() + " byte chunk", b.remaining() > 0 && b.remaining() <= CHUNK_SIZE);
+        }
+
+        @Test
+        public void publishesTheFileOutput() throws Exception{
+            for(byte[] in : samples(MDAT_SIZE)){
+                byte[] expected = fileOutput(in, dir);
+                Path input = dir.resolve("in.mp4");
+                Files.write(input, in);
+
+                List<FastStartPublisher> publishers = List.of(
+                        QtFastStart.publisher(input, options(CALLER)),
+                        QtFastStart.publisher(new ByteArrayInputStream(in), options(CALLER)),
+                        QtFastStart.publisher(in, options(CALLER)));
+                for(FastStartPublisher publisher : publishers){
+                    Recorder recorder = new Recorder(Long.MAX_VALUE);
+                    publisher.subscribe(recorder);
+                    assertPublished(expected, recorder, expected != in ? 2 : 0);
+                }
+            }
+        }
+
+        @Test
+        public void publishesOnItsExecutor() throws Exception{
+            byte[] in = samples(MDAT_SIZE).get(0);
+            byte[] expected = fileOutput(in, dir);
+            Path input = dir.resolve("in.mp4");
+            Files.write(input, in);
+
+            Recorder recorder = new Recorder(3);
+            QtFastStart.publisher(input, new FastStartOptions().publishChunkSize(CHUNK_SIZE)).subscribe(recorder);
+            // a request per buffer, made from this thread while the pool signals
+            while(recorder.subscription == null)
+                Thread.sleep(1);
+            while(!recorder.done.isDone()){
+                Thread.sleep(1);
+                recorder.subscription.request(1);
+            }
+            recorder.done.get(10, TimeUnit.SECONDS);
+            assertPublished(expected, recorder, 2);
+        }
+
+        @Test
+        public void emitsOnlyWhatWasRequested() throws Exception{
+            byte[] in = samples(MDAT_SIZE).get(0);
+            byte[] expected = fileOutput(in, dir);
+            Path input = dir.resolve("in.mp4");
+            Files.write(input, in);
+
+            Recorder recorder = new Recorder(0);
+            QtFastStart.publisher(input, options(CALLER)).subscribe(recorder);
+            assertEquals(0, recorder.count());
+            recorder.subscription.request(1);
+            assertEquals(1, recorder.count());
+            recorder.subscription.request(2);
+            assertEquals(3, recorder.count());
+            recorder.subscription.request(5);
+            assertEquals(8, recorder.count());
+            assertFalse(recorder.done.isDone());
+
+            int buffers = 2 + (expected.length - (int)recorder.buffers.get(0).remaining() - (int)recorder.buffers.get(1).remaining()
+                    + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            recorder.subscription.request(buffers - 8);
+            assertEquals(buffers, recorder.count());
+            assertFalse("completed before the end was asked for", recorder.completed);
+            recorder.subscription.request(1);
+            assertPublished(expected, recorder, 2);
+        }
+
+        @Test
+        public void cancelStopsTheOutput() throws Exception{
+            Path input = dir.resolve("in.mp4");
+            Files.write(input, samples(MDAT_SIZE).get(0));
+
+            Recorder recorder = new Recorder(4);
+            QtFastStart.publisher(input, options(CALLER)).subscribe(recorder);
+            recorder.subscription.cancel();
+            recorder.subscription.request(10);
+            assertEquals(4, recorder.count());
+            assertFalse(recorder.done.isDone());
+
+            // cancelled from within onNext
+            Recorder cancelling = new Recorder(Long.MAX_VALUE){
+                @Override
+                public synchronized void onNext(ByteBuffer item){
+                    super.onNext(item);
+                    if(count() == 3)
+                        this.subscription.cancel();
+                }
+            };
+            QtFastStart.publisher(input, options(CALLER)).subscribe(cancelling);
+            assertEquals(3, cancelling.count());
+            assertFalse(cancelling.done.isDone());
+        }
+
+        @Test
+        public void failuresGoToOnError() throws Exception{
+            // the file is only opened once buffers are requested
+            FastStartPublisher missing = QtFastStart.publisher(dir.resolve("missing.mp4"), options(CALLER));
+            Recorder recorder = new Recorder(0);
+            missing.subscribe(recorder);
+            assertFalse(recorder.done.isDone());
+            recorder.subscription.request(1);
+            assertTrue(String.valueOf(recorder.error), recorder.error instanceof NoSuchFileException);
+
+            byte[] in = samples(MDAT_SIZE).get(0);
+            recorder = new Recorder(0);
+            QtFastStart.publisher(in, options(CALLER)).subscribe(recorder);
+            recorder.subscription.request(0);
+            assertTrue(String.valueOf(recorder.error), recorder.error instanceof IllegalArgumentException);
+
+            FastStartPublisher publisher = QtFastStart.publisher(in, options(CALLER));
+            publisher.subscribe(new Recorder(1));
+            recorder = new Recorder(1);
+            publisher.subscribe(recorder);
+            assertTrue(String.valueOf(recorder.error), recorder.error instanceof IllegalStateException);
+            assertEquals(0, recorder.count());
+        }
+
+}
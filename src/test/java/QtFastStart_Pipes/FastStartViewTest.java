@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import static QtFastStart_Pipes.Mp4Files.fileOutput;
+import static QtFastStart_Pipes.Mp4Files.samples;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that reads and transfers of any range of a fast start view, over a
+ * file or a byte array, give the bytes of {@link QtFastStart#fastStart(Path, Path)}.
+ *
+ * @author SkibbleBip
+ */
+public class FastStartViewTest {
+
+        private static final int MDAT_SIZE = 200 * 1024 + 3;
+
+        private Path dir;
+
+        @Before
+        public void setUp() throws Exception{
+            dir = Files.createTempDirectory("view");
+        }
+
+        @After
+        public void tearDown() throws Exception{
+            Mp4Files.delete(dir);
+        }
+
+        /**
+         * Reads the whole view through a buffer small enough to cross every
+         * boundary between the header and the parts of the input.
+         */
+        private static byte[] readAll(FastStartView view, int bufferSize) throws IOException{
+            byte[] ret = new byte[(int)view.size()];
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            for(int offset = 0; offset < ret.length; ){
+                buffer.clear();
+                int n = view.read(offset, buffer);
+                buffer.flip().get(ret, offset, n);
+                offset += n;
+            }
+            return ret;
+        }
+
+        /**
+         * Checks the whole view and random ranges of it, read and transferred.
+         */
+        private static void assertView(byte[] expected, FastStartView view) throws IOException{
+            assertEquals(expected.length, view.size());
+            assertArrayEquals(expected, readAll(view, 7919));
+            assertArrayEquals(expected, readAll(view, 1 << 20));
+
+            SplittableRandom random = new SplittableRandom(7);
+            for(int i = 0; i < 200; i++){
+                int offset = random.nextInt(expected.length);
+                int count = random.nextInt(64 * 1024);
+                byte[] range = Arrays.copyOfRange(expected, offset, Math.min(expected.length, offset + count));
+
+                ByteBuffer read = ByteBuffer.allocate(count);
+                int n = view.read(offset, read);
+                assertEquals(range.length, n);
+                assertArrayEquals("read " + offset + "+" + count, range, Arrays.copyOf(read.array(), n));
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                WritableByteChannel channel = Channels.newChannel(out);
+                assertEquals(range.length, view.transferTo(offset, count, channel));
+                assertArrayEquals("transfer " + offset + "+" + count, range, out.toByteArray());
+            }
+        }
+
+        @Test
+        public void viewOfAFileMatchesTheFileOutput() throws Exception{
+            for(byte[] in : samples(MDAT_SIZE)){
+                byte[] expected = fileOutput(in, dir);
+                Path input = dir.resolve("in.mp4");
+                Files.write(input, in);
+                try(FastStartView view = QtFastStart.view(input)){
+                    assertEquals(expected != in, view.optimized());
+                    assertView(expected, view);
+                }
+            }
+        }
+
+        @Test
+        public void viewOfAnArrayMatchesTheFileOutput() throws Exception{
+            for(byte[] in : samples(MDAT_SIZE)){
+                byte[] expected = fileOutput(in, dir);
+                try(FastStartView view = QtFastStart.view(in)){
+                    assertEquals(expected != in, view.optimized());
+                    assertView(expected, view);
+                }
+            }
+        }
+
+        @Test
+        public void readsStopAtTheEnd() throws Exception{
+            byte[] in = samples(MDAT_SIZE).get(0);
+            try(FastStartView view = QtFastStart.view(in)){
+                long size = view.size();
+                assertEquals(-1, view.read(size, ByteBuffer.allocate(10)));
+                assertEquals(10, view.read(size - 10, ByteBuffer.allocate(100)));
+                assertEquals(10, view.transferTo(size - 10, 100, Channels.newChannel(new ByteArrayOutputStream())));
+                assertEquals(0, view.transferTo(size, 100, Channels.newChannel(new ByteArrayOutputStream())));
+                try{
+                    view.read(-1, ByteBuffer.allocate(10));
+                    fail("negative offset read");
+                } catch(IllegalArgumentException expected){
+                }
+            }
+        }
+
+        @Test
+        public void closingTheViewClosesTheFile() throws Exception{
+            Path input = dir.resolve("in.mp4");
+            Files.write(input, samples(MDAT_SIZE).get(0));
+            FastStartView view = QtFastStart.view(input);
+            view.close();
+            try{
+                view.read(view.size() - 100, ByteBuffer.allocate(10));
+                fail("read from a closed view");
+            } catch(IOException expected){
+            }
+        }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import static QtFastStart_Pipes.Mp4Files.assertChunksFollow;
+import static QtFastStart_Pipes.Mp4Files.assertIdempotent;
+import static QtFastStart_Pipes.Mp4Files.chunks;
+import static QtFastStart_Pipes.Mp4Files.fastStart;
+import static QtFastStart_Pipes.Mp4Files.file;
+import static QtFastStart_Pipes.Mp4Files.moov;
+import static QtFastStart_Pipes.Mp4Files.stco;
+import static QtFastStart_Pipes.Mp4Files.types;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link QtFastStart#fastStartInPlace(Path, FastStartOptions)}
+ * moves the media data in blocks to the same output the copying fast starts
+ * write, including when the data spans several blocks or is shorter than the
+ * moov atom it makes room for.
+ *
+ * @author SkibbleBip
+ */
+public class InPlaceFastStartTest {
+
+        private static final int BLOCK = QtFastStart.IN_PLACE_BLOCK_SIZE;
+
+        private Path dir;
+
+        @Before
+        public void setUp() throws Exception{
+            dir = Files.createTempDirectory("inplace");
+        }
+
+        @After
+        public void tearDown() throws Exception{
+            Mp4Files.delete(dir);
+        }
+
+        @Test
+        public void movesSeveralBlocks() throws Exception{
+            int mdatSize = 3 * BLOCK + 12345;
+            byte[] in = file(mdatSize, moov(stco(chunks(500, mdatSize, 1)), stco(chunks(300, mdatSize, 2))), 3);
+
+            byte[] out = fastStart(in, new FastStartOptions(), dir);
+
+            assertEquals(in.length, out.length);
+            assertEquals(Arrays.asList("ftyp", "moov", "free", "mdat"), types(out));
+            assertChunksFollow(in, out);
+            assertIdempotent(out, new FastStartOptions(), dir);
+        }
+
+        @Test
+        public void movesDataShorterThanTheMoov() throws Exception{
+            int mdatSize = 1000;
+            byte[] in = file(mdatSize, moov(stco(chunks(4000, mdatSize, 4))), 5);
+
+            byte[] out = fastStart(in, new FastStartOptions(), dir);
+
+            assertChunksFollow(in, out);
+            assertIdempotent(out, new FastStartOptions(), dir);
+        }
+
+        @Test
+        public void movesAtomsAfterTheMoov() throws Exception{
+            int mdatSize = BLOCK + 1;
+            byte[] in = file(mdatSize, moov(stco(chunks(100, mdatSize, 6))), 7,
+                    Mp4Files.atom("free", new byte[BLOCK / 2]), Mp4Files.atom("skip", new byte[3]));
+
+            byte[] out = fastStart(in, new FastStartOptions(), dir);
+
+            assertEquals(Arrays.asList("ftyp", "moov", "free", "mdat", "free", "skip"), types(out));
+            assertChunksFollow(in, out);
+            assertIdempotent(out, new FastStartOptions(), dir);
+        }
+
+        @Test
+        public void leavesFastStartFileUntouched() throws Exception{
+            int mdatSize = 4096;
+            byte[] in = file(mdatSize, moov(stco(chunks(10, mdatSize, 8))), 9);
+            byte[] out = QtFastStart.fastStart(in);
+
+            Path path = dir.resolve("faststart.mp4");
+            Files.write(path, out);
+            assertFalse(QtFastStart.fastStartInPlace(path));
+            assertArrayEquals(out, Files.readAllBytes(path));
+        }
+
+}
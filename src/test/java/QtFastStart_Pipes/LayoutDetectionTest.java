@@ -0,0 +1,168 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import static QtFastStart_Pipes.Mp4Files.assertChunksFollow;
+import static QtFastStart_Pipes.Mp4Files.assertIdempotent;
+import static QtFastStart_Pipes.Mp4Files.atom;
+import static QtFastStart_Pipes.Mp4Files.chunks;
+import static QtFastStart_Pipes.Mp4Files.fastStart;
+import static QtFastStart_Pipes.Mp4Files.file;
+import static QtFastStart_Pipes.Mp4Files.fourCc;
+import static QtFastStart_Pipes.Mp4Files.moov;
+import static QtFastStart_Pipes.Mp4Files.stco;
+import static QtFastStart_Pipes.Mp4Files.types;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks which files the top level walk rewrites: atoms of any type with a
+ * sound size may follow the moov atom and are kept after the media data,
+ * while fragmented files, unknown atoms in front of the moov atom and atoms
+ * that cannot be walked leave the input unchanged.
+ *
+ * @author SkibbleBip
+ */
+public class LayoutDetectionTest {
+
+        private static final int MDAT_SIZE = 32 * 1024;
+
+        private Path dir;
+
+        @Before
+        public void setUp() throws Exception{
+            dir = Files.createTempDirectory("layout");
+        }
+
+        @After
+        public void tearDown() throws Exception{
+            Mp4Files.delete(dir);
+        }
+
+        private static byte[] moovAtom(long seed){
+            return moov(stco(chunks(100, MDAT_SIZE, seed)));
+        }
+
+        private static byte[] concat(byte[]... atoms){
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for(byte[] atom : atoms)
+                out.writeBytes(atom);
+            return out.toByteArray();
+        }
+
+        private void assertUnchanged(byte[] in) throws Exception{
+            assertArrayEquals(in, fastStart(in, new FastStartOptions(), dir));
+        }
+
+        @Test
+        public void keepsAtomsAfterMoov() throws Exception{
+            byte[] in = file(MDAT_SIZE, moovAtom(1), 2,
+                    atom("free", new byte[100]), atom("Xtra", new byte[37]), atom("uuid", new byte[16]));
+
+            byte[] out = fastStart(in, new FastStartOptions(), dir);
+
+            assertEquals(Arrays.asList("ftyp", "moov", "free", "mdat", "free", "Xtra", "uuid"), types(out));
+            assertArrayEquals(Arrays.copyOfRange(in, in.length - 100 - 8 - 37 - 8 - 16 - 8, in.length),
+                    Arrays.copyOfRange(out, out.length - 100 - 8 - 37 - 8 - 16 - 8, out.length));
+            assertChunksFollow(in, out);
+            assertIdempotent(out, new FastStartOptions(), dir);
+        }
+
+        @Test
+        public void keepsLargeAtomAfterMoov() throws Exception{
+            ByteBuffer large = ByteBuffer.allocate(16 + 20);
+            large.putInt(1).putInt(fourCc("Xtra")).putLong(large.capacity());
+            byte[] in = file(MDAT_SIZE, moovAtom(3), 4, large.array());
+
+            byte[] out = fastStart(in, new FastStartOptions(), dir);
+
+            assertEquals(Arrays.asList("ftyp", "moov", "free", "mdat", "Xtra"), types(out));
+            assertArrayEquals(large.array(), Arrays.copyOfRange(out, out.length - large.capacity(), out.length));
+            assertChunksFollow(in, out);
+        }
+
+        @Test
+        public void leavesAtomPastTheEndAfterMoov() throws Exception{
+            // QuickTime top level atoms are copied after the media data too, so they get the same check
+            for(String type : new String[]{"Xtra", "free", "mdat", "uuid"}){
+                byte[] atom = atom(type, new byte[20]);
+                ByteBuffer.wrap(atom).putInt(0, atom.length + 1);
+                assertUnchanged(file(MDAT_SIZE, moovAtom(5), 6, atom));
+            }
+        }
+
+        @Test
+        public void leavesAtomSmallerThanItsHeaderAfterMoov() throws Exception{
+            for(String type : new String[]{"Xtra", "free", "mdat", "uuid"}){
+                byte[] atom = atom(type, new byte[20]);
+                ByteBuffer.wrap(atom).putInt(0, 4);
+                assertUnchanged(file(MDAT_SIZE, moovAtom(7), 8, atom));
+
+                // a 64-bit size smaller than the 16 byte header
+                ByteBuffer large = ByteBuffer.allocate(16 + 20);
+                large.putInt(1).putInt(fourCc(type)).putLong(12);
+                assertUnchanged(file(MDAT_SIZE, moovAtom(7), 8, large.array()));
+            }
+        }
+
+        @Test
+        public void leavesUnknownAtomBeforeMoov() throws Exception{
+            byte[] in = file(MDAT_SIZE, moovAtom(9), 10);
+            // turn the free atom in front of the mdat atom into an unknown one
+            ByteBuffer.wrap(in).putInt(24 + 4, fourCc("Xtra"));
+            assertUnchanged(in);
+        }
+
+        @Test
+        public void leavesFragmentedFile() throws Exception{
+            byte[] media = new byte[1000];
+            byte[] ftyp = Arrays.copyOf(file(16, moovAtom(11), 12), 24);
+            for(String fragment : new String[]{"moof", "sidx", "styp"})
+                assertUnchanged(concat(ftyp, atom("mdat", media), moovAtom(11), atom(fragment, new byte[16]), atom("mdat", media)));
+            assertUnchanged(concat(ftyp, moovAtom(11), atom("moof", atom("mfhd", new byte[8])), atom("mdat", media), atom("mfra", new byte[8])));
+        }
+
+        @Test
+        public void leavesMoovInFront() throws Exception{
+            byte[] media = new byte[1000];
+            byte[] ftyp = Arrays.copyOf(file(16, moovAtom(13), 14), 24);
+            assertUnchanged(concat(ftyp, moovAtom(13), atom("mdat", media)));
+        }
+
+        @Test
+        public void leavesSecondMoov() throws Exception{
+            byte[] media = new byte[1000];
+            byte[] ftyp = Arrays.copyOf(file(16, moovAtom(15), 16), 24);
+            assertUnchanged(concat(ftyp, atom("mdat", media), moovAtom(15), atom("mdat", media), moovAtom(15)));
+        }
+
+}
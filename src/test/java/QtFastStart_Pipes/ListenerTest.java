@@ -0,0 +1,143 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import QtFastStart_Pipes.QtFastStartListener.Outcome;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import static QtFastStart_Pipes.Mp4Files.fourCc;
+import static QtFastStart_Pipes.Mp4Files.samples;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the outcome every entry point reports to its listener, with inputs
+ * whose atoms cannot be walked told apart from fast start ones, and that the
+ * copy phase reports the whole output within the time of the call.
+ *
+ * @author SkibbleBip
+ */
+public class ListenerTest {
+
+        private static final int MDAT_SIZE = 200 * 1024 + 3;
+
+        private Path dir;
+
+        @Before
+        public void setUp() throws Exception{
+            dir = Files.createTempDirectory("listener");
+        }
+
+        @After
+        public void tearDown() throws Exception{
+            Mp4Files.delete(dir);
+        }
+
+        /**
+         * Listener that keeps the events of one call.
+         */
+        private static final class Events implements QtFastStartListener {
+                Outcome outcome = null;
+                long totalNanos = -1;
+                long copiedBytes = -1;
+                long copyNanos = -1;
+                int calls = 0;
+
+                @Override
+                public synchronized void dataCopied(long bytes, long nanos){
+                    this.copiedBytes = bytes;
+                    this.copyNanos = nanos;
+                }
+
+                @Override
+                public synchronized void finished(Outcome outcome, long totalNanos, Throwable failure){
+                    this.outcome = outcome;
+                    this.totalNanos = totalNanos;
+                    this.calls++;
+                }
+        }
+
+        /**
+         * Runs the input through the byte array, stream, file and asynchronous
+         * entry points and checks what each one reported.
+         * @param outputSize size of the output, or -1 if the input is left unchanged
+         */
+        private void assertReported(byte[] in, Outcome expected, long outputSize) throws Exception{
+            Path input = dir.resolve("in.mp4");
+            Files.write(input, in);
+            for(int entry = 0; entry < 4; entry++){
+                Events events = new Events();
+                FastStartOptions options = new FastStartOptions().listener(events);
+                switch(entry){
+                    case 0: QtFastStart.fastStart(in, options); break;
+                    case 1: QtFastStart.fastStart(new ByteArrayInputStream(in), new ByteArrayOutputStream(), options); break;
+                    case 2: QtFastStart.fastStart(input, dir.resolve("out.mp4"), options); break;
+                    default: QtFastStart.fastStartAsync(input, dir.resolve("async.mp4"), options).get();
+                }
+                synchronized(events){
+                    assertEquals("entry point " + entry, expected, events.outcome);
+                    assertEquals(1, events.calls);
+                    if(outputSize >= 0){
+                        assertEquals("entry point " + entry, outputSize, events.copiedBytes);
+                        assertTrue(events.copyNanos >= 0 && events.copyNanos <= events.totalNanos);
+                    } else
+                        assertEquals(-1, events.copiedBytes);
+                }
+            }
+        }
+
+        @Test
+        public void reportsHowEachCallEnded() throws Exception{
+            byte[] in = samples(MDAT_SIZE).get(0);
+            byte[] out = QtFastStart.fastStart(in);
+            assertReported(in, Outcome.OPTIMIZED, out.length);
+            assertReported(out, Outcome.ALREADY_FAST_START, -1);
+        }
+
+        @Test
+        public void unwalkableInputsHaveTheirOwnOutcome() throws Exception{
+            byte[] in = samples(MDAT_SIZE).get(0);
+
+            // an atom that is not a QuickTime top level atom in front of the moov atom
+            byte[] foreign = in.clone();
+            ByteBuffer.wrap(foreign).putInt(Mp4Files.MDAT_OFFSET - 16 + 4, fourCc("abcd"));
+            assertReported(foreign, Outcome.UNWALKABLE, -1);
+
+            // cut inside the media data, so there is no moov atom
+            assertReported(Arrays.copyOf(in, Mp4Files.MDAT_OFFSET + MDAT_SIZE / 2), Outcome.UNWALKABLE, -1);
+
+            // an atom whose size is smaller than its header
+            byte[] tiny = in.clone();
+            ByteBuffer.wrap(tiny).putInt(Mp4Files.MDAT_OFFSET - 16, 4);
+            assertReported(tiny, Outcome.UNWALKABLE, -1);
+        }
+
+}
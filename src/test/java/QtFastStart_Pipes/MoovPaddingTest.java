@@ -0,0 +1,133 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import static QtFastStart_Pipes.Mp4Files.assertChunksFollow;
+import static QtFastStart_Pipes.Mp4Files.assertIdempotent;
+import static QtFastStart_Pipes.Mp4Files.atom;
+import static QtFastStart_Pipes.Mp4Files.chunks;
+import static QtFastStart_Pipes.Mp4Files.compress;
+import static QtFastStart_Pipes.Mp4Files.fastStart;
+import static QtFastStart_Pipes.Mp4Files.file;
+import static QtFastStart_Pipes.Mp4Files.find;
+import static QtFastStart_Pipes.Mp4Files.moov;
+import static QtFastStart_Pipes.Mp4Files.stco;
+import static QtFastStart_Pipes.Mp4Files.types;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link FastStartOptions#moovPadding(int)} writes a zeroed free
+ * atom of the padding right after the moov atom and moves the chunk offsets
+ * past it, and that a padded output is left alone by a second run.
+ *
+ * @author SkibbleBip
+ */
+public class MoovPaddingTest {
+
+        private static final int MDAT_SIZE = 64 * 1024;
+        private static final int PADDING = 4096;
+
+        private Path dir;
+
+        @Before
+        public void setUp() throws Exception{
+            dir = Files.createTempDirectory("padding");
+        }
+
+        @After
+        public void tearDown() throws Exception{
+            Mp4Files.delete(dir);
+        }
+
+        private static void assertPadding(byte[] out){
+            long[] moov = find(out, "moov");
+            int free = (int)(moov[1] + moov[2]);
+            assertArrayEquals(atom("free", new byte[PADDING - 8]), Arrays.copyOfRange(out, free, free + PADDING));
+        }
+
+        @Test
+        public void reservesFreeAtomAfterMoov() throws Exception{
+            byte[] in = file(MDAT_SIZE, moov(stco(chunks(200, MDAT_SIZE, 1)), stco(chunks(100, MDAT_SIZE, 2))), 3);
+            FastStartOptions options = new FastStartOptions().moovPadding(PADDING);
+
+            byte[] out = fastStart(in, options, dir);
+
+            assertEquals(in.length + PADDING, out.length);
+            assertEquals(Arrays.asList("ftyp", "moov", "free", "free", "mdat"), types(out));
+            assertPadding(out);
+            assertChunksFollow(in, out);
+            assertIdempotent(out, options, dir);
+        }
+
+        @Test
+        public void addsNothingWithoutPadding() throws Exception{
+            byte[] in = file(MDAT_SIZE, moov(stco(chunks(200, MDAT_SIZE, 4))), 5);
+
+            byte[] out = fastStart(in, new FastStartOptions().moovPadding(0), dir);
+
+            assertEquals(in.length, out.length);
+            assertEquals(Arrays.asList("ftyp", "moov", "free", "mdat"), types(out));
+        }
+
+        @Test
+        public void padsInflatedCmov() throws Exception{
+            byte[] in = file(MDAT_SIZE, compress(moov(stco(chunks(200, MDAT_SIZE, 6)))), 7);
+            FastStartOptions options = new FastStartOptions().moovPadding(PADDING);
+
+            byte[] out = fastStart(in, options, dir);
+
+            assertPadding(out);
+            assertChunksFollow(in, out);
+            assertIdempotent(out, options, dir);
+        }
+
+        @Test
+        public void padsRecompressedCmov() throws Exception{
+            byte[] in = file(MDAT_SIZE, compress(moov(stco(chunks(200, MDAT_SIZE, 8)))), 9);
+            FastStartOptions options = new FastStartOptions().moovPadding(PADDING).recompressMoov(true);
+
+            byte[] out = fastStart(in, options, dir);
+
+            long[] moov = find(out, "moov");
+            assertTrue(CompressedMoov.isCompressed(ByteBuffer.wrap(out, (int)moov[1], (int)moov[2]).slice()));
+            assertPadding(out);
+            assertChunksFollow(in, out);
+            assertIdempotent(out, options, dir);
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void rejectsPaddingSmallerThanFreeHeader(){
+            new FastStartOptions().moovPadding(7);
+        }
+
+}
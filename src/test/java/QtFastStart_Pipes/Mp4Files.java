@@ -0,0 +1,384 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Builds small synthetic MP4 files for the tests and checks their fast start
+ * outputs: that every way of writing an output gives the same bytes, that the
+ * chunk offsets moved with the media data and that a second run changes
+ * nothing.
+ *
+ * @author SkibbleBip
+ */
+final class Mp4Files {
+
+        /** offset of the mdat atom of the files built here, after ftyp and free */
+        static final int MDAT_OFFSET = 24 + 16;
+        /** bytes compared at every chunk offset */
+        private static final int CHUNK_PROBE = 16;
+
+        private Mp4Files(){}
+
+        /**
+         * One stco or co64 table of a moov atom.
+         */
+        static final class Table {
+                final int type;
+                final long[] offsets;
+
+                Table(int type, long[] offsets){
+                    this.type = type;
+                    this.offsets = offsets;
+                }
+        }
+
+        static int fourCc(String type){
+            return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+        }
+
+        /**
+         * Builds an atom out of its type and the parts of its payload.
+         */
+        static byte[] atom(String type, byte[]... payload){
+            int size = 8;
+            for(byte[] part : payload)
+                size += part.length;
+            ByteBuffer b = ByteBuffer.allocate(size);
+            b.putInt(size).putInt(fourCc(type));
+            for(byte[] part : payload)
+                b.put(part);
+            return b.array();
+        }
+
+        /**
+         * Builds ftyp, free, an mdat of random bytes, the given moov atom and
+         * the atoms that follow it.
+         */
+        static byte[] file(int mdatSize, byte[] moov, long seed, byte[]... trailing){
+            byte[] media = new byte[mdatSize];
+            SplittableRandom random = new SplittableRandom(seed);
+            for(int i = 0; i < mdatSize; i++)
+                media[i] = (byte)random.nextInt(256);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.writeBytes(atom("ftyp", ascii("isom"), new byte[]{0, 0, 2, 0}, ascii("isomiso2")));
+            out.writeBytes(atom("free", new byte[8]));
+            out.writeBytes(atom("mdat", media));
+            out.writeBytes(moov);
+            for(byte[] atom : trailing)
+                out.writeBytes(atom);
+            return out.toByteArray();
+        }
+
+        /**
+         * @return sorted offsets of chunks inside the mdat of a file built by
+         * {@link #file(int, byte[], long, byte[]...)}
+         */
+        static long[] chunks(int count, int mdatSize, long seed){
+            SplittableRandom random = new SplittableRandom(seed);
+            long[] offsets = new long[count];
+            for(int i = 0; i < count; i++)
+                offsets[i] = MDAT_OFFSET + 8 + random.nextInt(mdatSize - CHUNK_PROBE);
+            Arrays.sort(offsets);
+            return offsets;
+        }
+
+        static byte[] stco(long... offsets){
+            ByteBuffer b = ByteBuffer.allocate(8 + offsets.length * 4);
+            b.putInt(0).putInt(offsets.length);
+            for(long offset : offsets)
+                b.putInt((int)offset);
+            return atom("stco", b.array());
+        }
+
+        static byte[] co64(long... offsets){
+            ByteBuffer b = ByteBuffer.allocate(8 + offsets.length * 8);
+            b.putInt(0).putInt(offsets.length);
+            for(long offset : offsets)
+                b.putLong(offset);
+            return atom("co64", b.array());
+        }
+
+        /**
+         * Builds a moov atom with an mvhd atom and one trak atom per chunk
+         * offset table.
+         */
+        static byte[] moov(byte[]... tables){
+            byte[][] payload = new byte[tables.length + 1][];
+            payload[0] = atom("mvhd", new byte[100]);
+            for(int i = 0; i < tables.length; i++)
+                payload[i + 1] = atom("trak", atom("tkhd", new byte[84]),
+                        atom("mdia", atom("minf", atom("stbl", tables[i]))));
+            return atom("moov", payload);
+        }
+
+        /**
+         * Wraps the content of a moov atom into a zlib compressed cmov atom.
+         */
+        static byte[] compress(byte[] moov){
+            Deflater deflater = new Deflater();
+            deflater.setInput(moov);
+            deflater.finish();
+            byte[] packed = new byte[moov.length + 64];
+            int n = deflater.deflate(packed);
+            deflater.end();
+            assertTrue("moov did not compress", deflater.finished());
+            byte[] size = ByteBuffer.allocate(4).putInt(moov.length).array();
+            return atom("moov", atom("cmov", atom("dcom", ascii("zlib")), atom("cmvd", size, Arrays.copyOf(packed, n))));
+        }
+
+        private static byte[] ascii(String s){
+            byte[] ret = new byte[s.length()];
+            for(int i = 0; i < ret.length; i++)
+                ret[i] = (byte)s.charAt(i);
+            return ret;
+        }
+
+        /**
+         * @return top level atoms of a file as type, offset and size
+         */
+        static List<long[]> atoms(byte[] file){
+            ByteBuffer b = ByteBuffer.wrap(file);
+            List<long[]> ret = new ArrayList<>();
+            for(int position = 0; position + 8 <= file.length; ){
+                long size = b.getInt(position) & 0xffffffffL;
+                if(size == 1)
+                    size = b.getLong(position + 8);
+                assertTrue("atom at " + position + " of " + size + " bytes", size >= 8);
+                ret.add(new long[]{b.getInt(position + 4), position, size});
+                position += (int)size;
+            }
+            return ret;
+        }
+
+        /**
+         * @return the first top level atom of a type as type, offset and size
+         */
+        static long[] find(byte[] file, String type){
+            for(long[] atom : atoms(file))
+                if(atom[0] == fourCc(type))
+                    return atom;
+            throw new AssertionError("no " + type + " atom");
+        }
+
+        /**
+         * @return top level atom types of a file, in order
+         */
+        static List<String> types(byte[] file){
+            List<String> ret = new ArrayList<>();
+            for(long[] atom : atoms(file))
+                ret.add(new String(file, (int)atom[1] + 4, 4, StandardCharsets.US_ASCII));
+            return ret;
+        }
+
+        /**
+         * @return the moov atom of a file, inflated if it is compressed
+         */
+        static ByteBuffer moovOf(byte[] file) throws Exception{
+            long[] moov = find(file, "moov");
+            ByteBuffer atom = ByteBuffer.wrap(Arrays.copyOfRange(file, (int)moov[1], (int)(moov[1] + moov[2])));
+            if(atom.getInt(12) != fourCc("cmov"))
+                return atom;
+
+            // moov { cmov { dcom, cmvd { uncompressed size, zlib stream } } }
+            int cmvd = 16 + atom.getInt(16);
+            assertEquals(fourCc("cmvd"), atom.getInt(cmvd + 4));
+            byte[] plain = new byte[atom.getInt(cmvd + 8)];
+            Inflater inflater = new Inflater();
+            inflater.setInput(atom.array(), cmvd + 12, atom.getInt(cmvd) - 12);
+            int n = inflater.inflate(plain);
+            inflater.end();
+            assertEquals(plain.length, n);
+            return ByteBuffer.wrap(plain);
+        }
+
+        /**
+         * Walks a moov atom down to its chunk offset tables, checking that
+         * every container is exactly filled by its children.
+         */
+        static List<Table> tables(ByteBuffer moov){
+            assertEquals(moov.limit(), moov.getInt(0));
+            List<Table> ret = new ArrayList<>();
+            walk(moov, 8, moov.limit(), ret);
+            return ret;
+        }
+
+        private static void walk(ByteBuffer moov, int from, int to, List<Table> tables){
+            int position = from;
+            while(position < to){
+                assertTrue("atom header at " + position + " past its parent", position + 8 <= to);
+                int size = moov.getInt(position);
+                int type = moov.getInt(position + 4);
+                assertTrue("atom at " + position + " of " + size + " bytes past its parent", size >= 8 && size <= to - position);
+                if(type == Atom.TRAK || type == Atom.MDIA || type == Atom.MINF || type == Atom.STBL)
+                    walk(moov, position + 8, position + size, tables);
+                else if(type == Atom.STCO || type == Atom.CO64){
+                    int entrySize = type == Atom.STCO ? 4 : 8;
+                    long[] offsets = new long[moov.getInt(position + 12)];
+                    assertEquals(16 + offsets.length * entrySize, size);
+                    for(int i = 0; i < offsets.length; i++)
+                        offsets[i] = entrySize == 4 ? moov.getInt(position + 16 + i * 4) & 0xffffffffL
+                                : moov.getLong(position + 16 + i * 8);
+                    tables.add(new Table(type, offsets));
+                }
+                position += size;
+            }
+            assertEquals(to, position);
+        }
+
+        /**
+         * Fast starts a file through the byte array, stream, file, asynchronous
+         * and in-place outputs and checks they all give the same bytes.
+         * @param dir directory for the files
+         * @return the output, which is the input when it is already fast start
+         */
+        static byte[] fastStart(byte[] in, FastStartOptions options, Path dir) throws Exception{
+            byte[] out = QtFastStart.fastStart(in, options);
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            boolean streamed = QtFastStart.fastStart(new ByteArrayInputStream(in), stream, options).optimized();
+            assertArrayEquals("stream output", out, stream.toByteArray());
+
+            Path input = dir.resolve("in.mp4");
+            Files.write(input, in);
+            Path output = dir.resolve("out.mp4");
+            Files.deleteIfExists(output);
+            boolean written = QtFastStart.fastStart(input, output, options).optimized();
+            assertEquals(streamed, written);
+            assertArrayEquals("file output", out, written ? Files.readAllBytes(output) : in);
+
+            Path async = dir.resolve("async.mp4");
+            Files.deleteIfExists(async);
+            FastStartResult result = QtFastStart.fastStartAsync(input, async, options).get();
+            assertEquals(written, result.optimized());
+            assertArrayEquals("asynchronous output", out, written ? Files.readAllBytes(async) : in);
+
+            assertEquals(written, QtFastStart.fastStartInPlace(input, options));
+            assertArrayEquals("in-place output", out, Files.readAllBytes(input));
+            return out;
+        }
+
+        /**
+         * Inputs the output APIs are checked on: stco and co64 tables with an
+         * atom after the moov atom, a compressed moov atom, and a file that is
+         * already fast start.
+         */
+        static List<byte[]> samples(int mdatSize) throws Exception{
+            byte[] plain = file(mdatSize, moov(stco(chunks(200, mdatSize, 1)), co64(chunks(100, mdatSize, 2))), 3,
+                    atom("free", new byte[1000]));
+            byte[] compressed = file(mdatSize, compress(moov(stco(chunks(300, mdatSize, 4)))), 5);
+            return Arrays.asList(plain, compressed, QtFastStart.fastStart(plain));
+        }
+
+        /**
+         * Fast starts a file with {@link QtFastStart#fastStart(Path, Path)},
+         * the output the other APIs must match.
+         * @param dir directory for the files
+         * @return the output, which is the input when it is already fast start
+         */
+        static byte[] fileOutput(byte[] in, Path dir) throws Exception{
+            Path input = dir.resolve("reference-in.mp4");
+            Path output = dir.resolve("reference-out.mp4");
+            Files.write(input, in);
+            Files.deleteIfExists(output);
+            byte[] out = QtFastStart.fastStart(input, output).optimized() ? Files.readAllBytes(output) : in;
+            Files.delete(input);
+            Files.deleteIfExists(output);
+            return out;
+        }
+
+        /**
+         * Checks that every chunk offset of the output points at the bytes
+         * the matching offset of the input pointed at.
+         */
+        static void assertChunksFollow(byte[] in, byte[] out) throws Exception{
+            List<Table> before = tables(moovOf(in));
+            List<Table> after = tables(moovOf(out));
+            assertEquals(before.size(), after.size());
+            for(int t = 0; t < before.size(); t++){
+                long[] from = before.get(t).offsets, to = after.get(t).offsets;
+                assertEquals(from.length, to.length);
+                for(int i = 0; i < from.length; i++)
+                    assertTrue("chunk " + i + " of table " + t + " moved from " + from[i] + " to " + to[i],
+                            to[i] + CHUNK_PROBE <= out.length && Arrays.equals(
+                                    in, (int)from[i], (int)from[i] + CHUNK_PROBE,
+                                    out, (int)to[i], (int)to[i] + CHUNK_PROBE));
+            }
+        }
+
+        /**
+         * Checks that every chunk offset moved by as much as the mdat atom
+         * did, for offsets that do not point into the file.
+         */
+        static void assertOffsetsMoved(byte[] in, byte[] out) throws Exception{
+            long delta = find(out, "mdat")[1] - find(in, "mdat")[1];
+            List<Table> before = tables(moovOf(in));
+            List<Table> after = tables(moovOf(out));
+            assertEquals(before.size(), after.size());
+            for(int t = 0; t < before.size(); t++){
+                long[] from = before.get(t).offsets, to = after.get(t).offsets;
+                assertEquals(from.length, to.length);
+                for(int i = 0; i < from.length; i++)
+                    assertEquals(from[i] + delta, to[i]);
+            }
+        }
+
+        /**
+         * Checks that fast starting an output again changes nothing.
+         */
+        static void assertIdempotent(byte[] out, FastStartOptions options, Path dir) throws Exception{
+            assertArrayEquals("second run", out, fastStart(out, options, dir));
+        }
+
+        /**
+         * Deletes a directory of test files.
+         */
+        static void delete(Path dir) throws Exception{
+            if(dir == null)
+                return;
+            try(Stream<Path> files = Files.list(dir)){
+                for(Path file : (Iterable<Path>)files::iterator)
+                    Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+
+}
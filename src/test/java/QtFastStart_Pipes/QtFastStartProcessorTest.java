@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import static QtFastStart_Pipes.Mp4Files.chunks;
+import static QtFastStart_Pipes.Mp4Files.file;
+import static QtFastStart_Pipes.Mp4Files.moov;
+import static QtFastStart_Pipes.Mp4Files.stco;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that byte array jobs of a {@link QtFastStartProcessor} reserve memory
+ * only for inputs that are rewritten, and hand every reservation back.
+ *
+ * @author SkibbleBip
+ */
+public class QtFastStartProcessorTest {
+
+        private static final int MDAT_SIZE = 1024 * 1024 + 17;
+        private static final long TOTAL = 64L * 1024 * 1024;
+
+        private ExecutorService executor;
+        private Recorder budget;
+
+        /**
+         * Budget remembering every reservation asked of it
+         */
+        private static class Recorder extends MemoryBudget {
+                final List<Long> requests = new CopyOnWriteArrayList<>();
+
+                Recorder(){super(TOTAL);}
+
+                @Override
+                public long acquire(long bytes) throws InterruptedException{
+                    this.requests.add(bytes);
+                    return super.acquire(bytes);
+                }
+        }
+
+        @Before
+        public void setUp(){
+            executor = Executors.newFixedThreadPool(2);
+            budget = new Recorder();
+        }
+
+        @After
+        public void tearDown(){
+            executor.shutdown();
+        }
+
+        @Test
+        public void rewrittenArraysReserveTheirOutput() throws Exception{
+            byte[] in = file(MDAT_SIZE, moov(stco(chunks(50, MDAT_SIZE, 3))), 3);
+            FastStartOptions options = new FastStartOptions();
+            try (QtFastStartProcessor processor = new QtFastStartProcessor(executor, budget, options)) {
+                assertArrayEquals(QtFastStart.fastStart(in), processor.submit(in).get());
+            }
+            assertEquals(1, budget.requests.size());
+            assertTrue(budget.requests.get(0) >= in.length + options.moovPadding());
+            assertEquals(TOTAL, budget.available());
+        }
+
+        @Test
+        public void fastStartArraysReserveNothing() throws Exception{
+            byte[] out = QtFastStart.fastStart(file(MDAT_SIZE, moov(stco(chunks(50, MDAT_SIZE, 4))), 4));
+            try (QtFastStartProcessor processor = new QtFastStartProcessor(executor, budget, new FastStartOptions())) {
+                assertSame(out, processor.submit(out).get());
+            }
+            assertEquals(List.of(0L), budget.requests);
+            assertEquals(TOTAL, budget.available());
+        }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import static QtFastStart_Pipes.Mp4Files.atom;
+import static QtFastStart_Pipes.Mp4Files.chunks;
+import static QtFastStart_Pipes.Mp4Files.co64;
+import static QtFastStart_Pipes.Mp4Files.compress;
+import static QtFastStart_Pipes.Mp4Files.file;
+import static QtFastStart_Pipes.Mp4Files.moovOf;
+import static QtFastStart_Pipes.Mp4Files.stco;
+import static QtFastStart_Pipes.Mp4Files.tables;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the seek index built while the chunk offsets are patched
+ * matches the stco and co64 tables written to the output, for plain,
+ * compressed, promoted and parallel patched moov atoms, and that every way of
+ * writing an output hands the same index to the consumer and the result.
+ *
+ * @author SkibbleBip
+ */
+public class SeekIndexTest {
+
+        private static final int MDAT_SIZE = 256 * 1024;
+        private static final int SAMPLE_SIZE = 512;
+        private static final int SAMPLE_DELTA = 10;
+
+        private Path dir;
+
+        @Before
+        public void setUp() throws Exception{
+            dir = Files.createTempDirectory("seekindex");
+        }
+
+        @After
+        public void tearDown() throws Exception{
+            Mp4Files.delete(dir);
+        }
+
+        /**
+         * Builds a trak atom with one sample per chunk, each {@link #SAMPLE_DELTA}
+         * long in a timescale of 1000.
+         */
+        private static byte[] trak(int trackId, byte[] table){
+            int chunks = ByteBuffer.wrap(table).getInt(12);
+            byte[] tkhd = new byte[84];
+            ByteBuffer.wrap(tkhd).putInt(12, trackId);
+            byte[] mdhd = new byte[24];
+            ByteBuffer.wrap(mdhd).putInt(12, 1000);
+            byte[] hdlr = new byte[25];
+            ByteBuffer.wrap(hdlr).putInt(8, Mp4Files.fourCc("vide"));
+            byte[] stts = ByteBuffer.allocate(16).putInt(0).putInt(1).putInt(chunks).putInt(SAMPLE_DELTA).array();
+            byte[] stsc = ByteBuffer.allocate(20).putInt(0).putInt(1).putInt(1).putInt(1).putInt(1).array();
+            byte[] stsz = ByteBuffer.allocate(12).putInt(0).putInt(SAMPLE_SIZE).putInt(chunks).array();
+            return atom("trak", atom("tkhd", tkhd), atom("mdia", atom("mdhd", mdhd), atom("hdlr", hdlr),
+                    atom("minf", atom("stbl", atom("stts", stts), atom("stsc", stsc), atom("stsz", stsz), table))));
+        }
+
+        private static byte[] moov(byte[]... traks){
+            byte[][] payload = new byte[traks.length + 1][];
+            payload[0] = atom("mvhd", new byte[100]);
+            System.arraycopy(traks, 0, payload, 1, traks.length);
+            return atom("moov", payload);
+        }
+
+        /**
+         * Checks that each track of the index has the chunk offsets of the
+         * matching table of the output, with the times and sizes of its samples.
+         */
+        private static void assertIndexes(byte[] out, SeekIndex index) throws Exception{
+            assertNotNull(index);
+            List<Mp4Files.Table> tables = tables(moovOf(out));
+            assertEquals(tables.size(), index.tracks().size());
+            for(int t = 0; t < tables.size(); t++){
+                SeekIndex.Track track = index.tracks().get(t);
+                long[] offsets = tables.get(t).offsets;
+                assertEquals(t + 1, track.trackId());
+                assertEquals(offsets.length, track.chunkCount());
+                for(int i = 0; i < offsets.length; i++){
+                    assertEquals("chunk " + i + " of track " + track.trackId(), offsets[i], track.offset(i));
+                    assertEquals(i * SAMPLE_DELTA, track.time(i));
+                    assertEquals(SAMPLE_SIZE, track.size(i));
+                }
+                assertEquals(offsets.length * SAMPLE_DELTA, track.duration());
+            }
+        }
+
+        /**
+         * Fast starts a file to a stream, a file and asynchronously, checking the
+         * index handed to the consumer and returned with each result.
+         * @return the output
+         */
+        private byte[] assertIndexed(byte[] in, FastStartOptions options) throws Exception{
+            List<SeekIndex> handed = new ArrayList<>();
+            options.seekIndex(handed::add);
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            FastStartResult streamed = QtFastStart.fastStart(new ByteArrayInputStream(in), stream, options);
+            byte[] out = stream.toByteArray();
+            assertTrue(streamed.optimized());
+            assertIndexes(out, streamed.seekIndex());
+
+            Path input = dir.resolve("in.mp4");
+            Files.write(input, in);
+            FastStartResult written = QtFastStart.fastStart(input, dir.resolve("out.mp4"), options);
+            assertArrayEquals(out, Files.readAllBytes(dir.resolve("out.mp4")));
+            assertIndexes(out, written.seekIndex());
+
+            FastStartResult async = QtFastStart.fastStartAsync(input, dir.resolve("async.mp4"), options).get();
+            assertArrayEquals(out, Files.readAllBytes(dir.resolve("async.mp4")));
+            assertIndexes(out, async.seekIndex());
+
+            assertEquals(3, handed.size());
+            assertSame(streamed.seekIndex(), handed.get(0));
+            assertSame(written.seekIndex(), handed.get(1));
+            assertSame(async.seekIndex(), handed.get(2));
+            return out;
+        }
+
+        @Test
+        public void indexesPatchedStcoAndCo64() throws Exception{
+            byte[] in = file(MDAT_SIZE, moov(trak(1, stco(chunks(300, MDAT_SIZE, 1))), trak(2, co64(chunks(200, MDAT_SIZE, 2)))), 3,
+                    atom("free", new byte[64]));
+            assertIndexed(in, new FastStartOptions());
+            assertIndexed(in, new FastStartOptions().moovPadding(4096));
+        }
+
+        @Test
+        public void indexesCompressedMoov() throws Exception{
+            byte[] in = file(MDAT_SIZE, compress(moov(trak(1, stco(chunks(300, MDAT_SIZE, 4))), trak(2, co64(chunks(100, MDAT_SIZE, 5))))), 6);
+            assertIndexed(in, new FastStartOptions());
+            // the index holds the offsets of the last round, the one written out
+            assertIndexed(in, new FastStartOptions().recompressMoov(true));
+            assertIndexed(in, new FastStartOptions().recompressMoov(true).moovPadding(1024));
+        }
+
+        @Test
+        public void indexesPromotedTables() throws Exception{
+            long[] nearEnd = new long[50];
+            for(int i = 0; i < nearEnd.length; i++)
+                nearEnd[i] = (1L << 32) - 100 - nearEnd.length + i;
+            byte[] in = file(MDAT_SIZE, moov(trak(1, stco(nearEnd)), trak(2, stco(chunks(40, MDAT_SIZE, 7)))), 8);
+
+            byte[] out = assertIndexed(in, new FastStartOptions());
+            assertEquals(Atom.CO64, tables(moovOf(out)).get(0).type);
+        }
+
+        @Test
+        public void indexesParallelPatchedTables() throws Exception{
+            byte[] in = file(MDAT_SIZE, moov(trak(1, stco(chunks(200_000, MDAT_SIZE, 9))), trak(2, co64(chunks(150_000, MDAT_SIZE, 10)))), 11);
+            assertIndexed(in, new FastStartOptions().parallelPatchPool(ForkJoinPool.commonPool()).parallelPatchThreshold(1));
+        }
+
+        @Test
+        public void cachedLayoutKeepsItsIndex() throws Exception{
+            byte[] in = file(MDAT_SIZE, moov(trak(1, stco(chunks(300, MDAT_SIZE, 12)))), 13);
+            Path input = dir.resolve("in.mp4");
+            Files.write(input, in);
+            MoovCache cache = new MoovCache(1 << 20);
+
+            // cached without an index, then indexed from the cached moov atom on a hit
+            FastStartResult first = QtFastStart.fastStart(input, dir.resolve("first.mp4"), new FastStartOptions().moovCache(cache));
+            assertNull(first.seekIndex());
+            byte[] out = Files.readAllBytes(dir.resolve("first.mp4"));
+            FastStartResult hit = QtFastStart.fastStart(input, dir.resolve("hit.mp4"), new FastStartOptions().moovCache(cache).seekIndex(index -> {}));
+            assertIndexes(out, hit.seekIndex());
+
+            // cached with its index, which a hit hands out again
+            cache = new MoovCache(1 << 20);
+            FastStartOptions indexed = new FastStartOptions().moovCache(cache).seekIndex(index -> {});
+            SeekIndex built = QtFastStart.fastStart(input, dir.resolve("built.mp4"), indexed).seekIndex();
+            assertSame(built, QtFastStart.fastStart(input, dir.resolve("again.mp4"), indexed).seekIndex());
+            assertSame(built, QtFastStart.fastStartAsync(input, dir.resolve("async.mp4"), indexed).get().seekIndex());
+        }
+
+        @Test
+        public void noConsumerNoIndex() throws Exception{
+            byte[] in = file(MDAT_SIZE, moov(trak(1, stco(chunks(30, MDAT_SIZE, 14)))), 15);
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            assertNull(QtFastStart.fastStart(new ByteArrayInputStream(in), stream, new FastStartOptions()).seekIndex());
+        }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+import static QtFastStart_Pipes.Mp4Files.atom;
+import static QtFastStart_Pipes.Mp4Files.chunks;
+import static QtFastStart_Pipes.Mp4Files.co64;
+import static QtFastStart_Pipes.Mp4Files.file;
+import static QtFastStart_Pipes.Mp4Files.moov;
+import static QtFastStart_Pipes.Mp4Files.stco;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that streaming an input whose media data passes the spill threshold
+ * gives the same bytes as the in-memory path, that the spill file goes to the
+ * temporary directory of the options and that it is gone afterwards, also
+ * when the input fails part way.
+ *
+ * @author SkibbleBip
+ */
+public class SpillTest {
+
+        private static final int MDAT_SIZE = 300 * 1024 + 5;
+
+        private Path dir;
+        private byte[] in;
+
+        @Before
+        public void setUp() throws Exception{
+            dir = Files.createTempDirectory("spill");
+            in = file(MDAT_SIZE, moov(stco(chunks(200, MDAT_SIZE, 1)), co64(chunks(100, MDAT_SIZE, 2))), 3,
+                    atom("free", new byte[1000]));
+        }
+
+        @After
+        public void tearDown() throws Exception{
+            Mp4Files.delete(dir);
+        }
+
+        private long spillFiles() throws IOException{
+            try(Stream<Path> files = Files.list(dir)){
+                return files.count();
+            }
+        }
+
+        @Test
+        public void spilledOutputMatchesTheInMemoryOne() throws Exception{
+            byte[] expected = QtFastStart.fastStart(in);
+            ByteArrayOutputStream memory = new ByteArrayOutputStream();
+            QtFastStart.fastStart(new ByteArrayInputStream(in), memory, new FastStartOptions().tempDirectory(dir));
+            assertArrayEquals(expected, memory.toByteArray());
+
+            // on a chunk boundary, past it, inside the media data and before any of it
+            for(long threshold : new long[]{0, 1, 4096, 64 * 1024, 64 * 1024 + 1, MDAT_SIZE / 2}){
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                FastStartResult result = QtFastStart.fastStart(new ByteArrayInputStream(in), out,
+                        new FastStartOptions().spillThreshold(threshold).tempDirectory(dir));
+                assertTrue(result.optimized());
+                assertArrayEquals("threshold " + threshold, expected, out.toByteArray());
+                assertEquals("spill file left behind", 0, spillFiles());
+            }
+        }
+
+        @Test
+        public void spillsToTheTemporaryDirectoryPastTheThreshold() throws Exception{
+            // a missing directory fails the spill, and only the spill
+            Path missing = dir.resolve("missing");
+            QtFastStart.fastStart(new ByteArrayInputStream(in), new ByteArrayOutputStream(),
+                    new FastStartOptions().spillThreshold(in.length).tempDirectory(missing));
+            try{
+                QtFastStart.fastStart(new ByteArrayInputStream(in), new ByteArrayOutputStream(),
+                        new FastStartOptions().spillThreshold(MDAT_SIZE / 2).tempDirectory(missing));
+                fail("the input did not spill");
+            } catch(NoSuchFileException expected){
+                assertTrue(expected.getFile().startsWith(missing.toString()));
+            }
+        }
+
+        @Test
+        public void bufferReadsBackWhatSpilled() throws Exception{
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try(SpillBuffer buffer = new SpillBuffer(4096, dir)){
+                buffer.transferFrom(new ByteArrayInputStream(in), in.length);
+                assertTrue(buffer.spilled());
+                assertEquals(in.length, buffer.size());
+                buffer.writeTo(out, 1000);
+            }
+            assertArrayEquals(Arrays.copyOfRange(in, 1000, in.length), out.toByteArray());
+            assertEquals("spill file left behind", 0, spillFiles());
+        }
+
+        @Test
+        public void spillFileIsDeletedWhenTheInputFails() throws Exception{
+            InputStream failing = new FilterInputStream(new ByteArrayInputStream(in)){
+                private long left = MDAT_SIZE / 2;
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException{
+                    if(left <= 0)
+                        throw new IOException("input failed");
+                    int n = super.read(b, off, (int)Math.min(len, left));
+                    left -= Math.max(n, 0);
+                    return n;
+                }
+            };
+            try{
+                QtFastStart.fastStart(failing, new ByteArrayOutputStream(), new FastStartOptions().spillThreshold(1024).tempDirectory(dir));
+                fail("the input failure was not thrown");
+            } catch(IOException expected){
+                assertEquals("input failed", expected.getMessage());
+            }
+            assertEquals("spill file left behind", 0, spillFiles());
+        }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2021 SkibbleBip
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package QtFastStart_Pipes;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import static QtFastStart_Pipes.Mp4Files.assertChunksFollow;
+import static QtFastStart_Pipes.Mp4Files.assertIdempotent;
+import static QtFastStart_Pipes.Mp4Files.assertOffsetsMoved;
+import static QtFastStart_Pipes.Mp4Files.chunks;
+import static QtFastStart_Pipes.Mp4Files.co64;
+import static QtFastStart_Pipes.Mp4Files.compress;
+import static QtFastStart_Pipes.Mp4Files.fastStart;
+import static QtFastStart_Pipes.Mp4Files.file;
+import static QtFastStart_Pipes.Mp4Files.find;
+import static QtFastStart_Pipes.Mp4Files.moov;
+import static QtFastStart_Pipes.Mp4Files.moovOf;
+import static QtFastStart_Pipes.Mp4Files.stco;
+import static QtFastStart_Pipes.Mp4Files.tables;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that stco tables whose patched offsets would pass 4 GB are promoted
+ * to co64 tables, with the sizes of the atoms holding them grown to match,
+ * in plain and in compressed moov atoms. The offsets near 4 GB point past the
+ * end of the small files built here, which the fast start does not mind.
+ *
+ * @author SkibbleBip
+ */
+public class StcoPromotionTest {
+
+        private static final int MDAT_SIZE = 64 * 1024;
+        private static final long UINT32_END = 1L << 32;
+
+        private Path dir;
+
+        @Before
+        public void setUp() throws Exception{
+            dir = Files.createTempDirectory("promotion");
+        }
+
+        @After
+        public void tearDown() throws Exception{
+            Mp4Files.delete(dir);
+        }
+
+        /**
+         * @return offsets that still fit in 32 bits once moved by less than {@code room} bytes
+         */
+        private static long[] nearEnd(int count, long room){
+            long[] offsets = new long[count];
+            for(int i = 0; i < count; i++)
+                offsets[i] = UINT32_END - room - count + i;
+            return offsets;
+        }
+
+        @Test
+        public void promotesOnlyOverflowingTables() throws Exception{
+            byte[] in = file(MDAT_SIZE, moov(stco(nearEnd(50, 100)), stco(chunks(40, MDAT_SIZE, 1)), co64(chunks(30, MDAT_SIZE, 2))), 3);
+
+            byte[] out = fastStart(in, new FastStartOptions(), dir);
+
+            List<Mp4Files.Table> tables = tables(moovOf(out));
+            assertEquals(Atom.CO64, tables.get(0).type);
+            assertEquals(Atom.STCO, tables.get(1).type);
+            assertEquals(Atom.CO64, tables.get(2).type);
+            assertEquals(find(in, "moov")[2] + 50 * 4, find(out, "moov")[2]);
+            assertOffsetsMoved(in, out);
+            assertTrue(tables.get(0).offsets[49] >= UINT32_END);
+            assertIdempotent(out, new FastStartOptions(), dir);
+        }
+
+        @Test
+        public void promotesForThePadding() throws Exception{
+            long moovSize = moov(stco(new long[20])).length;
+            byte[] in = file(MDAT_SIZE, moov(stco(nearEnd(20, moovSize + 100))), 4);
+
+            byte[] plain = fastStart(in, new FastStartOptions(), dir);
+            assertEquals(Atom.STCO, tables(moovOf(plain)).get(0).type);
+            assertOffsetsMoved(in, plain);
+
+            FastStartOptions padded = new FastStartOptions().moovPadding(4096);
+            byte[] out = fastStart(in, padded, dir);
+            assertEquals(Atom.CO64, tables(moovOf(out)).get(0).type);
+            assertOffsetsMoved(in, out);
+            assertIdempotent(out, padded, dir);
+        }
+
+        @Test
+        public void promotesInflatedCmov() throws Exception{
+            byte[] in = file(MDAT_SIZE, compress(moov(stco(nearEnd(50, 100)), stco(chunks(40, MDAT_SIZE, 5)))), 6);
+
+            byte[] out = fastStart(in, new FastStartOptions(), dir);
+
+            assertEquals(Atom.CO64, tables(moovOf(out)).get(0).type);
+            assertOffsetsMoved(in, out);
+            assertIdempotent(out, new FastStartOptions(), dir);
+        }
+
+        @Test
+        public void promotesRecompressedCmov() throws Exception{
+            byte[] in = file(MDAT_SIZE, compress(moov(stco(nearEnd(50, 100)), stco(chunks(40, MDAT_SIZE, 7)))), 8);
+
+            for(int padding : new int[]{0, 4096}){
+                FastStartOptions options = new FastStartOptions().recompressMoov(true).moovPadding(padding);
+                byte[] out = fastStart(in, options, dir);
+
+                assertTrue(CompressedMoov.isCompressed(ByteBuffer.wrap(out, (int)find(out, "moov")[1], 16).slice()));
+                List<Mp4Files.Table> tables = tables(moovOf(out));
+                assertEquals(Atom.CO64, tables.get(0).type);
+                assertEquals(Atom.STCO, tables.get(1).type);
+                assertOffsetsMoved(in, out);
+                assertIdempotent(out, options, dir);
+            }
+        }
+
+        @Test
+        public void keepsChunksInFileTables() throws Exception{
+            byte[] in = file(MDAT_SIZE, moov(stco(chunks(100, MDAT_SIZE, 9)), co64(chunks(100, MDAT_SIZE, 10))), 11);
+
+            byte[] out = fastStart(in, new FastStartOptions(), dir);
+
+            assertEquals(find(in, "moov")[2], find(out, "moov")[2]);
+            assertChunksFollow(in, out);
+        }
+
+}